@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.cache;
+
+import org.vanilladb.core.query.parse.CreateIndexData;
+import org.vanilladb.core.query.parse.CreateTableData;
+import org.vanilladb.core.query.parse.DropIndexData;
+import org.vanilladb.core.query.parse.DropTableData;
+import org.vanilladb.core.query.planner.index.IndexUpdatePlanner;
+import org.vanilladb.core.storage.tx.Transaction;
+
+/**
+ * An {@link IndexUpdatePlanner} that discards the access paths cached by
+ * {@link VanillaCoreCrud} whenever a table or an index is created or dropped.
+ * DDL statements are rare, so all the paths are discarded instead of working
+ * out the table affected by each statement.
+ */
+public class AccessPathUpdatePlanner extends IndexUpdatePlanner {
+
+	@Override
+	public int executeCreateTable(CreateTableData data, Transaction tx) {
+		int result = super.executeCreateTable(data, tx);
+		TableAccessPath.invalidateAll();
+		return result;
+	}
+
+	@Override
+	public int executeCreateIndex(CreateIndexData data, Transaction tx) {
+		int result = super.executeCreateIndex(data, tx);
+		TableAccessPath.invalidateAll();
+		return result;
+	}
+
+	@Override
+	public int executeDropTable(DropTableData data, Transaction tx) {
+		int result = super.executeDropTable(data, tx);
+		TableAccessPath.invalidateAll();
+		return result;
+	}
+
+	@Override
+	public int executeDropIndex(DropIndexData data, Transaction tx) {
+		int result = super.executeDropIndex(data, tx);
+		TableAccessPath.invalidateAll();
+		return result;
+	}
+}
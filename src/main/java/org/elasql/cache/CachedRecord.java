@@ -20,6 +20,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -30,18 +31,34 @@ import org.vanilladb.core.sql.Constant;
 import org.vanilladb.core.sql.Record;
 import org.vanilladb.core.sql.Type;
 
+/**
+ * A record cached in memory. The values of the non-key fields are stored in an
+ * array indexed by the slots of the {@link FieldLayout} of the table, and the
+ * dirty fields are tracked by a bitset over the same slots.
+ */
 public class CachedRecord implements Record, Serializable {
 
-	private static final long serialVersionUID = 20200107002L;
+	private static final long serialVersionUID = 20200107003L;
+
+	private static final Constant[] NO_VALUES = new Constant[0];
+
+	// Rough per-object overheads used by estimateSize()
+	private static final int RECORD_OVERHEAD = 64;
+	private static final int SLOT_OVERHEAD = 8;
+	private static final int FIELD_OVERHEAD = 16;
 
 	private boolean isDirty, isDeleted, isNewInserted;
 	private long srcTxNum = -1;
 	private boolean isTemp; // the temporary record will not be flushed.
 
 	private PrimaryKey primaryKey;
-	// A Constant is non-serializable
-	private transient Map<String, Constant> nonKeyFldVals = new HashMap<String, Constant>();
-	private List<String> dirtyFlds = new ArrayList<String>();
+	// The fields are written by writeObject() and readObject()
+	private transient FieldLayout layout;
+	private transient Constant[] vals; // null for absent fields
+	private transient long[] dirtyBits; // null if no field is dirty
+	// Whether the value array and the dirty bits are shared with another
+	// record. A shared record copies them before its first modification.
+	private transient volatile boolean isShared;
 
 	public static CachedRecord newRecordWithFldVals(PrimaryKey key, Map<String, Constant> fldVals) {
 		CachedRecord rec = new CachedRecord(key);
@@ -69,18 +86,26 @@ public class CachedRecord implements Record, Serializable {
 
 	public CachedRecord(PrimaryKey primaryKey) {
 		this.primaryKey = primaryKey;
+		this.layout = FieldLayout.forTable(primaryKey.getTableName());
+		int numOfSlots = layout.numberOfSlots();
+		this.vals = (numOfSlots == 0) ? NO_VALUES : new Constant[numOfSlots];
 	}
 
 	/**
 	 * Constructs a new CachedRecord with the same key-value pairs and the same
-	 * meta-data as the given CachedRecord.
+	 * meta-data as the given CachedRecord. The two records share their field
+	 * values until either of them is modified, so cloning a record that is
+	 * only read afterwards costs no copy of the fields.
 	 * 
 	 * @param rec the CachedRecord to be cloned
 	 */
 	public CachedRecord(CachedRecord rec) {
+		rec.isShared = true;
+		isShared = true;
 		primaryKey = rec.primaryKey;
-		nonKeyFldVals = new HashMap<String, Constant>(rec.nonKeyFldVals);
-		dirtyFlds = new ArrayList<String>(rec.dirtyFlds);
+		layout = rec.layout;
+		vals = rec.vals;
+		dirtyBits = rec.dirtyBits;
 		isDirty = rec.isDirty;
 		isDeleted = rec.isDeleted;
 		isNewInserted = rec.isNewInserted;
@@ -97,25 +122,52 @@ public class CachedRecord implements Record, Serializable {
 			if (val != null)
 				return val;
 
-			// Check the map
-			return nonKeyFldVals.get(fldName);
+			// Check the non-key fields
+			return getVal(layout.slotOf(fldName));
 		}
 	}
 
+	/**
+	 * Returns the value of the non-key field at the given slot of the
+	 * {@link FieldLayout} of this record. This saves the lookup of the field
+	 * name when the slot has been resolved in advance.
+	 * 
+	 * @param slot the slot of the field
+	 * @return the value, or null if the field is absent
+	 */
+	public Constant getVal(int slot) {
+		Constant[] vals = this.vals;
+		if (isDeleted || slot < 0 || slot >= vals.length)
+			return null;
+		return vals[slot];
+	}
+
+	public FieldLayout getLayout() {
+		return layout;
+	}
+
 	public void addFldVal(String field, Constant val) {
 		Constant keyVal = primaryKey.getVal(field);
-		if (keyVal == null)
-			nonKeyFldVals.put(field, val);
-		else if (!keyVal.equals(val))
+		if (keyVal == null) {
+			int slot = layout.slotOrAssign(field);
+			copyOnWrite();
+			if (slot >= vals.length)
+				vals = Arrays.copyOf(vals, Math.max(slot + 1, layout.numberOfSlots()));
+			vals[slot] = val;
+		} else if (!keyVal.equals(val))
 			throw new UnsupportedOperationException("cannot modify key field: " + field);
 	}
 
 	public Constant removeField(String field) {
 		if (primaryKey.containsField(field))
 			throw new UnsupportedOperationException("cannot remove key field: " + field);
-		Constant val = nonKeyFldVals.remove(field);
-		if (val != null)
-			dirtyFlds.remove(field);
+		int slot = layout.slotOf(field);
+		if (slot < 0 || slot >= vals.length || vals[slot] == null)
+			return null;
+		copyOnWrite();
+		Constant val = vals[slot];
+		vals[slot] = null;
+		clearDirty(slot);
 		return val;
 	}
 
@@ -126,19 +178,40 @@ public class CachedRecord implements Record, Serializable {
 		if (primaryKey.containsField(fldName))
 			throw new UnsupportedOperationException("cannot modify key field: " + fldName);
 
-		if (!nonKeyFldVals.containsKey(fldName))
+		int slot = layout.slotOf(fldName);
+		if (slot < 0 || slot >= vals.length || vals[slot] == null)
 			throw new FieldNotFoundException(fldName);
 
-		isDirty = true;
-		if (!dirtyFlds.contains(fldName))
-			dirtyFlds.add(fldName);
+		setVal(slot, val);
+	}
 
-		nonKeyFldVals.put(fldName, val);
+	/**
+	 * Sets the value of the non-key field at the given slot of the
+	 * {@link FieldLayout} of this record.
+	 * 
+	 * @param slot the slot of the field
+	 * @param val the new value
+	 */
+	public void setVal(int slot, Constant val) {
+		if (isDeleted)
+			throw new UnsupportedOperationException("the record " + primaryKey + " is deleted.");
+
+		if (slot < 0 || slot >= vals.length || vals[slot] == null)
+			throw new FieldNotFoundException(slot < 0 ? "slot " + slot : layout.fieldName(slot));
+
+		copyOnWrite();
+		isDirty = true;
+		markDirty(slot);
+		vals[slot] = val;
 	}
 
 	public void markAllNonKeyFieldsDirty() {
-		dirtyFlds.clear();
-		dirtyFlds.addAll(nonKeyFldVals.keySet());
+		copyOnWrite();
+		isDirty = true;
+		dirtyBits = null;
+		for (int slot = 0; slot < vals.length; slot++)
+			if (vals[slot] != null)
+				markDirty(slot);
 	}
 
 	public boolean isDirty() {
@@ -168,23 +241,49 @@ public class CachedRecord implements Record, Serializable {
 	}
 
 	public List<String> getFldNames() {
-		List<String> allFields = new ArrayList<String>(nonKeyFldVals.keySet());
+		List<String> allFields = new ArrayList<String>(vals.length + primaryKey.getNumOfFlds());
+		for (int slot = 0; slot < vals.length; slot++)
+			if (vals[slot] != null)
+				allFields.add(layout.fieldName(slot));
 		for (int i = 0; i < primaryKey.getNumOfFlds(); i++)
 			allFields.add(primaryKey.getField(i));
 		return allFields;
 	}
 
 	public List<String> getDirtyFldNames() {
-		return new ArrayList<String>(dirtyFlds);
+		List<String> dirtyFlds = new ArrayList<String>();
+		long[] dirtyBits = this.dirtyBits;
+		if (dirtyBits != null)
+			for (int slot = 0; slot < vals.length; slot++)
+				if (isDirty(dirtyBits, slot))
+					dirtyFlds.add(layout.fieldName(slot));
+		return dirtyFlds;
 	}
 
 	public Map<String, Constant> toFldValMap() {
-		Map<String, Constant> fldVals = new HashMap<String, Constant>(nonKeyFldVals);
+		Map<String, Constant> fldVals = new HashMap<String, Constant>();
+		for (int slot = 0; slot < vals.length; slot++)
+			if (vals[slot] != null)
+				fldVals.put(layout.fieldName(slot), vals[slot]);
 		for (int i = 0; i < primaryKey.getNumOfFlds(); i++)
 			fldVals.put(primaryKey.getField(i), primaryKey.getVal(i));
 		return fldVals;
 	}
 
+	/**
+	 * Estimates the number of bytes this record occupies in memory. The
+	 * estimation is only meant for cache accounting.
+	 * 
+	 * @return the estimated size in bytes
+	 */
+	public int estimateSize() {
+		int size = RECORD_OVERHEAD + SLOT_OVERHEAD * vals.length;
+		for (Constant val : vals)
+			if (val != null)
+				size += FIELD_OVERHEAD + val.size();
+		return size;
+	}
+
 	public long getSrcTxNum() {
 		return srcTxNum;
 	}
@@ -213,11 +312,13 @@ public class CachedRecord implements Record, Serializable {
 		}
 
 		// Other fields
-		for (Map.Entry<String, Constant> entry : nonKeyFldVals.entrySet()) {
-			sb.append(entry.getKey());
-			sb.append(": ");
-			sb.append(entry.getValue());
-			sb.append(", ");
+		for (int slot = 0; slot < vals.length; slot++) {
+			if (vals[slot] != null) {
+				sb.append(layout.fieldName(slot));
+				sb.append(": ");
+				sb.append(vals[slot]);
+				sb.append(", ");
+			}
 		}
 		sb.delete(sb.length() - 2, sb.length());
 		sb.append("}");
@@ -231,50 +332,109 @@ public class CachedRecord implements Record, Serializable {
 		if (obj == null || !(obj instanceof CachedRecord))
 			return false;
 		CachedRecord rec = (CachedRecord) obj;
-		return rec.primaryKey.equals(this.primaryKey) && rec.nonKeyFldVals.equals(this.nonKeyFldVals)
-				&& rec.srcTxNum == this.srcTxNum;
+		if (!rec.primaryKey.equals(this.primaryKey) || rec.srcTxNum != this.srcTxNum)
+			return false;
+
+		// The records of the same table share the layout, but their
+		// arrays may have different lengths.
+		int length = Math.max(vals.length, rec.vals.length);
+		for (int slot = 0; slot < length; slot++) {
+			Constant val = (slot < vals.length) ? vals[slot] : null;
+			Constant other = (slot < rec.vals.length) ? rec.vals[slot] : null;
+			if (val == null ? other != null : !val.equals(other))
+				return false;
+		}
+		return true;
 	}
 
 	@Override
 	public int hashCode() {
 		int hashCode = 17;
 		hashCode = 31 * hashCode + primaryKey.hashCode();
-		hashCode = 31 * hashCode + nonKeyFldVals.hashCode();
+		for (int slot = 0; slot < vals.length; slot++)
+			if (vals[slot] != null)
+				hashCode = 31 * hashCode + (slot ^ vals[slot].hashCode());
 		hashCode = 31 * hashCode + (int) (srcTxNum ^ (srcTxNum >>> 32));
 		return hashCode;
 	}
 	
+	private static boolean isDirty(long[] dirtyBits, int slot) {
+		int word = slot >>> 6;
+		return word < dirtyBits.length && (dirtyBits[word] & (1L << slot)) != 0;
+	}
+
+	private void markDirty(int slot) {
+		int word = slot >>> 6;
+		if (dirtyBits == null)
+			dirtyBits = new long[(vals.length + 63) >>> 6];
+		else if (word >= dirtyBits.length)
+			dirtyBits = Arrays.copyOf(dirtyBits, word + 1);
+		dirtyBits[word] |= 1L << slot;
+	}
+
+	private void clearDirty(int slot) {
+		int word = slot >>> 6;
+		if (dirtyBits != null && word < dirtyBits.length)
+			dirtyBits[word] &= ~(1L << slot);
+	}
+
+	private void copyOnWrite() {
+		if (isShared) {
+			vals = vals.clone();
+			if (dirtyBits != null)
+				dirtyBits = dirtyBits.clone();
+			isShared = false;
+		}
+	}
+
 	private void writeObject(ObjectOutputStream out) throws IOException {
 		out.defaultWriteObject();
-		out.writeInt(nonKeyFldVals.size());
+
+		int numFlds = 0;
+		for (Constant val : vals)
+			if (val != null)
+				numFlds++;
+		out.writeInt(numFlds);
 
 		// Write out all elements in the proper order
-		for (Map.Entry<String, Constant> entry : nonKeyFldVals.entrySet()) {
-			String fld = entry.getKey();
-			Constant val = entry.getValue();
+		for (int slot = 0; slot < vals.length; slot++) {
+			Constant val = vals[slot];
+			if (val == null)
+				continue;
 			byte[] bytes = val.asBytes();
-			out.writeObject(fld);
+			out.writeObject(layout.fieldName(slot));
 			out.writeInt(val.getType().getSqlType());
 			out.writeInt(val.getType().getArgument());
 			out.writeInt(bytes.length);
 			out.write(bytes);
 		}
+
+		// Slots are local to a machine, so the dirty fields are sent by name
+		List<String> dirtyFlds = getDirtyFldNames();
+		out.writeInt(dirtyFlds.size());
+		for (String fld : dirtyFlds)
+			out.writeObject(fld);
 	}
 
 	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
 		in.defaultReadObject();
-		int numFlds = in.readInt();
-		nonKeyFldVals = new HashMap<String, Constant>(numFlds);
+		layout = FieldLayout.forTable(primaryKey.getTableName());
+		vals = NO_VALUES;
 
-		// Read in all elements and rebuild the map
+		// Read in all elements and rebuild the array
+		int numFlds = in.readInt();
 		for (int i = 0; i < numFlds; i++) {
 			String fld = (String) in.readObject();
 			int sqlType = in.readInt();
 			int argument = in.readInt();
 			byte[] bytes = new byte[in.readInt()];
-			in.read(bytes);
+			in.readFully(bytes);
 			Constant val = Constant.newInstance(Type.newInstance(sqlType, argument), bytes);
-			nonKeyFldVals.put(fld, val);
+			addFldVal(fld, val);
 		}
+
+		int numDirtyFlds = in.readInt();
+		for (int i = 0; i < numDirtyFlds; i++)
+			markDirty(layout.slotOf((String) in.readObject()));
 	}
 }
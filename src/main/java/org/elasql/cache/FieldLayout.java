@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps the non-key fields of a table to slots of the value arrays in
+ * {@link CachedRecord}. A layout is shared by all the records of the same
+ * table. Slots are assigned on the first use of a field and never change, so
+ * a slot number can be resolved once and reused for all the records.
+ */
+public class FieldLayout {
+
+	private static final ConcurrentMap<String, FieldLayout> LAYOUTS =
+			new ConcurrentHashMap<String, FieldLayout>();
+
+	public static FieldLayout forTable(String tableName) {
+		FieldLayout layout = LAYOUTS.get(tableName);
+		if (layout == null) {
+			layout = new FieldLayout(tableName);
+			FieldLayout existing = LAYOUTS.putIfAbsent(tableName, layout);
+			if (existing != null)
+				layout = existing;
+		}
+		return layout;
+	}
+
+	private final String tableName;
+
+	// Both are replaced as a whole when a new field is added,
+	// so that readers never need to lock.
+	private volatile Map<String, Integer> slots = new HashMap<String, Integer>();
+	private volatile String[] fieldNames = new String[0];
+
+	private FieldLayout(String tableName) {
+		this.tableName = tableName;
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	/**
+	 * Returns the slot of the given field, or -1 if the field has never been
+	 * stored in a record of this table.
+	 *
+	 * @param fldName the name of the field
+	 * @return the slot of the field, or -1 if not found
+	 */
+	public int slotOf(String fldName) {
+		Integer slot = slots.get(fldName);
+		return (slot == null) ? -1 : slot;
+	}
+
+	public String fieldName(int slot) {
+		return fieldNames[slot];
+	}
+
+	public int numberOfSlots() {
+		return fieldNames.length;
+	}
+
+	int slotOrAssign(String fldName) {
+		Integer slot = slots.get(fldName);
+		if (slot != null)
+			return slot;
+
+		synchronized (this) {
+			slot = slots.get(fldName);
+			if (slot != null)
+				return slot;
+
+			slot = fieldNames.length;
+			Map<String, Integer> newSlots = new HashMap<String, Integer>(slots);
+			newSlots.put(fldName, slot);
+			String[] newNames = Arrays.copyOf(fieldNames, slot + 1);
+			newNames[slot] = fldName;
+
+			// Publish the names first, so that a reader who sees
+			// the slot can always find the name.
+			fieldNames = newNames;
+			slots = newSlots;
+			return slot;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return tableName + ": " + Arrays.toString(fieldNames);
+	}
+}
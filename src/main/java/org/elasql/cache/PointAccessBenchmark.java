@@ -0,0 +1,121 @@
+package org.elasql.cache;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.Connection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.elasql.sql.PrimaryKey;
+import org.elasql.sql.PrimaryKeyBuilder;
+import org.vanilladb.core.query.algebra.Plan;
+import org.vanilladb.core.query.algebra.SelectPlan;
+import org.vanilladb.core.query.algebra.SelectScan;
+import org.vanilladb.core.query.algebra.TablePlan;
+import org.vanilladb.core.query.algebra.index.IndexSelectPlan;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.ConstantRange;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.sql.VarcharConstant;
+import org.vanilladb.core.storage.metadata.index.IndexInfo;
+import org.vanilladb.core.storage.tx.Transaction;
+
+/**
+ * Compares the CPU time of a point read through the direct index path of
+ * {@link VanillaCoreCrud} with the one of the same read through the plans that
+ * {@link VanillaCoreCrud} used to build for every read: a {@link SelectPlan}
+ * with the predicate of the key over an {@link IndexSelectPlan}. It creates a
+ * database in the given directory.<br>
+ * <br>
+ * Usage: PointAccessBenchmark [db name] [# of records] [# of lookups]
+ */
+public class PointAccessBenchmark {
+	
+	private static final String TABLE_NAME = "point_bench";
+	private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+	
+	public static void main(String[] args) {
+		String dbName = (args.length > 0) ? args[0] : "point_access_bench";
+		int numOfRecords = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+		int numOfLookups = (args.length > 2) ? Integer.parseInt(args[2]) : 200000;
+		
+		VanillaDb.init(dbName);
+		load(numOfRecords);
+		
+		// Warm up both paths before measuring
+		lookup(numOfRecords, numOfLookups / 10, true);
+		lookup(numOfRecords, numOfLookups / 10, false);
+		
+		long planTime = lookup(numOfRecords, numOfLookups, false);
+		long directTime = lookup(numOfRecords, numOfLookups, true);
+		System.out.println(String.format("Through the select plans: %.2f us per lookup",
+				planTime / 1000.0 / numOfLookups));
+		System.out.println(String.format("Through the index directly: %.2f us per lookup",
+				directTime / 1000.0 / numOfLookups));
+	}
+	
+	private static void load(int numOfRecords) {
+		Transaction tx = VanillaDb.txMgr().newTransaction(Connection.TRANSACTION_SERIALIZABLE, false);
+		VanillaDb.newPlanner().executeUpdate("CREATE TABLE " + TABLE_NAME
+				+ " (pb_id INT, pb_val INT, pb_data VARCHAR(100))", tx);
+		VanillaDb.newPlanner().executeUpdate("CREATE INDEX idx_pb_id ON " + TABLE_NAME
+				+ " (pb_id)", tx);
+		
+		for (int id = 0; id < numOfRecords; id++) {
+			PrimaryKey key = newKey(id);
+			CachedRecord rec = new CachedRecord(key);
+			rec.addFldVal("pb_val", new IntegerConstant(id * 7));
+			rec.addFldVal("pb_data", new VarcharConstant("data-" + id));
+			VanillaCoreCrud.insert(key, rec, tx);
+		}
+		tx.commit();
+	}
+	
+	/**
+	 * @return the CPU time in nanoseconds
+	 */
+	private static long lookup(int numOfRecords, int numOfLookups, boolean isDirect) {
+		Random random = new Random(12345);
+		Transaction tx = VanillaDb.txMgr().newTransaction(Connection.TRANSACTION_SERIALIZABLE, true);
+		long startTime = THREAD_BEAN.getCurrentThreadCpuTime();
+		
+		for (int i = 0; i < numOfLookups; i++) {
+			int id = random.nextInt(numOfRecords);
+			PrimaryKey key = newKey(id);
+			CachedRecord rec = isDirect ? VanillaCoreCrud.read(key, tx) : readThroughSelectPlan(key, tx);
+			if (rec == null)
+				throw new RuntimeException("cannot find " + id);
+		}
+		
+		long time = THREAD_BEAN.getCurrentThreadCpuTime() - startTime;
+		tx.commit();
+		return time;
+	}
+	
+	private static CachedRecord readThroughSelectPlan(PrimaryKey key, Transaction tx) {
+		TablePlan tp = new TablePlan(TABLE_NAME, tx);
+		IndexInfo ii = VanillaDb.catalogMgr().getIndexInfo(TABLE_NAME, "pb_id", tx).get(0);
+		Map<String, ConstantRange> ranges = new HashMap<String, ConstantRange>();
+		ranges.put("pb_id", ConstantRange.newInstance(key.getVal("pb_id")));
+		Plan p = new SelectPlan(new IndexSelectPlan(tp, ii, ranges, tx), key.toPredicate());
+		
+		SelectScan s = (SelectScan) p.open();
+		s.beforeFirst();
+		CachedRecord rec = null;
+		if (s.next()) {
+			rec = new CachedRecord(key);
+			for (String fld : tp.schema().fields())
+				rec.addFldVal(fld, s.getVal(fld));
+		}
+		s.close();
+		tx.endStatement();
+		return rec;
+	}
+	
+	private static PrimaryKey newKey(int id) {
+		PrimaryKeyBuilder builder = new PrimaryKeyBuilder(TABLE_NAME);
+		builder.addFldVal("pb_id", new IntegerConstant(id));
+		return builder.build();
+	}
+}
@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 elasql.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.elasql.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasql.sql.PrimaryKey;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.ConstantRange;
+import org.vanilladb.core.storage.metadata.TableInfo;
+import org.vanilladb.core.storage.metadata.index.IndexInfo;
+import org.vanilladb.core.storage.tx.Transaction;
+
+/**
+ * The resolved access path of a table: its {@link TableInfo}, schema fields
+ * and indexes. The catalog is only consulted the first time a table is
+ * accessed, so that the point reads and writes of {@link VanillaCoreCrud} do
+ * not go through the catalog and the planner on every call.<br>
+ * <br>
+ * The paths are discarded by {@link AccessPathUpdatePlanner} whenever a table
+ * or an index is created or dropped. If the catalog is changed in any other
+ * way, the path of the table must be invalidated manually.
+ */
+class TableAccessPath {
+
+	private static final ConcurrentMap<String, TableAccessPath> PATHS =
+			new ConcurrentHashMap<String, TableAccessPath>();
+
+	static TableAccessPath forTable(String tblName, Transaction tx) {
+		TableAccessPath path = PATHS.get(tblName);
+		if (path == null) {
+			path = new TableAccessPath(tblName, tx);
+			TableAccessPath existing = PATHS.putIfAbsent(tblName, path);
+			if (existing != null)
+				path = existing;
+		}
+		return path;
+	}
+
+	static void invalidate(String tblName) {
+		PATHS.remove(tblName);
+	}
+
+	static void invalidateAll() {
+		PATHS.clear();
+	}
+
+	/**
+	 * The index chosen for looking up records by a key.
+	 */
+	static class IndexChoice {
+		static final IndexChoice NONE = new IndexChoice(null, false, false);
+
+		final IndexInfo index;
+		// If all the fields of the index are in the key, the index can be
+		// searched with the key directly.
+		final boolean isCoveredByKey;
+		// If the index has exactly the fields of the key, every entry found
+		// by the key belongs to the key, so the records need not be checked.
+		final boolean isExactMatch;
+
+		IndexChoice(IndexInfo index, boolean isCoveredByKey, boolean isExactMatch) {
+			this.index = index;
+			this.isCoveredByKey = isCoveredByKey;
+			this.isExactMatch = isExactMatch;
+		}
+	}
+
+	private final String tblName;
+	private final TableInfo tableInfo;
+	private final String[] fields;
+	private final Map<String, List<IndexInfo>> indexesByField;
+	private final List<IndexInfo> allIndexes;
+
+	// Field names of a key -> the best index for the key
+	private final ConcurrentMap<String, IndexChoice> bestIndexes =
+			new ConcurrentHashMap<String, IndexChoice>();
+
+	private TableAccessPath(String tblName, Transaction tx) {
+		this.tblName = tblName;
+		this.tableInfo = VanillaDb.catalogMgr().getTableInfo(tblName, tx);
+		if (tableInfo == null)
+			throw new RuntimeException("cannot find the table " + tblName);
+		this.fields = tableInfo.schema().fields().toArray(new String[0]);
+
+		// Some indexes are on multiple fields, so they are
+		// de-duplicated by the names.
+		Map<String, IndexInfo> indexesByName = new LinkedHashMap<String, IndexInfo>();
+		this.indexesByField = new HashMap<String, List<IndexInfo>>();
+		for (String fld : fields) {
+			List<IndexInfo> iis = VanillaDb.catalogMgr().getIndexInfo(tblName, fld, tx);
+			if (iis == null || iis.isEmpty()) {
+				indexesByField.put(fld, Collections.<IndexInfo>emptyList());
+				continue;
+			}
+
+			List<IndexInfo> fldIndexes = new ArrayList<IndexInfo>(iis.size());
+			for (IndexInfo ii : iis) {
+				IndexInfo existing = indexesByName.get(ii.indexName());
+				if (existing == null) {
+					indexesByName.put(ii.indexName(), ii);
+					existing = ii;
+				}
+				fldIndexes.add(existing);
+			}
+			indexesByField.put(fld, Collections.unmodifiableList(fldIndexes));
+		}
+		this.allIndexes = Collections.unmodifiableList(new ArrayList<IndexInfo>(indexesByName.values()));
+	}
+
+	TableInfo tableInfo() {
+		return tableInfo;
+	}
+
+	String[] fields() {
+		return fields;
+	}
+
+	List<IndexInfo> indexesOn(String fldName) {
+		List<IndexInfo> iis = indexesByField.get(fldName);
+		return (iis == null) ? Collections.<IndexInfo>emptyList() : iis;
+	}
+
+	List<IndexInfo> allIndexes() {
+		return allIndexes;
+	}
+
+	/**
+	 * Returns the index that matches the most fields of the given key. The
+	 * choice is remembered for the keys with the same fields.
+	 */
+	IndexChoice bestIndexFor(PrimaryKey key) {
+		String signature = signatureOf(key);
+		IndexChoice choice = bestIndexes.get(signature);
+		if (choice == null) {
+			choice = chooseIndex(key, Collections.<String>emptySet());
+			bestIndexes.putIfAbsent(signature, choice);
+		}
+		return choice;
+	}
+
+	/**
+	 * Returns the index that matches the most fields of the given key and does
+	 * not contain any of the excluded fields.
+	 */
+	IndexChoice bestIndexFor(PrimaryKey key, Collection<String> excludedFields) {
+		if (excludedFields.isEmpty())
+			return bestIndexFor(key);
+		return chooseIndex(key, excludedFields);
+	}
+
+	/**
+	 * Makes the search ranges for an {@link
+	 * org.vanilladb.core.query.algebra.index.IndexSelectPlan} on the given index.
+	 */
+	static Map<String, ConstantRange> searchRanges(IndexInfo ii, PrimaryKey key) {
+		Map<String, ConstantRange> ranges = new HashMap<String, ConstantRange>();
+		for (String fieldName : ii.fieldNames()) {
+			Constant val = key.getVal(fieldName);
+			if (val != null)
+				ranges.put(fieldName, ConstantRange.newInstance(val));
+		}
+		return ranges;
+	}
+
+	private IndexChoice chooseIndex(PrimaryKey key, Collection<String> excludedFields) {
+		int matchedCount = 0;
+		IndexInfo bestIndex = null;
+
+		for (int i = 0; i < key.getNumOfFlds(); i++) {
+			if (excludedFields.contains(key.getField(i)))
+				continue;
+
+			for (IndexInfo ii : indexesOn(key.getField(i))) {
+				if (ii.fieldNames().size() < matchedCount)
+					continue;
+
+				int matched = 0;
+				boolean ignored = false;
+				for (String fldName : ii.fieldNames()) {
+					if (excludedFields.contains(fldName)) {
+						ignored = true;
+						break;
+					}
+					if (key.containsField(fldName))
+						matched++;
+				}
+
+				if (!ignored && matched > matchedCount) {
+					matchedCount = matched;
+					bestIndex = ii;
+				}
+			}
+		}
+
+		if (bestIndex == null)
+			return IndexChoice.NONE;
+		boolean isCovered = (matchedCount == bestIndex.fieldNames().size());
+		return new IndexChoice(bestIndex, isCovered, isCovered && matchedCount == key.getNumOfFlds());
+	}
+
+	private static String signatureOf(PrimaryKey key) {
+		if (key.getNumOfFlds() == 1)
+			return key.getField(0);
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < key.getNumOfFlds(); i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(key.getField(i));
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "access path of " + tblName + " (" + allIndexes.size() + " indexes)";
+	}
+}
@@ -20,14 +20,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
-import org.elasql.server.Elasql;
+import org.elasql.cache.TableAccessPath.IndexChoice;
 import org.elasql.sql.PrimaryKey;
-import org.elasql.sql.PrimaryKeyBuilder;
 import org.elasql.storage.tx.concurrency.ConservativeOrderedCcMgr;
 import org.vanilladb.core.query.algebra.Plan;
 import org.vanilladb.core.query.algebra.SelectPlan;
@@ -35,45 +36,70 @@ import org.vanilladb.core.query.algebra.SelectScan;
 import org.vanilladb.core.query.algebra.TablePlan;
 import org.vanilladb.core.query.algebra.UpdateScan;
 import org.vanilladb.core.query.algebra.index.IndexSelectPlan;
-import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.sql.Constant;
-import org.vanilladb.core.sql.ConstantRange;
-import org.vanilladb.core.sql.Schema;
+import org.vanilladb.core.sql.Record;
 import org.vanilladb.core.storage.index.Index;
 import org.vanilladb.core.storage.index.SearchKey;
 import org.vanilladb.core.storage.index.SearchRange;
-import org.vanilladb.core.storage.metadata.TableInfo;
 import org.vanilladb.core.storage.metadata.index.IndexInfo;
 import org.vanilladb.core.storage.record.RecordFile;
 import org.vanilladb.core.storage.record.RecordId;
 import org.vanilladb.core.storage.tx.Transaction;
 
 /**
- * The CURD interfaces to VanillaCore.
+ * The CURD interfaces to VanillaCore.<br>
+ * <br>
+ * The table info and the indexes of each table are resolved once and kept in
+ * a {@link TableAccessPath}. When a key contains all the fields of an index,
+ * the record is found through the index and the record file directly
+ * (PrimaryKey -&gt; SearchKey -&gt; RecordId -&gt; record), without building a
+ * query plan or a predicate. If the index is exactly on the fields of the key,
+ * the records found are not even checked against the key. Otherwise, a plan
+ * is built with the cached index.
  */
 public class VanillaCoreCrud {
+	
+	/**
+	 * Discards the cached table info and indexes of the given table. This must
+	 * be called after the schema or the indexes of the table are changed.
+	 * 
+	 * @param tblName the name of the table
+	 */
+	public static void invalidateAccessPath(String tblName) {
+		TableAccessPath.invalidate(tblName);
+	}
 
 	public static CachedRecord read(PrimaryKey key, Transaction tx) {
-		String tblName = key.getTableName();
-		TablePlan tp = new TablePlan(tblName, tx);
-		Plan selectPlan = null;
+		TableAccessPath path = TableAccessPath.forTable(key.getTableName(), tx);
+		IndexChoice choice = path.bestIndexFor(key);
+		CachedRecord rec = null;
 		
-		// Create a IndexSelectPlan if there is matching index in the predicate
-		selectPlan = selectByBestMatchedIndex(tblName, tp, key, tx);
-		if (selectPlan == null)
-			selectPlan = new SelectPlan(tp, key.toPredicate());
-		else
-			selectPlan = new SelectPlan(selectPlan, key.toPredicate());
+		if (choice.isCoveredByKey) {
+			RecordFile rf = path.tableInfo().open(tx, false);
+			RecordId rid = searchRecordId(key, choice, rf, tx);
+			if (rid != null) {
+				rf.moveToRecordId(rid);
+				rec = newRecord(key, path, rf);
+			}
+			rf.close();
+			tx.endStatement();
+			return rec;
+		}
 		
-		SelectScan s = (SelectScan) selectPlan.open();
-		s.beforeFirst();
+		return readThroughPlan(key, path, choice, tx);
+	}
+	
+	/**
+	 * Reads a record with a select plan and the key predicate, which is the
+	 * path for the keys that can not be searched with an index directly.
+	 */
+	private static CachedRecord readThroughPlan(PrimaryKey key, TableAccessPath path,
+			IndexChoice choice, Transaction tx) {
 		CachedRecord rec = null;
-
-		if (s.next()) {
-			rec = new CachedRecord(key);
-			for (String fld : tp.schema().fields())
-				rec.addFldVal(fld, s.getVal(fld));
-		}
+		SelectScan s = (SelectScan) newSelectPlan(key, path, choice, tx).open();
+		s.beforeFirst();
+		if (s.next())
+			rec = newRecord(key, path, s);
 		s.close();
 		
 		tx.endStatement();
@@ -81,192 +107,198 @@ public class VanillaCoreCrud {
 		return rec;
 	}
 	
+	/**
+	 * Reads the records of the given keys, which may be in different tables.
+	 * The keys of a table are searched in the order of their search keys with
+	 * a single index handle, and the records found are then fetched in the
+	 * order of their record ids.
+	 */
 	public static Map<PrimaryKey, CachedRecord> batchRead(Set<PrimaryKey> keys, Transaction tx) {
-		Map<PrimaryKey, CachedRecord> recordMap = new HashMap<PrimaryKey, CachedRecord>();
-		ConservativeOrderedCcMgr ccMgr = (ConservativeOrderedCcMgr) tx.concurrencyMgr();
-
-		// Check if all record keys are in the same table
-		PrimaryKey representative = null;
-		String tblName = null;
+		Map<PrimaryKey, CachedRecord> recordMap = new HashMap<PrimaryKey, CachedRecord>(keys.size() * 2);
+		
+		// Group the keys by tables
+		Map<String, List<PrimaryKey>> keysByTable = new HashMap<String, List<PrimaryKey>>();
 		for (PrimaryKey key : keys) {
-			if (representative == null) {
-				representative = key;
-				tblName = representative.getTableName();
-			} else if (!tblName.equals(key.getTableName()))
-				throw new RuntimeException("request keys are not in the same table");
-		}
-
-		// Open an index
-		IndexInfo ii = null;
-
-		// We only need one index
-		for (int i = 0; i < representative.getNumOfFlds(); i++) {
-			String fldName = representative.getField(i);
-			List<IndexInfo> iis = Elasql.catalogMgr().getIndexInfo(tblName, fldName, tx);
-			if (iis != null && iis.size() > 0) {
-				ii = iis.get(0);
-				break;
+			List<PrimaryKey> tableKeys = keysByTable.get(key.getTableName());
+			if (tableKeys == null) {
+				tableKeys = new ArrayList<PrimaryKey>();
+				keysByTable.put(key.getTableName(), tableKeys);
 			}
+			tableKeys.add(key);
 		}
 		
-		if (ii == null)
-			throw new RuntimeException("cannot find an index for " + representative);
-
-		// Search record ids for record keys
-		// Map<RecordId, Set<RecordKey>> ridToSearchKey = new HashMap<RecordId,
-		// Set<RecordKey>>();
-		Set<RecordId> searchRidSet = new HashSet<RecordId>(50000);
-		List<RecordId> searchRids = new ArrayList<RecordId>();
-		RecordId rid = null;
+		// The keys that can not be searched with an index
+		List<PrimaryKey> unindexedKeys = new ArrayList<PrimaryKey>();
+		for (Map.Entry<String, List<PrimaryKey>> entry : keysByTable.entrySet()) {
+			TableAccessPath path = TableAccessPath.forTable(entry.getKey(), tx);
+			batchRead(path, entry.getValue(), recordMap, unindexedKeys, tx);
+		}
+		tx.endStatement();
+		
+		for (PrimaryKey key : unindexedKeys) {
+			CachedRecord rec = read(key, tx);
+			if (rec == null)
+				throw new RuntimeException("Cannot find a record for " + key);
+			recordMap.put(key, rec);
+		}
 
+		return recordMap;
+	}
+	
+	private static void batchRead(TableAccessPath path, List<PrimaryKey> keys,
+			Map<PrimaryKey, CachedRecord> recordMap, List<PrimaryKey> unindexedKeys,
+			Transaction tx) {
+		// Group the keys by the indexes used to search them
+		Map<IndexChoice, List<PrimaryKey>> keysByIndex = new LinkedHashMap<IndexChoice, List<PrimaryKey>>();
 		for (PrimaryKey key : keys) {
-			SearchKey searchKey = key.toSearchKey(ii.fieldNames());
-			Index index = ii.open(tx);
-			index.beforeFirst(new SearchRange(searchKey));
-
-			if (index.next()) {
-				rid = index.getDataRecordId();
-				searchRidSet.add(rid);
-			} else {
-				throw new RuntimeException("Cannot find a record for " + key);
+			IndexChoice choice = path.bestIndexFor(key);
+			if (!choice.isCoveredByKey) {
+				unindexedKeys.add(key);
+				continue;
 			}
-
-			index.close();
-			// If we did not release index locks here, this search would cause deadlock.
-			ccMgr.releaseIndexLocks();
+			
+			List<PrimaryKey> indexKeys = keysByIndex.get(choice);
+			if (indexKeys == null) {
+				indexKeys = new ArrayList<PrimaryKey>();
+				keysByIndex.put(choice, indexKeys);
+			}
+			indexKeys.add(key);
+		}
+		if (keysByIndex.isEmpty())
+			return;
+		
+		// Search the record ids and remember which keys they were found by
+		Map<RecordId, List<PrimaryKey>> ridToKeys = new HashMap<RecordId, List<PrimaryKey>>(keys.size() * 2);
+		boolean allExact = true;
+		for (Map.Entry<IndexChoice, List<PrimaryKey>> entry : keysByIndex.entrySet()) {
+			searchRecordIds(entry.getKey(), entry.getValue(), ridToKeys, tx);
+			allExact &= entry.getKey().isExactMatch;
 		}
-		searchRids.addAll(searchRidSet);
 
 		// Sort the record ids
+		List<RecordId> searchRids = new ArrayList<RecordId>(ridToKeys.keySet());
 		Collections.sort(searchRids);
 
-		// Open a record file
-		TableInfo ti = VanillaDb.catalogMgr().getTableInfo(tblName, tx);
-		Schema sch = ti.schema();
-		RecordFile recordFile = ti.open(tx, false);
-		CachedRecord record = null;
-
-		for (RecordId id : searchRids) {
-
-			// Skip the record that has been found
-			// if (recordMap.containsKey(searchKey))
-			// continue;
-
-			// Move to the record
-			recordFile.moveToRecordId(id);
+		// Fetch the records in the order of the record ids
+		RecordFile recordFile = path.tableInfo().open(tx, false);
+		for (RecordId rid : searchRids) {
+			recordFile.moveToRecordId(rid);
 			
-			// Construct a RecordKey
-			PrimaryKeyBuilder keyBuilder = new PrimaryKeyBuilder(representative.getTableName());
-			for (int i = 0; i < representative.getNumOfFlds(); i++) {
-				String fldName = representative.getField(i);
-				keyBuilder.addFldVal(fldName, recordFile.getVal(fldName));
+			for (PrimaryKey key : ridToKeys.get(rid)) {
+				if (recordMap.containsKey(key))
+					continue;
+				
+				// An index not on exactly the key fields may find
+				// the records of other keys
+				if (!allExact && !matches(key, recordFile))
+					continue;
+				
+				CachedRecord record = newRecord(key, path, recordFile);
+				record.setSrcTxNum(tx.getTransactionNumber());
+				recordMap.put(key, record);
 			}
-			PrimaryKey targetKey = keyBuilder.build();
-			
-			// Check if the key is included
-			if (keys.contains(targetKey) && !recordMap.containsKey(targetKey)) {
+		}
+		recordFile.close();
+		
+		for (List<PrimaryKey> indexKeys : keysByIndex.values())
+			for (PrimaryKey key : indexKeys)
+				if (!recordMap.containsKey(key))
+					throw new RuntimeException("Cannot find a record for " + key);
+	}
+	
+	/**
+	 * Searches the record ids of the given keys with one handle of the chosen
+	 * index. The keys are searched in the order of their search keys, so that
+	 * the index is scanned forward.
+	 */
+	private static void searchRecordIds(IndexChoice choice, List<PrimaryKey> keys,
+			Map<RecordId, List<PrimaryKey>> ridToKeys, Transaction tx) {
+		ConservativeOrderedCcMgr ccMgr = (ConservativeOrderedCcMgr) tx.concurrencyMgr();
+		IndexInfo ii = choice.index;
+		List<String> idxFlds = ii.fieldNames();
+		
+		List<KeySearch> searches = new ArrayList<KeySearch>(keys.size());
+		for (PrimaryKey key : keys)
+			searches.add(new KeySearch(key, key.toSearchKey(idxFlds)));
+		Collections.sort(searches);
 
-				// Construct a CachedRecord
-				record = new CachedRecord(targetKey);
-				for (String fld : sch.fields()) {
-					if (!targetKey.containsField(fld)) {
-						record.addFldVal(fld, recordFile.getVal(fld));
-					}
+		Index index = ii.open(tx);
+		for (KeySearch search : searches) {
+			index.beforeFirst(new SearchRange(search.searchKey));
+			while (index.next()) {
+				RecordId rid = index.getDataRecordId();
+				List<PrimaryKey> ridKeys = ridToKeys.get(rid);
+				if (ridKeys == null) {
+					ridKeys = new ArrayList<PrimaryKey>(1);
+					ridToKeys.put(rid, ridKeys);
 				}
-				record.setSrcTxNum(tx.getTransactionNumber());
-
-				// Put the record to the map
-				recordMap.put(targetKey, record);
-
+				ridKeys.add(search.key);
+				
+				if (choice.isExactMatch)
+					break;
 			}
+
+			// If we did not release index locks here, this search would cause deadlock.
+			ccMgr.releaseIndexLocks();
 		}
-		recordFile.close();
+		index.close();
+	}
+	
+	private static class KeySearch implements Comparable<KeySearch> {
+		final PrimaryKey key;
+		final SearchKey searchKey;
 		
-		tx.endStatement();
+		KeySearch(PrimaryKey key, SearchKey searchKey) {
+			this.key = key;
+			this.searchKey = searchKey;
+		}
 
-		return recordMap;
+		@Override
+		public int compareTo(KeySearch other) {
+			return searchKey.compareTo(other.searchKey);
+		}
 	}
 
 	public static boolean update(PrimaryKey key, CachedRecord rec, Transaction tx) {
 		boolean found = false;
-		String tblName = key.getTableName();
+		List<String> dirtyFlds = rec.getDirtyFldNames();
 		
 //		Timer.getLocalTimer().startComponentTimer("Update to table " + tblName);
 		
-		TablePlan tp = new TablePlan(tblName, tx);
-		Plan selectPlan = null;
+		TableAccessPath path = TableAccessPath.forTable(key.getTableName(), tx);
 		
-		// Create a IndexSelectPlan if there is matching index in the predicate
-		selectPlan = selectByBestMatchedIndex(tblName, tp, key, tx, rec.getDirtyFldNames());
-		if (selectPlan == null)
-			selectPlan = new SelectPlan(tp, key.toPredicate());
-		else
-			selectPlan = new SelectPlan(selectPlan, key.toPredicate());
+		// Do not search with the indexes being modified
+		IndexChoice choice = path.bestIndexFor(key, dirtyFlds);
 		
 		// Open all indexes associate with target fields
-		Set<Index> modifiedIndexes = new HashSet<Index>();
-		for (String fieldName : rec.getDirtyFldNames()) {
-			List<IndexInfo> iiList = VanillaDb.catalogMgr().getIndexInfo(tblName, fieldName, tx);
-			for (IndexInfo ii : iiList)
-				modifiedIndexes.add(ii.open(tx));
-		}
+		Set<IndexInfo> modifiedIndexInfos = new LinkedHashSet<IndexInfo>();
+		for (String fieldName : dirtyFlds)
+			modifiedIndexInfos.addAll(path.indexesOn(fieldName));
+		List<Index> modifiedIndexes = new ArrayList<Index>(modifiedIndexInfos.size());
+		for (IndexInfo ii : modifiedIndexInfos)
+			modifiedIndexes.add(ii.open(tx));
 		
-		// Open the scan
-		UpdateScan s = (UpdateScan) selectPlan.open();
-		s.beforeFirst();
-		while (s.next()) {
-			found = true;
-			
-			// Construct a mapping from field names to values
-			Map<String, Constant> oldValMap = new HashMap<String, Constant>();
-			Map<String, Constant> newValMap = new HashMap<String, Constant>();
-			for (String fieldName : rec.getDirtyFldNames()) {
-				Constant oldVal = s.getVal(fieldName);
-				Constant newVal = rec.getVal(fieldName);
-				
-				oldValMap.put(fieldName, oldVal);
-				newValMap.put(fieldName, newVal);
-				s.setVal(fieldName, newVal);
+		if (choice.isCoveredByKey) {
+			RecordFile rf = path.tableInfo().open(tx, true);
+			for (RecordId rid : searchRecordIds(key, choice, rf, tx)) {
+				found = true;
+				rf.moveToRecordId(rid);
+				updateRecord(rf, rid, rec, dirtyFlds, modifiedIndexes);
 			}
-			
-			RecordId rid = s.getRecordId();
-			
-			// Update the indexes
-			for (Index index : modifiedIndexes) {
-				// Construct a SearchKey for the old value
-				Map<String, Constant> fldValMap = new HashMap<String, Constant>();
-				for (String fldName : index.getIndexInfo().fieldNames()) {
-					Constant oldVal = oldValMap.get(fldName);
-					if (oldVal == null)
-						oldVal = s.getVal(fldName);
-					fldValMap.put(fldName, oldVal);
-				}
-				SearchKey oldKey = new SearchKey(index.getIndexInfo().fieldNames(), fldValMap);
-				
-				// Delete the old value from the index
-				index.delete(oldKey, rid, true);
-				
-				// Construct a SearchKey for the new value
-				fldValMap = new HashMap<String, Constant>();
-				for (String fldName : index.getIndexInfo().fieldNames()) {
-					Constant newVal = newValMap.get(fldName);
-					if (newVal == null)
-						newVal = s.getVal(fldName);
-					fldValMap.put(fldName, newVal);
-				}
-				SearchKey newKey = new SearchKey(index.getIndexInfo().fieldNames(), fldValMap);
-				
-				// Insert the new value to the index
-				index.insert(newKey, rid, true);
-				
-				index.close();
+			rf.close();
+		} else {
+			UpdateScan s = (UpdateScan) newSelectPlan(key, path, choice, tx).open();
+			s.beforeFirst();
+			while (s.next()) {
+				found = true;
+				updateRecord(s, s.getRecordId(), rec, dirtyFlds, modifiedIndexes);
 			}
+			s.close();
 		}
 		
-		// Close opened indexes and the record file
+		// Close opened indexes
 		for (Index index : modifiedIndexes)
 			index.close();
-		s.close();
 		
 		tx.endStatement();
 //		Timer.getLocalTimer().stopComponentTimer("Update to table " + tblName);
@@ -278,31 +310,30 @@ public class VanillaCoreCrud {
 	}
 
 	public static void insert(PrimaryKey key, CachedRecord rec, Transaction tx) {
-		String tblname = key.getTableName();
+		TableAccessPath path = TableAccessPath.forTable(key.getTableName(), tx);
 		
 //		Timer.getLocalTimer().startComponentTimer("Insert to table " + tblname);
-		
-		Plan p = new TablePlan(tblname, tx);
 
 		// Insert the record into the record file
-		UpdateScan s = (UpdateScan) p.open();
-		s.insert();
+		RecordFile rf = path.tableInfo().open(tx, true);
+		rf.insert();
 		for (String fldName : rec.getFldNames())
-			s.setVal(fldName, rec.getVal(fldName));
-		RecordId rid = s.getRecordId();
-		s.close();
+			rf.setVal(fldName, rec.getVal(fldName));
+		RecordId rid = rf.currentRecordId();
+		rf.close();
 		
 		// Insert the record to all corresponding indexes
-		Set<IndexInfo> indexes = new HashSet<IndexInfo>();
-		for (String fldname : rec.getFldNames()) {
-			List<IndexInfo> iis = VanillaDb.catalogMgr().getIndexInfo(tblname, fldname, tx);
-			indexes.addAll(iis);
-		}
+		Set<IndexInfo> indexes = new LinkedHashSet<IndexInfo>();
+		for (String fldname : rec.getFldNames())
+			indexes.addAll(path.indexesOn(fldname));
 		
-		for (IndexInfo ii : indexes) {
-			Index idx = ii.open(tx);
-			idx.insert(new SearchKey(ii.fieldNames(), rec.toFldValMap()), rid, true);
-			idx.close();
+		if (!indexes.isEmpty()) {
+			Map<String, Constant> fldValMap = rec.toFldValMap();
+			for (IndexInfo ii : indexes) {
+				Index idx = ii.open(tx);
+				idx.insert(new SearchKey(ii.fieldNames(), fldValMap), rid, true);
+				idx.close();
+			}
 		}
 		
 		tx.endStatement();
@@ -313,66 +344,57 @@ public class VanillaCoreCrud {
 	}
 
 	public static void delete(PrimaryKey key, Transaction tx) {
-		String tblName = key.getTableName();
-		TablePlan tp = new TablePlan(tblName, tx);
-		Plan selectPlan = null;
-		
-		// Create a IndexSelectPlan if there is matching index in the predicate
-		boolean usingIndex = false;
-		selectPlan = selectByBestMatchedIndex(tblName, tp, key, tx);
-		if (selectPlan == null)
-			selectPlan = new SelectPlan(tp, key.toPredicate());
-		else {
-			selectPlan = new SelectPlan(selectPlan, key.toPredicate());
-			usingIndex = true;
-		}
+		TableAccessPath path = TableAccessPath.forTable(key.getTableName(), tx);
+		IndexChoice choice = path.bestIndexFor(key);
 		
-		// Retrieve all indexes
-		List<IndexInfo> allIndexes = new LinkedList<IndexInfo>();
-		Set<String> indexedFlds = VanillaDb.catalogMgr().getIndexedFields(tblName, tx);
+		// Open every index once for all the deleted records
+		List<IndexInfo> allIndexes = path.allIndexes();
+		List<Index> indexes = new ArrayList<Index>(allIndexes.size());
+		for (IndexInfo ii : allIndexes)
+			indexes.add(ii.open(tx));
 		
-		for (String indexedFld : indexedFlds) {
-			List<IndexInfo> iis = VanillaDb.catalogMgr().getIndexInfo(tblName, indexedFld, tx);
-			allIndexes.addAll(iis);
-		}
-		
-		// Open the scan
-		UpdateScan s = (UpdateScan) selectPlan.open();
-		s.beforeFirst();
-		while (s.next()) {
-			RecordId rid = s.getRecordId();
-			
-			// Delete the record from every index
-			for (IndexInfo ii : allIndexes) {
-				// Construct a key-value map
-				Map<String, Constant> fldValMap = new HashMap<String, Constant>();
-				for (String fldName : ii.fieldNames())
-					fldValMap.put(fldName, s.getVal(fldName));
-				SearchKey searchKey = new SearchKey(ii.fieldNames(), fldValMap);
-				
-				// Delete from the index
-				Index index = ii.open(tx);
-				index.delete(searchKey, rid, true);
-				index.close();
+		if (choice.isCoveredByKey) {
+			// The record ids are collected before deleting,
+			// so the index scan is not affected by the deletion
+			RecordFile rf = path.tableInfo().open(tx, true);
+			for (RecordId rid : searchRecordIds(key, choice, rf, tx)) {
+				rf.moveToRecordId(rid);
+				deleteFromIndexes(rf, rid, indexes);
+				rf.delete();
 			}
+			rf.close();
+		} else {
+			Plan selectPlan = newSelectPlan(key, path, choice, tx);
+			boolean usingIndex = (choice.index != null);
 			
-			// Delete the record from the record file
-			s.delete();
-
-			/*
-			 * Re-open the index select scan to ensure the correctness of
-			 * next(). E.g., index block before delete the current slot ^:
-			 * [^5,5,6]. After the deletion: [^5,6]. When calling next() of
-			 * index select scan, current slot pointer will move forward,
-			 * [5,^6].
-			 */
-			if (usingIndex) {
-				s.close();
-				s = (UpdateScan) selectPlan.open();
-				s.beforeFirst();
+			// Open the scan
+			UpdateScan s = (UpdateScan) selectPlan.open();
+			s.beforeFirst();
+			while (s.next()) {
+				// Delete the record from every index
+				deleteFromIndexes(s, s.getRecordId(), indexes);
+				
+				// Delete the record from the record file
+				s.delete();
+	
+				/*
+				 * Re-open the index select scan to ensure the correctness of
+				 * next(). E.g., index block before delete the current slot ^:
+				 * [^5,5,6]. After the deletion: [^5,6]. When calling next() of
+				 * index select scan, current slot pointer will move forward,
+				 * [5,^6].
+				 */
+				if (usingIndex) {
+					s.close();
+					s = (UpdateScan) selectPlan.open();
+					s.beforeFirst();
+				}
 			}
+			s.close();
 		}
-		s.close();
+		
+		for (Index index : indexes)
+			index.close();
 		
 		tx.endStatement();
 
@@ -380,76 +402,324 @@ public class VanillaCoreCrud {
 		// VanillaDdDb.statMgr().countRecordUpdates(tblname, count);
 	}
 	
-	private static IndexSelectPlan selectByBestMatchedIndex(String tblName,
-			TablePlan tablePlan, PrimaryKey key, Transaction tx) {
-
-		// Look up candidate indexes
-		Set<IndexInfo> candidates = new HashSet<IndexInfo>();
-		for (int i = 0; i < key.getNumOfFlds(); i++) {
-			List<IndexInfo> iis = VanillaDb.catalogMgr().getIndexInfo(tblName, key.getField(i), tx);
-			candidates.addAll(iis);
+	/**
+	 * Writes the given records to the local storage in one pass. Each record
+	 * is deleted, inserted or updated according to its flags, and the clean
+	 * records are skipped.<br>
+	 * <br>
+	 * The writes are grouped by tables. For each table, the record file and
+	 * the affected indexes are opened only once. The records to be deleted or
+	 * updated are located first, and are then modified in the order of their
+	 * record ids. The inserted records are appended at last.
+	 * 
+	 * @param records the records to write
+	 * @param tx the transaction writing the records
+	 * @return the keys of the updated records that can not be found
+	 */
+	public static Set<PrimaryKey> batchWrite(Map<PrimaryKey, CachedRecord> records, Transaction tx) {
+		Set<PrimaryKey> notFoundKeys = new HashSet<PrimaryKey>();
+		
+		// Group the writes by tables. The tables are written in the order of
+		// their names, so that the storage is modified in the same order
+		// no matter how the records are given.
+		Map<String, List<PrimaryKey>> keysByTable = new TreeMap<String, List<PrimaryKey>>();
+		for (Map.Entry<PrimaryKey, CachedRecord> entry : records.entrySet()) {
+			CachedRecord rec = entry.getValue();
+			if (!rec.isDeleted() && !rec.isNewInserted() && !rec.isDirty())
+				continue;
+			
+			PrimaryKey key = entry.getKey();
+			List<PrimaryKey> tableKeys = keysByTable.get(key.getTableName());
+			if (tableKeys == null) {
+				tableKeys = new ArrayList<PrimaryKey>();
+				keysByTable.put(key.getTableName(), tableKeys);
+			}
+			tableKeys.add(key);
 		}
 		
-		return selectByBestMatchedIndex(candidates, tablePlan, key, tx);
+		// The keys that can not be searched with an index
+		List<PrimaryKey> unindexedKeys = new ArrayList<PrimaryKey>();
+		for (Map.Entry<String, List<PrimaryKey>> entry : keysByTable.entrySet()) {
+			TableAccessPath path = TableAccessPath.forTable(entry.getKey(), tx);
+			batchWrite(path, entry.getValue(), records, notFoundKeys, unindexedKeys, tx);
+		}
+		tx.endStatement();
+		
+		for (PrimaryKey key : unindexedKeys) {
+			CachedRecord rec = records.get(key);
+			if (rec.isDeleted())
+				delete(key, tx);
+			else if (!update(key, rec, tx))
+				notFoundKeys.add(key);
+		}
+		
+		return notFoundKeys;
 	}
 	
-	private static IndexSelectPlan selectByBestMatchedIndex(String tblName,
-			TablePlan tablePlan, PrimaryKey key, Transaction tx, Collection<String> excludedFields) {
+	private static void batchWrite(TableAccessPath path, List<PrimaryKey> keys,
+			Map<PrimaryKey, CachedRecord> records, Set<PrimaryKey> notFoundKeys,
+			List<PrimaryKey> unindexedKeys, Transaction tx) {
+		ConservativeOrderedCcMgr ccMgr = (ConservativeOrderedCcMgr) tx.concurrencyMgr();
+		Map<IndexInfo, Index> openedIndexes = new HashMap<IndexInfo, Index>();
+		RecordFile rf = path.tableInfo().open(tx, true);
 		
-		Set<IndexInfo> candidates = new HashSet<IndexInfo>();
-		for (int i = 0; i < key.getNumOfFlds(); i++) {
-			if (excludedFields.contains(key.getField(i)))
+		// Locate the records to be deleted or updated
+		List<LocatedWrite> locatedWrites = new ArrayList<LocatedWrite>(keys.size());
+		List<PrimaryKey> insertedKeys = new ArrayList<PrimaryKey>();
+		for (PrimaryKey key : keys) {
+			CachedRecord rec = records.get(key);
+			IndexChoice choice;
+			if (rec.isDeleted())
+				choice = path.bestIndexFor(key);
+			else if (rec.isNewInserted()) {
+				insertedKeys.add(key);
 				continue;
+			} else
+				// Do not search with the indexes being modified
+				choice = path.bestIndexFor(key, rec.getDirtyFldNames());
 			
-			List<IndexInfo> iis = VanillaDb.catalogMgr().getIndexInfo(tblName, key.getField(i), tx);
-			for (IndexInfo ii : iis) {
-				boolean ignored = false;
-				for (String fldName : ii.fieldNames())
-					if (excludedFields.contains(fldName)) {
-						ignored = true;
-						break;
-					}
-				
-				if (!ignored)
-					candidates.add(ii);
+			if (!choice.isCoveredByKey) {
+				unindexedKeys.add(key);
+				continue;
+			}
+			
+			Index index = openIndex(choice.index, openedIndexes, tx);
+			List<RecordId> rids = searchRecordIds(key, choice, index, rf);
+			if (rids.isEmpty() && !rec.isDeleted())
+				notFoundKeys.add(key);
+			for (RecordId rid : rids)
+				locatedWrites.add(new LocatedWrite(rid, rec));
+			
+			// If we did not release index locks here, the search would cause deadlock.
+			ccMgr.releaseIndexLocks();
+		}
+		Collections.sort(locatedWrites);
+		
+		// Delete or update the records in the order of their record ids
+		for (LocatedWrite write : locatedWrites) {
+			rf.moveToRecordId(write.rid);
+			if (write.rec.isDeleted()) {
+				deleteFromIndexes(rf, write.rid, openIndexes(path.allIndexes(), openedIndexes, tx));
+				rf.delete();
+			} else {
+				List<String> dirtyFlds = write.rec.getDirtyFldNames();
+				Set<IndexInfo> modifiedIndexInfos = new LinkedHashSet<IndexInfo>();
+				for (String fieldName : dirtyFlds)
+					modifiedIndexInfos.addAll(path.indexesOn(fieldName));
+				updateRecord(rf, write.rid, write.rec, dirtyFlds,
+						openIndexes(modifiedIndexInfos, openedIndexes, tx));
+			}
+			ccMgr.releaseIndexLocks();
+		}
+		
+		// Append the inserted records
+		for (PrimaryKey key : insertedKeys) {
+			CachedRecord rec = records.get(key);
+			rf.insert();
+			for (String fldName : rec.getFldNames())
+				rf.setVal(fldName, rec.getVal(fldName));
+			RecordId rid = rf.currentRecordId();
+			
+			Set<IndexInfo> indexInfos = new LinkedHashSet<IndexInfo>();
+			for (String fldname : rec.getFldNames())
+				indexInfos.addAll(path.indexesOn(fldname));
+			if (!indexInfos.isEmpty()) {
+				Map<String, Constant> fldValMap = rec.toFldValMap();
+				for (Index index : openIndexes(indexInfos, openedIndexes, tx))
+					index.insert(new SearchKey(index.getIndexInfo().fieldNames(), fldValMap), rid, true);
+			}
+			ccMgr.releaseIndexLocks();
+		}
+		
+		rf.close();
+		for (Index index : openedIndexes.values())
+			index.close();
+	}
+	
+	private static Index openIndex(IndexInfo ii, Map<IndexInfo, Index> openedIndexes, Transaction tx) {
+		Index index = openedIndexes.get(ii);
+		if (index == null) {
+			index = ii.open(tx);
+			openedIndexes.put(ii, index);
+		}
+		return index;
+	}
+	
+	private static List<Index> openIndexes(Collection<IndexInfo> iis,
+			Map<IndexInfo, Index> openedIndexes, Transaction tx) {
+		List<Index> indexes = new ArrayList<Index>(iis.size());
+		for (IndexInfo ii : iis)
+			indexes.add(openIndex(ii, openedIndexes, tx));
+		return indexes;
+	}
+	
+	private static class LocatedWrite implements Comparable<LocatedWrite> {
+		final RecordId rid;
+		final CachedRecord rec;
+		
+		LocatedWrite(RecordId rid, CachedRecord rec) {
+			this.rid = rid;
+			this.rec = rec;
+		}
+
+		@Override
+		public int compareTo(LocatedWrite other) {
+			return rid.compareTo(other.rid);
+		}
+	}
+	
+	/**
+	 * Finds the first record with the given key through an index whose fields
+	 * are all in the key.
+	 * 
+	 * @return the id of the record, or null if there is no such record
+	 */
+	private static RecordId searchRecordId(PrimaryKey key, IndexChoice choice,
+			RecordFile rf, Transaction tx) {
+		IndexInfo ii = choice.index;
+		Index index = ii.open(tx);
+		index.beforeFirst(new SearchRange(key.toSearchKey(ii.fieldNames())));
+		
+		RecordId found = null;
+		while (found == null && index.next()) {
+			RecordId rid = index.getDataRecordId();
+			if (choice.isExactMatch) {
+				found = rid;
+			} else {
+				// The index does not contain all the fields of the key
+				rf.moveToRecordId(rid);
+				if (matches(key, rf))
+					found = rid;
 			}
 		}
+		index.close();
 		
-		return selectByBestMatchedIndex(candidates, tablePlan, key, tx);
+		return found;
+	}
+	
+	/**
+	 * Finds all the records with the given key through an index whose fields
+	 * are all in the key.
+	 */
+	private static List<RecordId> searchRecordIds(PrimaryKey key, IndexChoice choice,
+			RecordFile rf, Transaction tx) {
+		Index index = choice.index.open(tx);
+		List<RecordId> rids = searchRecordIds(key, choice, index, rf);
+		index.close();
+		return rids;
 	}
 	
-	private static IndexSelectPlan selectByBestMatchedIndex(Set<IndexInfo> candidates,
-			TablePlan tablePlan, PrimaryKey key, Transaction tx) {
+	private static List<RecordId> searchRecordIds(PrimaryKey key, IndexChoice choice,
+			Index index, RecordFile rf) {
+		List<RecordId> rids = new ArrayList<RecordId>(1);
+		index.beforeFirst(new SearchRange(key.toSearchKey(choice.index.fieldNames())));
 		
-		// Choose the index with the most matched fields in the predicate
-		int matchedCount = 0;
-		IndexInfo bestIndex = null;
-		Map<String, ConstantRange> searchRanges = null;
+		while (index.next()) {
+			RecordId rid = index.getDataRecordId();
+			if (!choice.isExactMatch) {
+				// The index does not contain all the fields of the key
+				rf.moveToRecordId(rid);
+				if (!matches(key, rf))
+					continue;
+			}
+			rids.add(rid);
+		}
 		
-		for (IndexInfo ii : candidates) {
-			if (ii.fieldNames().size() < matchedCount)
-				continue;
+		return rids;
+	}
+	
+	private static boolean matches(PrimaryKey key, Record rec) {
+		for (int i = 0; i < key.getNumOfFlds(); i++)
+			if (!key.getVal(i).equals(rec.getVal(key.getField(i))))
+				return false;
+		return true;
+	}
+	
+	private static Plan newSelectPlan(PrimaryKey key, TableAccessPath path,
+			IndexChoice choice, Transaction tx) {
+		TablePlan tp = new TablePlan(key.getTableName(), tx);
+		
+		// Create a IndexSelectPlan if there is matching index in the predicate
+		if (choice.index == null)
+			return new SelectPlan(tp, key.toPredicate());
+		
+		Plan indexPlan = new IndexSelectPlan(tp, choice.index,
+				TableAccessPath.searchRanges(choice.index, key), tx);
+		return new SelectPlan(indexPlan, key.toPredicate());
+	}
+	
+	private static CachedRecord newRecord(PrimaryKey key, TableAccessPath path, Record source) {
+		CachedRecord rec = new CachedRecord(key);
+		for (String fld : path.fields())
+			rec.addFldVal(fld, source.getVal(fld));
+		return rec;
+	}
+	
+	/**
+	 * Writes the dirty fields to the record at where the given record file or
+	 * scan is, and updates the indexes on these fields.
+	 */
+	private static void updateRecord(Record current, RecordId rid, CachedRecord rec,
+			List<String> dirtyFlds, List<Index> modifiedIndexes) {
+		// Construct a mapping from field names to values
+		Map<String, Constant> oldValMap = new HashMap<String, Constant>();
+		Map<String, Constant> newValMap = new HashMap<String, Constant>();
+		for (String fieldName : dirtyFlds) {
+			Constant oldVal = current.getVal(fieldName);
+			Constant newVal = rec.getVal(fieldName);
 			
-			Map<String, ConstantRange> ranges = new HashMap<String, ConstantRange>();
-			for (String fieldName : ii.fieldNames()) {
-				Constant val = key.getVal(fieldName);
-				if (val == null)
-					continue;
-				
-				ranges.put(fieldName, ConstantRange.newInstance(val));
+			oldValMap.put(fieldName, oldVal);
+			newValMap.put(fieldName, newVal);
+			if (current instanceof RecordFile)
+				((RecordFile) current).setVal(fieldName, newVal);
+			else
+				((UpdateScan) current).setVal(fieldName, newVal);
+		}
+		
+		// Update the indexes
+		for (Index index : modifiedIndexes) {
+			List<String> idxFlds = index.getIndexInfo().fieldNames();
+			
+			// Construct a SearchKey for the old value
+			Map<String, Constant> fldValMap = new HashMap<String, Constant>();
+			for (String fldName : idxFlds) {
+				Constant oldVal = oldValMap.get(fldName);
+				if (oldVal == null)
+					oldVal = current.getVal(fldName);
+				fldValMap.put(fldName, oldVal);
 			}
+			SearchKey oldKey = new SearchKey(idxFlds, fldValMap);
 			
-			if (ranges.size() > matchedCount) {
-				matchedCount = ranges.size();
-				bestIndex = ii;
-				searchRanges = ranges;
+			// Delete the old value from the index
+			index.delete(oldKey, rid, true);
+			
+			// Construct a SearchKey for the new value
+			fldValMap = new HashMap<String, Constant>();
+			for (String fldName : idxFlds) {
+				Constant newVal = newValMap.get(fldName);
+				if (newVal == null)
+					newVal = current.getVal(fldName);
+				fldValMap.put(fldName, newVal);
 			}
+			SearchKey newKey = new SearchKey(idxFlds, fldValMap);
+			
+			// Insert the new value to the index
+			index.insert(newKey, rid, true);
 		}
-		
-		if (bestIndex != null) {
-			return new IndexSelectPlan(tablePlan, bestIndex, searchRanges, tx);
+	}
+	
+	private static void deleteFromIndexes(Record current, RecordId rid, List<Index> indexes) {
+		for (Index index : indexes) {
+			List<String> idxFlds = index.getIndexInfo().fieldNames();
+			
+			// Construct a key-value map
+			Map<String, Constant> fldValMap = new HashMap<String, Constant>();
+			for (String fldName : idxFlds)
+				fldValMap.put(fldName, current.getVal(fldName));
+			SearchKey searchKey = new SearchKey(idxFlds, fldValMap);
+			
+			// Delete from the index
+			index.delete(searchKey, rid, true);
 		}
-		
-		return null;
 	}
 }
@@ -150,16 +150,10 @@ public class CalvinCacheMgr {
 	}
 	
 	public void flush() {
-		for (PrimaryKey key : writeKeys) {
-			CachedRecord rec = cachedRecords.get(key);
-			
-			if (rec.isDeleted())
-				VanillaCoreCrud.delete(key, tx);
-			else if (rec.isNewInserted())
-				VanillaCoreCrud.insert(key, rec, tx);
-			else if (rec.isDirty())
-				VanillaCoreCrud.update(key, rec, tx);
-		}
+		Map<PrimaryKey, CachedRecord> writes = new HashMap<PrimaryKey, CachedRecord>(writeKeys.size() * 2);
+		for (PrimaryKey key : writeKeys)
+			writes.put(key, cachedRecords.get(key));
+		VanillaCoreCrud.batchWrite(writes, tx);
 		
 		writeKeys.clear();
 	}
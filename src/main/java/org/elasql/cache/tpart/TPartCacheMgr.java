@@ -1,10 +1,20 @@
 package org.elasql.cache.tpart;
 
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,12 +23,30 @@ import org.elasql.cache.RemoteRecordReceiver;
 import org.elasql.cache.VanillaCoreCrud;
 import org.elasql.remote.groupcomm.Tuple;
 import org.elasql.schedule.tpart.hermes.FusionTable;
+import org.elasql.server.Elasql;
 import org.elasql.sql.PrimaryKey;
+import org.elasql.util.ElasqlProperties;
+import org.vanilladb.core.server.task.Task;
 import org.vanilladb.core.storage.tx.Transaction;
 
 public class TPartCacheMgr implements RemoteRecordReceiver {
 	private static Logger logger = Logger.getLogger(TPartCacheMgr.class.getName());
 
+	public static final int WRITE_BACK_BATCH_SIZE;
+
+	static {
+		WRITE_BACK_BATCH_SIZE = ElasqlProperties.getLoader()
+				.getPropertyAsInteger(TPartCacheMgr.class.getName() + ".WRITE_BACK_BATCH_SIZE", 100);
+	}
+
+	// The evicted records are written back by background transactions.
+	// They use negative tx numbers that will never be assigned by the
+	// total order, so that they do not mess up the conservative locks.
+	private static final AtomicLong nextWriteBackTxNum = new AtomicLong(-1_000_000L);
+	
+	// The time to wait before retrying a failed write-back
+	private static final long WRITE_BACK_RETRY_DELAY_MS = 1000;
+
 	/**
 	 * Looks up the sink id for the specified partition.
 	 * 
@@ -35,18 +63,56 @@ public class TPartCacheMgr implements RemoteRecordReceiver {
 
 	private Map<CachedEntryKey, CachedRecord> exchange;
 	
-	private Map<PrimaryKey, CachedRecord> recordCache;
+	private TPartRecordCache recordCache;
+	
+	// Evicted records that have not been written to the local storage yet.
+	// A record of another partition that is neither cached nor pending has
+	// been written to the local storage.
+	private Map<PrimaryKey, CachedRecord> pendingWriteBacks;
+	private BlockingQueue<PrimaryKey> writeBackQueue;
+	
+	// The records of other partitions that have left this node but are kept
+	// in the local storage, because the last snapshot of the fusion table may
+	// still locate them here. Null if the deletions are not deferred.
+	private volatile Set<PrimaryKey> deferredDeletions;
 
 	private final Object anchors[] = new Object[1009];
+	// Guard the cache entries and the local storage of the keys. The writer
+	// holds them until its transaction commits.
+	private final ReentrantLock writeBackLocks[] = new ReentrantLock[1009];
 
 	public TPartCacheMgr() {
 		for (int i = 0; i < anchors.length; ++i) {
 			anchors[i] = new Object();
 		}
+		for (int i = 0; i < writeBackLocks.length; ++i) {
+			writeBackLocks[i] = new ReentrantLock();
+		}
 		
-		recordCache = new ConcurrentHashMap<PrimaryKey, CachedRecord>(FusionTable.EXPECTED_MAX_SIZE + 1000);
+		pendingWriteBacks = new ConcurrentHashMap<PrimaryKey, CachedRecord>();
+		writeBackQueue = new LinkedBlockingQueue<PrimaryKey>();
+		recordCache = new TPartRecordCache(new TPartRecordCache.EvictionListener() {
+			@Override
+			public boolean onEvict(PrimaryKey key, CachedRecord rec) {
+				// The cache is locked during the eviction, and the holder
+				// of the key's lock may be waiting for the cache. So we
+				// skip the key instead of waiting for its lock.
+				ReentrantLock lock = prepareWriteBackLock(key);
+				if (!lock.tryLock())
+					return false;
+				try {
+					pendingWriteBacks.put(key, rec);
+					writeBackQueue.add(key);
+					return true;
+				} finally {
+					lock.unlock();
+				}
+			}
+		});
 		exchange = new ConcurrentHashMap<CachedEntryKey, CachedRecord>(FusionTable.EXPECTED_MAX_SIZE + 1000);
 		
+		Elasql.taskMgr().runTask(new EvictedRecordWriter());
+		
 //		new PeriodicalJob(5000, 600000, new Runnable() {
 //			@Override
 //			public void run() {
@@ -75,6 +141,68 @@ public class TPartCacheMgr implements RemoteRecordReceiver {
 		}
 		return anchors[hash];
 	}
+	
+	private int writeBackLockIndex(PrimaryKey key) {
+		int hash = key.hashCode() % writeBackLocks.length;
+		if (hash < 0) {
+			hash += writeBackLocks.length;
+		}
+		return hash;
+	}
+	
+	private ReentrantLock prepareWriteBackLock(PrimaryKey key) {
+		return writeBackLocks[writeBackLockIndex(key)];
+	}
+	
+	// Takes the locks in a fixed order
+	private Set<Integer> lockWriteBacks(Collection<PrimaryKey> keys) {
+		Set<Integer> lockIndexes = new TreeSet<Integer>();
+		for (PrimaryKey key : keys)
+			lockIndexes.add(writeBackLockIndex(key));
+		for (int index : lockIndexes)
+			writeBackLocks[index].lock();
+		return lockIndexes;
+	}
+	
+	private void unlockWriteBacks(Set<Integer> lockIndexes) {
+		for (int index : lockIndexes)
+			writeBackLocks[index].unlock();
+	}
+	
+	private void lockAllWriteBacks() {
+		for (ReentrantLock lock : writeBackLocks)
+			lock.lock();
+	}
+	
+	private void unlockAllWriteBacks() {
+		for (ReentrantLock lock : writeBackLocks)
+			lock.unlock();
+	}
+	
+	private static Transaction newWriteBackTx() {
+		return Elasql.txMgr().newTransaction(Connection.TRANSACTION_SERIALIZABLE,
+				false, nextWriteBackTxNum.getAndDecrement());
+	}
+	
+	// A record of another partition can only be in the local storage
+	// because it was evicted from the cache
+	private static boolean isFromOtherPartition(PrimaryKey key) {
+		return Elasql.partitionMetaMgr().getPartition(key) != Elasql.serverId();
+	}
+	
+	public TPartRecordCache recordCache() {
+		return recordCache;
+	}
+	
+	/**
+	 * Returns a copy of the keys of the cached records and the evicted
+	 * records that have not been written to the local storage.
+	 */
+	public Set<PrimaryKey> cachedKeys() {
+		Set<PrimaryKey> keys = recordCache.keySet();
+		keys.addAll(pendingWriteBacks.keySet());
+		return keys;
+	}
 
 	CachedRecord takeFromTx(PrimaryKey key, long src, long dest) {
 //		Timer.getLocalTimer().startComponentTimer("Read from Tx");
@@ -128,6 +256,8 @@ public class TPartCacheMgr implements RemoteRecordReceiver {
 		
 		// Check the cache first
 		rec = recordCache.get(key);
+		if (rec == null)
+			rec = pendingWriteBacks.get(key);
 		if (rec != null) // Copy the record to ensure thread-safety
 			rec = new CachedRecord(rec);
 		
@@ -155,6 +285,8 @@ public class TPartCacheMgr implements RemoteRecordReceiver {
 		Set<PrimaryKey> readFromLocals = new HashSet<PrimaryKey>();
 		for (PrimaryKey key : keys) {
 			CachedRecord rec = recordCache.get(key);
+			if (rec == null)
+				rec = pendingWriteBacks.get(key);
 			if (rec != null) {
 				// Copy the record to ensure thread-safety
 				rec = new CachedRecord(rec);
@@ -181,50 +313,114 @@ public class TPartCacheMgr implements RemoteRecordReceiver {
 //		localCcMgr.beforeWriteBack(key, txNum);
 //		lockTable.xLock(key, txNum);
 
-		recordCache.put(key, rec);
+		ReentrantLock lock = prepareWriteBackLock(key);
+		lock.lock();
+		try {
+			recordCache.put(key, rec);
+			// An evicted version is older than this one, so the writer
+			// must not write it to the local storage anymore. It is removed
+			// after the put so that the readers always find one of them.
+			pendingWriteBacks.remove(key);
+			
+			// The copy in the local storage, if any, is overwritten when the
+			// record is written back
+			Set<PrimaryKey> deletions = deferredDeletions;
+			if (deletions != null)
+				deletions.remove(key);
+		} finally {
+			lock.unlock();
+		}
 		
 //		localCcMgr.afterWriteback(key, txNum);
 //		lockTable.release(key, txNum, LockType.X_LOCK);
 	}
 	
-	void deleteFromCache(PrimaryKey key, long txNum) {
+	void deleteFromCache(PrimaryKey key, Transaction tx) {
 //		localCcMgr.beforeWriteBack(key, txNum);
 //		lockTable.xLock(key, txNum);
 
-		if (recordCache.remove(key) == null)
-			throw new RuntimeException("There is no record for " + key + " in the cache");
+		ReentrantLock lock = prepareWriteBackLock(key);
+		lock.lock();
+		try {
+			boolean found = recordCache.remove(key) != null;
+			found |= pendingWriteBacks.remove(key) != null;
+			
+			// Only the records of other partitions are evicted to the local storage
+			if (!found && !isFromOtherPartition(key))
+				throw new RuntimeException("There is no record for " + key + " in the cache");
+			
+			Set<PrimaryKey> deletions = deferredDeletions;
+			if (deletions != null)
+				deletions.add(key);
+			else if (!found)
+				VanillaCoreCrud.delete(key, tx);
+		} finally {
+			lock.unlock();
+		}
 		
 //		localCcMgr.afterWriteback(key, txNum);
 //		lockTable.release(key, txNum, LockType.X_LOCK);
 	}
 	
-	void writeBack(PrimaryKey key, CachedRecord rec, Transaction tx) {
+	void writeBack(Map<PrimaryKey, CachedRecord> records, Transaction tx) {
 //		localCcMgr.beforeWriteBack(key, tx.getTransactionNumber());
 //		lockTable.xLock(key, tx.getTransactionNumber());
 		
-		// Check if there is corresponding keys in the cache
-		if (recordCache.containsKey(key))
-			recordCache.put(key, rec);
-		else 
-			// If it was not in the cache, write-back to the local storage
-			writeToVanillaCore(key, rec, tx);
+		Set<Integer> lockIndexes = lockWriteBacks(records.keySet());
+		try {
+			Map<PrimaryKey, CachedRecord> storageWrites = new HashMap<PrimaryKey, CachedRecord>();
+			for (Map.Entry<PrimaryKey, CachedRecord> entry : records.entrySet()) {
+				PrimaryKey key = entry.getKey();
+				// Check if there is corresponding keys in the cache.
+				// A record waiting for being written back is still hot,
+				// so we put it back to the cache, and the writer skips it.
+				if (pendingWriteBacks.remove(key) != null || recordCache.containsKey(key))
+					recordCache.put(key, entry.getValue());
+				else 
+					// If it was not in the cache, write-back to the local storage
+					storageWrites.put(key, entry.getValue());
+			}
+			
+			if (!storageWrites.isEmpty())
+				writeToVanillaCore(storageWrites, tx);
+		} finally {
+			unlockWriteBacks(lockIndexes);
+		}
 		
 //		localCcMgr.afterWriteback(key, tx.getTransactionNumber());
 //		lockTable.release(key, tx.getTransactionNumber(), LockType.X_LOCK);
 	}
 	
 	// This is also a type of writeback
-	void insertToLocalStorage(PrimaryKey key, CachedRecord rec, Transaction tx) {
+	void insertToLocalStorage(Map<PrimaryKey, CachedRecord> records, Transaction tx) {
 //		localCcMgr.beforeWriteBack(key, tx.getTransactionNumber());
 //		lockTable.xLock(key, tx.getTransactionNumber());
 		
-		// Check if there is corresponding keys in the cache
-		if (recordCache.containsKey(key))
-			recordCache.remove(key);
-		
-		// Force insert to local storage
-		rec.setNewInserted();
-		VanillaCoreCrud.insert(key, rec, tx);
+		Set<Integer> lockIndexes = lockWriteBacks(records.keySet());
+		try {
+			Map<PrimaryKey, CachedRecord> writes = new HashMap<PrimaryKey, CachedRecord>();
+			for (Map.Entry<PrimaryKey, CachedRecord> entry : records.entrySet()) {
+				PrimaryKey key = entry.getKey();
+				CachedRecord rec = entry.getValue();
+				
+				// Check if there is corresponding keys in the cache
+				boolean found = recordCache.remove(key) != null;
+				found |= pendingWriteBacks.remove(key) != null;
+				
+				if (found) {
+					// Force insert to local storage
+					rec.setNewInserted();
+					writes.put(key, rec);
+				} else
+					// A copy may have been evicted to the local storage when the
+					// record belonged to another partition, which is overwritten
+					writes.put(key, copyForPersisting(key, rec));
+			}
+			
+			insertNotFound(VanillaCoreCrud.batchWrite(writes, tx), writes, tx);
+		} finally {
+			unlockWriteBacks(lockIndexes);
+		}
 		
 //		localCcMgr.afterWriteback(key, tx.getTransactionNumber());
 //		lockTable.release(key, tx.getTransactionNumber(), LockType.X_LOCK);
@@ -240,24 +436,212 @@ public class TPartCacheMgr implements RemoteRecordReceiver {
 //		lockTable.requestLock(key, txNum);
 //	}
 	
-	private void writeToVanillaCore(PrimaryKey key, CachedRecord rec, Transaction tx) {
-		if (rec.isDeleted())
-			VanillaCoreCrud.delete(key, tx);
-		else if (rec.isNewInserted())
-			VanillaCoreCrud.insert(key, rec, tx);
-		else if (rec.isDirty()) {
-			if (!VanillaCoreCrud.update(key, rec, tx)) {
-				// XXX: We use this to solve a migration problem
-				// If a hot record was on other machine and belonged to another partition (not local one),
-				// then the partitioning changed, the hot record would not go to the new partition immediately.
-				// It is highly possible the record would be written back to the new partition very soon.
-				// However, we didn't make hot records be inserted to the new partition.
-				// Therefore, they would not be in the database.
-				// In this case, we should insert the record if we could not find it.
-				if (logger.isLoggable(Level.FINE))
-					logger.fine("Insert the record " + key + " since we could not find it.");
+	/**
+	 * Keeps the records that leave this node in the local storage until
+	 * {@link #deleteDeferredRecords()} is called. This is needed when the
+	 * locations of the records are saved in snapshots.
+	 */
+	public void deferStorageDeletions() {
+		deferredDeletions = Collections.newSetFromMap(new ConcurrentHashMap<PrimaryKey, Boolean>());
+	}
+	
+	/**
+	 * Writes all the cached records and the evicted records that have not
+	 * been written to the local storage in one transaction. The records stay
+	 * in the cache. The caller must make sure that no transaction is using
+	 * the cache.
+	 * 
+	 * @return false if the transaction failed
+	 */
+	public boolean persistCachedRecords() {
+		Map<PrimaryKey, CachedRecord> written = new HashMap<PrimaryKey, CachedRecord>();
+		lockAllWriteBacks();
+		Transaction tx = null;
+		try {
+			tx = newWriteBackTx();
+			Map<PrimaryKey, CachedRecord> records = new HashMap<PrimaryKey, CachedRecord>();
+			for (Map.Entry<PrimaryKey, CachedRecord> entry : pendingWriteBacks.entrySet()) {
+				records.put(entry.getKey(), entry.getValue());
+				written.put(entry.getKey(), entry.getValue());
+			}
+			// A cached version is newer than the evicted one
+			for (PrimaryKey key : recordCache.keySet()) {
+				CachedRecord rec = recordCache.peek(key);
+				if (rec != null)
+					records.put(key, rec);
+			}
+			persistCachedRecords(records, tx);
+			tx.commit();
+			
+			for (Map.Entry<PrimaryKey, CachedRecord> entry : written.entrySet())
+				pendingWriteBacks.remove(entry.getKey(), entry.getValue());
+			return true;
+		} catch (RuntimeException e) {
+			if (logger.isLoggable(Level.SEVERE))
+				logger.severe("fail to write the cached records to the local storage: " + e.getMessage());
+			if (tx != null)
+				tx.rollback();
+			return false;
+		} finally {
+			unlockAllWriteBacks();
+		}
+	}
+	
+	/**
+	 * Deletes the records that have left this node from the local storage.
+	 * The caller must make sure that no transaction is using the cache.
+	 * 
+	 * @return false if the transaction failed
+	 */
+	public boolean deleteDeferredRecords() {
+		Set<PrimaryKey> deletions = deferredDeletions;
+		if (deletions == null || deletions.isEmpty())
+			return true;
+		
+		List<PrimaryKey> keys = new ArrayList<PrimaryKey>(deletions);
+		lockAllWriteBacks();
+		Transaction tx = null;
+		try {
+			tx = newWriteBackTx();
+			Map<PrimaryKey, CachedRecord> writes = new HashMap<PrimaryKey, CachedRecord>();
+			for (PrimaryKey key : keys)
+				writes.put(key, CachedRecord.newRecordForDeletion(key));
+			VanillaCoreCrud.batchWrite(writes, tx);
+			tx.commit();
+			
+			deletions.removeAll(keys);
+			return true;
+		} catch (RuntimeException e) {
+			if (logger.isLoggable(Level.SEVERE))
+				logger.severe("fail to delete " + keys.size() + " records from the local storage: "
+						+ e.getMessage());
+			if (tx != null)
+				tx.rollback();
+			return false;
+		} finally {
+			unlockAllWriteBacks();
+		}
+	}
+	
+	private void writeToVanillaCore(Map<PrimaryKey, CachedRecord> records, Transaction tx) {
+		Set<PrimaryKey> notFoundKeys = VanillaCoreCrud.batchWrite(records, tx);
+		
+		// XXX: We use this to solve a migration problem
+		// If a hot record was on other machine and belonged to another partition (not local one),
+		// then the partitioning changed, the hot record would not go to the new partition immediately.
+		// It is highly possible the record would be written back to the new partition very soon.
+		// However, we didn't make hot records be inserted to the new partition.
+		// Therefore, they would not be in the database.
+		// In this case, we should insert the record if we could not find it.
+		if (!notFoundKeys.isEmpty() && logger.isLoggable(Level.FINE))
+			logger.fine("Insert the records " + notFoundKeys + " since we could not find them.");
+		insertNotFound(notFoundKeys, records, tx);
+	}
+	
+	// The caller must hold the write-back locks of the keys
+	private static void persistCachedRecords(Map<PrimaryKey, CachedRecord> records, Transaction tx) {
+		Map<PrimaryKey, CachedRecord> writes = new HashMap<PrimaryKey, CachedRecord>();
+		for (Map.Entry<PrimaryKey, CachedRecord> entry : records.entrySet()) {
+			CachedRecord rec = entry.getValue();
+			if (rec.isDeleted())
+				writes.put(entry.getKey(), rec);
+			else if (!rec.isTemp())
+				writes.put(entry.getKey(), copyForPersisting(entry.getKey(), rec));
+		}
+		insertNotFound(VanillaCoreCrud.batchWrite(writes, tx), writes, tx);
+	}
+	
+	// Inserts the records whose updates found nothing in the local storage
+	private static void insertNotFound(Set<PrimaryKey> notFoundKeys,
+			Map<PrimaryKey, CachedRecord> writes, Transaction tx) {
+		if (notFoundKeys.isEmpty())
+			return;
+		
+		Map<PrimaryKey, CachedRecord> insertions = new HashMap<PrimaryKey, CachedRecord>();
+		for (PrimaryKey key : notFoundKeys) {
+			CachedRecord rec = new CachedRecord(writes.get(key));
+			rec.setNewInserted();
+			insertions.put(key, rec);
+		}
+		VanillaCoreCrud.batchWrite(insertions, tx);
+	}
+	
+	private static CachedRecord copyForPersisting(PrimaryKey key, CachedRecord rec) {
+		// The cached record is the only up-to-date version,
+		// so we write all the fields no matter if it is dirty.
+		// The copy is an update even if the record was inserted,
+		// since it may have been persisted before.
+		CachedRecord copy = CachedRecord.newRecordWithFldVals(key, rec.toFldValMap());
+		copy.markAllNonKeyFieldsDirty();
+		return copy;
+	}
+	
+	private class EvictedRecordWriter extends Task {
+
+		@Override
+		public void run() {
+			Thread.currentThread().setName("T-Part Cache Writer");
+			List<PrimaryKey> keys = new ArrayList<PrimaryKey>();
+			Map<PrimaryKey, CachedRecord> written = new HashMap<PrimaryKey, CachedRecord>();
+			
+			while (true) {
+				try {
+					keys.add(writeBackQueue.take());
+					writeBackQueue.drainTo(keys, WRITE_BACK_BATCH_SIZE - 1);
+					
+					if (!writeEvictedRecords(keys, written)) {
+						// Try the records again later, unless they have been
+						// deleted or put back to the cache in the meantime
+						for (PrimaryKey key : keys)
+							if (pendingWriteBacks.containsKey(key))
+								writeBackQueue.add(key);
+						Thread.sleep(WRITE_BACK_RETRY_DELAY_MS);
+					}
+				} catch (InterruptedException e) {
+					if (logger.isLoggable(Level.SEVERE))
+						logger.severe("the cache writer is interrupted");
+				} finally {
+					keys.clear();
+					written.clear();
+				}
+			}
+		}
+		
+		/**
+		 * Writes the pending versions of the given keys in one transaction.
+		 * The locks of the keys are held until the transaction commits and
+		 * the written versions are removed from the pending map, so no sink
+		 * sees a key whose write has not committed.
+		 * 
+		 * @return false if the transaction failed
+		 */
+		private boolean writeEvictedRecords(List<PrimaryKey> keys, Map<PrimaryKey, CachedRecord> written) {
+			Set<Integer> lockIndexes = lockWriteBacks(keys);
+			Transaction tx = null;
+			try {
+				tx = newWriteBackTx();
+				for (PrimaryKey key : keys) {
+					// The record may have been written, deleted or put back to the cache
+					CachedRecord rec = pendingWriteBacks.get(key);
+					if (rec != null)
+						written.put(key, rec);
+				}
+				persistCachedRecords(written, tx);
+				tx.commit();
 				
-				VanillaCoreCrud.insert(key, rec, tx);
+				// Readers can go to the local storage from now on.
+				for (Map.Entry<PrimaryKey, CachedRecord> entry : written.entrySet())
+					pendingWriteBacks.remove(entry.getKey(), entry.getValue());
+				return true;
+			} catch (RuntimeException e) {
+				if (logger.isLoggable(Level.SEVERE))
+					logger.severe("fail to write back " + keys.size() + " evicted records, will retry: "
+							+ e.getMessage());
+				if (tx != null)
+					tx.rollback();
+				return false;
+			} finally {
+				unlockWriteBacks(lockIndexes);
 			}
 		}
 	}
@@ -0,0 +1,267 @@
+package org.elasql.cache.tpart;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasql.cache.CachedRecord;
+import org.elasql.schedule.tpart.hermes.FusionTable;
+import org.elasql.sql.PrimaryKey;
+import org.elasql.util.ElasqlProperties;
+
+/**
+ * A capacity-bounded record cache for T-Part. When the cache is full, a record
+ * is chosen by the configured eviction policy and handed to the
+ * {@link EvictionListener} before it is removed, so that the listener can keep
+ * the record reachable until it is written back to the local storage.
+ */
+public class TPartRecordCache {
+
+	public static final int MAX_SIZE;
+	public static final EvictionPolicy EVICTION_POLICY;
+	public static final int LRU_SAMPLE_SIZE;
+
+	static {
+		MAX_SIZE = ElasqlProperties.getLoader()
+				.getPropertyAsInteger(TPartRecordCache.class.getName() + ".MAX_SIZE",
+						FusionTable.EXPECTED_MAX_SIZE);
+		int policy = ElasqlProperties.getLoader()
+				.getPropertyAsInteger(TPartRecordCache.class.getName() + ".EVICTION_POLICY", 0);
+		EVICTION_POLICY = EvictionPolicy.fromInteger(policy);
+		LRU_SAMPLE_SIZE = ElasqlProperties.getLoader()
+				.getPropertyAsInteger(TPartRecordCache.class.getName() + ".LRU_SAMPLE_SIZE", 8);
+	}
+
+	public enum EvictionPolicy {
+		CLOCK, SAMPLED_LRU;
+
+		static EvictionPolicy fromInteger(int index) {
+			switch (index) {
+			case 0:
+				return CLOCK;
+			case 1:
+				return SAMPLED_LRU;
+			default:
+				throw new RuntimeException("Unsupport eviction policy");
+			}
+		}
+	}
+
+	interface EvictionListener {
+		/**
+		 * Called when a record is chosen to be evicted. The record is still in
+		 * the cache when this method is called. The listener may refuse the
+		 * eviction, e.g. when the record is being used, and the cache then
+		 * chooses another victim.
+		 *
+		 * @param key the key of the evicted record
+		 * @param rec the evicted record
+		 * @return false if the record cannot be evicted now
+		 */
+		boolean onEvict(PrimaryKey key, CachedRecord rec);
+	}
+
+	private static class Entry {
+		final PrimaryKey key;
+		final int slotId;
+		volatile CachedRecord rec;
+		volatile boolean referenced; // for CLOCK
+		volatile long lastAccessTime; // for SAMPLED_LRU
+		int estimatedSize;
+
+		Entry(PrimaryKey key, int slotId) {
+			this.key = key;
+			this.slotId = slotId;
+		}
+
+		void touch() {
+			if (EVICTION_POLICY == EvictionPolicy.CLOCK)
+				referenced = true;
+			else
+				lastAccessTime = System.nanoTime();
+		}
+	}
+
+	private final int capacity;
+	private final EvictionListener listener;
+	private final Map<PrimaryKey, Entry> entries;
+	private final Entry[] slots;
+	private final int[] freeSlots;
+	private int freeCount;
+	private int clockHand;
+
+	// Statistics
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private volatile long estimatedBytes;
+
+	TPartRecordCache(EvictionListener listener) {
+		this(MAX_SIZE, listener);
+	}
+
+	TPartRecordCache(int capacity, EvictionListener listener) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("the capacity must be positive");
+
+		this.capacity = capacity;
+		this.listener = listener;
+		this.entries = new ConcurrentHashMap<PrimaryKey, Entry>(capacity + 1000);
+		this.slots = new Entry[capacity];
+		this.freeSlots = new int[capacity];
+		for (int i = 0; i < capacity; i++)
+			freeSlots[i] = capacity - 1 - i;
+		this.freeCount = capacity;
+	}
+
+	CachedRecord get(PrimaryKey key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		entry.touch();
+		hits.incrementAndGet();
+		return entry.rec;
+	}
+
+	/**
+	 * Returns the cached record without counting a hit or a miss and without
+	 * affecting the eviction. Used to persist the cached records at snapshot
+	 * checkpoints.
+	 */
+	CachedRecord peek(PrimaryKey key) {
+		Entry entry = entries.get(key);
+		return (entry == null) ? null : entry.rec;
+	}
+
+	boolean containsKey(PrimaryKey key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * Returns a copy of the cached keys, which is not affected by the later
+	 * puts and evictions.
+	 */
+	Set<PrimaryKey> keySet() {
+		return new HashSet<PrimaryKey>(entries.keySet());
+	}
+
+	synchronized void put(PrimaryKey key, CachedRecord rec) {
+		int size = rec.estimateSize();
+		Entry entry = entries.get(key);
+
+		if (entry == null) {
+			if (freeCount == 0)
+				evictOne();
+
+			entry = new Entry(key, freeSlots[--freeCount]);
+			slots[entry.slotId] = entry;
+			entries.put(key, entry);
+		} else {
+			estimatedBytes -= entry.estimatedSize;
+		}
+
+		entry.rec = rec;
+		entry.estimatedSize = size;
+		entry.touch();
+		estimatedBytes += size;
+	}
+
+	synchronized CachedRecord remove(PrimaryKey key) {
+		Entry entry = entries.remove(key);
+		if (entry == null)
+			return null;
+
+		releaseSlot(entry);
+		return entry.rec;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public double getHitRate() {
+		long hitCount = hits.get();
+		long total = hitCount + misses.get();
+		return (total == 0) ? 0.0 : ((double) hitCount) / total;
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the estimated number of bytes occupied by the cached records.
+	 *
+	 * @return the estimated memory usage in bytes
+	 */
+	public long getEstimatedMemoryUsage() {
+		return estimatedBytes;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("T-Part record cache (policy: %s, size: %d/%d, hit rate: %.2f%%, "
+				+ "evictions: %d, memory: %d KB)", EVICTION_POLICY, size(), capacity,
+				getHitRate() * 100, getEvictionCount(), getEstimatedMemoryUsage() / 1024);
+	}
+
+	private Entry selectVictim() {
+		switch (EVICTION_POLICY) {
+		case CLOCK:
+			while (slots[clockHand].referenced) {
+				slots[clockHand].referenced = false;
+				clockHand = (clockHand + 1) % capacity;
+			}
+			Entry victim = slots[clockHand];
+			clockHand = (clockHand + 1) % capacity;
+			return victim;
+		case SAMPLED_LRU:
+			// The cache is full when this is called, so every slot is occupied
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			Entry oldest = slots[random.nextInt(capacity)];
+			for (int i = 1; i < LRU_SAMPLE_SIZE; i++) {
+				Entry candidate = slots[random.nextInt(capacity)];
+				if (candidate.lastAccessTime < oldest.lastAccessTime)
+					oldest = candidate;
+			}
+			return oldest;
+		default:
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private void evictOne() {
+		Entry victim = selectVictim();
+		// Notify the listener first so that the record is always reachable
+		// from either the cache or the listener.
+		while (!listener.onEvict(victim.key, victim.rec))
+			victim = selectVictim();
+		entries.remove(victim.key);
+		releaseSlot(victim);
+		evictions.incrementAndGet();
+	}
+
+	private void releaseSlot(Entry entry) {
+		slots[entry.slotId] = null;
+		freeSlots[freeCount++] = entry.slotId;
+		estimatedBytes -= entry.estimatedSize;
+	}
+}
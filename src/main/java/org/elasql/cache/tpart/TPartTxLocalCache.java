@@ -119,6 +119,8 @@ public class TPartTxLocalCache {
 
 //		timer.startComponentTimer("Writeback");
 		// Flush to the local storage (write back)
+		Map<PrimaryKey, CachedRecord> storageInsertions = new HashMap<PrimaryKey, CachedRecord>();
+		Map<PrimaryKey, CachedRecord> writeBacks = new HashMap<PrimaryKey, CachedRecord>();
 		for (PrimaryKey key : plan.getLocalWriteBackInfo()) {
 
 			CachedRecord rec = null;
@@ -129,7 +131,7 @@ public class TPartTxLocalCache {
 			
 			// For migration
 			if (plan.getStorageInsertions().contains(key)) {
-				cacheMgr.insertToLocalStorage(key, rec, tx);
+				storageInsertions.put(key, rec);
 				continue;
 			}
 
@@ -140,14 +142,20 @@ public class TPartTxLocalCache {
 			if (plan.getCacheInsertions().contains(key))
 				cacheMgr.insertToCache(key, rec, txNum);
 			else
-				cacheMgr.writeBack(key, rec, tx);
+				writeBacks.put(key, rec);
 		}
+		
+		// The storage is written in batches
+		if (!storageInsertions.isEmpty())
+			cacheMgr.insertToLocalStorage(storageInsertions, tx);
+		if (!writeBacks.isEmpty())
+			cacheMgr.writeBack(writeBacks, tx);
 //		timer.stopComponentTimer("Writeback");
 		
 		// Clean up migrated rec
 //		timer.startComponentTimer("Delete cached records");
 		for (PrimaryKey key : plan.getCacheDeletions())
-			cacheMgr.deleteFromCache(key, txNum);
+			cacheMgr.deleteFromCache(key, tx);
 //		timer.stopComponentTimer("Delete cached records");
 	}
 }
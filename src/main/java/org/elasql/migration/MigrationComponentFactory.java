@@ -1,5 +1,7 @@
 package org.elasql.migration;
 
+import java.util.Iterator;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -10,12 +12,15 @@ import org.elasql.migration.mgcrab.MgCrabStoredProcFactory;
 import org.elasql.migration.mgcrab.MgCrabSystemController;
 import org.elasql.migration.planner.MigrationPlanner;
 import org.elasql.migration.planner.clay.ClayPlanner;
+import org.elasql.migration.planner.hashing.HashArcMigrationRange;
 import org.elasql.migration.squall.SquallMigrationMgr;
 import org.elasql.migration.squall.SquallStoredProcFactory;
 import org.elasql.migration.stopcopy.StopCopyMigrationMgr;
 import org.elasql.migration.stopcopy.StopCopyStoredProcFactory;
 import org.elasql.procedure.calvin.CalvinStoredProcedureFactory;
 import org.elasql.sql.PartitioningKey;
+import org.elasql.sql.PrimaryKey;
+import org.elasql.storage.metadata.ConsistentHashPartitionPlan.Arc;
 
 public abstract class MigrationComponentFactory {
 	private static Logger logger = Logger.getLogger(MigrationComponentFactory.class.getName());
@@ -79,4 +84,29 @@ public abstract class MigrationComponentFactory {
 	public abstract MigrationPlan newPredefinedMigrationPlan();
 	
 	public abstract MigrationRange toMigrationRange(int sourceId, int destId, PartitioningKey partKey);
+	
+	/**
+	 * Creates a migration range for the given hash ranges of a consistent hash
+	 * ring.
+	 */
+	public MigrationRange toMigrationRange(int sourceId, int destId, List<Arc> arcs) {
+		return new HashArcMigrationRange(sourceId, destId, arcs, this);
+	}
+	
+	/**
+	 * Enumerates the keys stored in the given partition. This is needed by
+	 * the migration ranges that can not list their keys by themselves, such
+	 * as the hash ranges of a consistent hash ring. It is only called on the
+	 * node of the partition, so the keys can be found by scanning the tables
+	 * of the workload with a {@link TableScanKeyIterator}. The tables and
+	 * their key fields depend on the workload, so the factories that use
+	 * such ranges must override this.
+	 * 
+	 * @param partId the id of the partition
+	 * @return an iterator over the keys of the partition
+	 */
+	public Iterator<PrimaryKey> newKeyIterator(int partId) {
+		throw new UnsupportedOperationException(getClass().getName()
+				+ " does not know the tables to scan for the keys of partition " + partId);
+	}
 }
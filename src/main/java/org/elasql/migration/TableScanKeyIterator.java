@@ -0,0 +1,132 @@
+package org.elasql.migration;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.elasql.cache.tpart.TPartCacheMgr;
+import org.elasql.server.Elasql;
+import org.elasql.sql.PrimaryKey;
+import org.elasql.sql.PrimaryKeyBuilder;
+import org.vanilladb.core.query.algebra.TablePlan;
+import org.vanilladb.core.query.algebra.UpdateScan;
+import org.vanilladb.core.storage.record.RecordId;
+import org.vanilladb.core.storage.tx.Transaction;
+
+/**
+ * Enumerates the keys of the records in the local storage by scanning the
+ * given tables one by one. The keys are read in batches, each by a short
+ * read-only transaction that continues from the record where the last one
+ * stopped, so no lock is held between two batches and only one batch of keys
+ * is in memory.<br>
+ * <br>
+ * With T-Part, a record of the partition may only be in the cache. Such
+ * keys are enumerated after the tables are scanned.
+ */
+public class TableScanKeyIterator implements Iterator<PrimaryKey> {
+
+	private int batchSize;
+	private Iterator<Map.Entry<String, String[]>> tableIter;
+	private String tableName;
+	private String[] keyFields;
+	private RecordId lastRecordId;
+	private boolean isTableDone = true;
+	private Iterator<PrimaryKey> keyIter = Collections.<PrimaryKey>emptyList().iterator();
+
+	// The keys of the cached records that have not been found in the tables
+	private Set<PrimaryKey> cacheOnlyKeys;
+	private boolean isCacheDone;
+
+	/**
+	 * @param partId the partition whose cached keys are enumerated
+	 * @param keyFieldsByTable the key fields of each table to scan
+	 */
+	public TableScanKeyIterator(int partId, Map<String, String[]> keyFieldsByTable) {
+		this(partId, keyFieldsByTable, MigrationSettings.CHUNK_SIZE_IN_COUNT);
+	}
+
+	/**
+	 * @param partId the partition whose cached keys are enumerated
+	 * @param keyFieldsByTable the key fields of each table to scan
+	 * @param batchSize the number of keys read by a transaction
+	 */
+	public TableScanKeyIterator(int partId, Map<String, String[]> keyFieldsByTable, int batchSize) {
+		this.batchSize = batchSize;
+		this.tableIter = new LinkedHashMap<String, String[]>(keyFieldsByTable).entrySet().iterator();
+		this.cacheOnlyKeys = collectCachedKeys(partId, keyFieldsByTable.keySet());
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (!keyIter.hasNext()) {
+			if (!isTableDone)
+				keyIter = scanNextBatch().iterator();
+			else if (tableIter.hasNext()) {
+				Map.Entry<String, String[]> table = tableIter.next();
+				tableName = table.getKey();
+				keyFields = table.getValue();
+				lastRecordId = null;
+				isTableDone = false;
+			} else if (!isCacheDone) {
+				keyIter = cacheOnlyKeys.iterator();
+				isCacheDone = true;
+			} else
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public PrimaryKey next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return keyIter.next();
+	}
+
+	private List<PrimaryKey> scanNextBatch() {
+		List<PrimaryKey> keys = new ArrayList<PrimaryKey>(batchSize);
+		Transaction tx = Elasql.txMgr().newTransaction(Connection.TRANSACTION_READ_COMMITTED, true);
+		UpdateScan s = (UpdateScan) new TablePlan(tableName, tx).open();
+		if (lastRecordId == null)
+			s.beforeFirst();
+		else
+			s.moveToRecordId(lastRecordId);
+
+		while (keys.size() < batchSize && s.next()) {
+			PrimaryKeyBuilder builder = new PrimaryKeyBuilder(tableName);
+			for (String fld : keyFields)
+				builder.addFldVal(fld, s.getVal(fld));
+			PrimaryKey key = builder.build();
+			keys.add(key);
+			cacheOnlyKeys.remove(key);
+		}
+
+		if (keys.size() < batchSize)
+			isTableDone = true;
+		else
+			lastRecordId = s.getRecordId();
+		s.close();
+		tx.commit();
+		return keys;
+	}
+
+	private static Set<PrimaryKey> collectCachedKeys(int partId, Set<String> tableNames) {
+		Set<PrimaryKey> keys = new HashSet<PrimaryKey>();
+		if (!(Elasql.remoteRecReceiver() instanceof TPartCacheMgr))
+			return keys;
+
+		TPartCacheMgr cacheMgr = (TPartCacheMgr) Elasql.remoteRecReceiver();
+		for (PrimaryKey key : cacheMgr.cachedKeys())
+			if (tableNames.contains(key.getTableName())
+					&& Elasql.partitionMetaMgr().getPartition(key) == partId)
+				keys.add(key);
+		return keys;
+	}
+}
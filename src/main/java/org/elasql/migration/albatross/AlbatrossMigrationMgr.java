@@ -281,24 +281,8 @@ public class AlbatrossMigrationMgr implements MigrationMgr {
 	}
 	
 	private Map<PrimaryKey, CachedRecord> readRecords(Transaction tx, Set<PrimaryKey> readKeys) {
-		Map<PrimaryKey, CachedRecord> recordMap = new HashMap<PrimaryKey, CachedRecord>();
-		
-		// Construct key sets
-		Map<String, Set<PrimaryKey>> keysPerTables = new HashMap<String, Set<PrimaryKey>>();
-		for (PrimaryKey key : readKeys) {
-			Set<PrimaryKey> keys = keysPerTables.get(key.getTableName());
-			if (keys == null) {
-				keys = new HashSet<PrimaryKey>();
-				keysPerTables.put(key.getTableName(), keys);
-			}
-			keys.add(key);
-		}
-
-		// Batch read the records per table
-		for (Map.Entry<String, Set<PrimaryKey>> entry : keysPerTables.entrySet())
-			recordMap.putAll(VanillaCoreCrud.batchRead(entry.getValue(), tx));
-		
-		return recordMap;
+		// The keys of all the tables are read in one batch
+		return VanillaCoreCrud.batchRead(readKeys, tx);
 	}
 	
 	private void readAndPushChanges(Transaction tx, int destination) {
@@ -12,16 +12,59 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.elasql.sql.PartitioningKey;
+import org.elasql.util.ElasqlProperties;
 
+/**
+ * The access counts of the vertices (ranges of records) and the co-access
+ * counts between them. The counts are kept in primitive arrays indexed by
+ * integer vertex ids, and the edges in an open-addressing table keyed by the
+ * pairs of ids, so that the graph can be updated for every transaction
+ * without creating objects for each vertex and edge.<br>
+ * <br>
+ * The {@link Vertex} and {@link OutEdge} objects used by the planner are
+ * built when they are first asked for, and are dropped (keeping the
+ * partitions assigned to them) when the graph is updated again.<br>
+ * <br>
+ * Counting every pair of co-accessed vertices is quadratic in the number of
+ * keys a transaction accesses, so the cost is bounded in two ways. A
+ * transaction with more than {@link #MAX_PAIRS_PER_TX} pairs only counts that
+ * many pairs picked at random, each weighted so that the expected weights stay
+ * the same. If {@link #MAX_EDGES} is set, the edges are kept as a
+ * Space-Saving summary: once the graph is full, a new edge takes the place of
+ * the lightest one and inherits its weight. A heavy edge is then never
+ * dropped for a stream of light ones, and the weight of an edge is
+ * overestimated by at most the lightest weight when it came in.
+ */
 public class HeatGraph implements Serializable {
 
 	private static final long serialVersionUID = 20190612001L;
+
+	/**
+	 * The maximum number of co-accessed pairs counted for a transaction. 0
+	 * means no limit.
+	 */
+	public static final int MAX_PAIRS_PER_TX;
+
+	/**
+	 * The maximum number of edges kept in a graph, beyond which a new edge
+	 * replaces the lightest one. 0 means no limit.
+	 */
+	public static final int MAX_EDGES;
+
+	static {
+		MAX_PAIRS_PER_TX = ElasqlProperties.getLoader()
+				.getPropertyAsInteger(HeatGraph.class.getName() + ".MAX_PAIRS_PER_TX", 128);
+		MAX_EDGES = ElasqlProperties.getLoader()
+				.getPropertyAsInteger(HeatGraph.class.getName() + ".MAX_EDGES", 0);
+	}
 	
 	static HeatGraph deserializeFromFile(File inputFileName) {
 		ObjectInputStream inputStream = null;
@@ -42,23 +85,95 @@ public class HeatGraph implements Serializable {
 		return null;
 	}
 
-	private Map<PartitioningKey, Vertex> vertices = new HashMap<PartitioningKey, Vertex>(1000000);
+	// The vertices are numbered in the order they are added. A vertex is
+	// found by its key through an open-addressing table of (id + 1).
+	private PartitioningKey[] keys;
+	private int[] partIds;
+	private int[] weights;
+	private int vertexCount;
+	private int[] idSlots;
+
+	// The edges are undirected, so each pair of vertices (u < v) is
+	// stored once as ((long) u << 32) | v. The edges are numbered in the
+	// order they are added, and an edge is found by its pair through an
+	// open-addressing table of (id + 1).
+	private long[] edgePairs;
+	private int[] edgeWeights;
+	private int edgeCount;
+	private int[] edgeSlots;
+
+	// With a limit on the edges, the edge ids in a min-heap by weight and
+	// the position of each edge in the heap
+	private int maxEdges;
+	private int[] heap;
+	private int[] heapPos;
+
+	// The vertex objects for planning, built on demand and dropped when
+	// the weights change
+	private Vertex[] view;
+
+	HeatGraph() {
+		this(MAX_EDGES);
+	}
+
+	HeatGraph(int maxEdges) {
+		this.maxEdges = maxEdges;
+		initVertices(1024);
+		initEdges(1024);
+	}
 
 	void updateWeightOnVertex(PartitioningKey key, int partId) {
-		Vertex vertex = vertices.get(key);
+		dropView();
+
 		// Note that a vertex represents a range of records.
-		if (vertex == null)
-			vertices.put(key, new Vertex(key, partId));
+		int id = idOf(key);
+		if (id == -1)
+			addVertex(key, partId, 1);
 		else
-			vertex.incrementWeight();
+			weights[id]++;
 	}
 
 	// Update weights for co-accessed vertices
 	void updateWeightOnEdges(Collection<PartitioningKey> coaccessedVertices) {
-		for (PartitioningKey i : coaccessedVertices)
-			for (PartitioningKey j : coaccessedVertices)
-				if (!i.equals(j))
-					vertices.get(i).addEdgeTo(vertices.get(j));
+		dropView();
+
+		int[] ids = new int[coaccessedVertices.size()];
+		int count = 0;
+		for (PartitioningKey key : coaccessedVertices)
+			ids[count++] = idOf(key);
+
+		long pairCount = (long) count * (count - 1) / 2;
+		if (MAX_PAIRS_PER_TX <= 0 || pairCount <= MAX_PAIRS_PER_TX) {
+			// Each pair of accesses adds one to the edge in both directions
+			for (int i = 0; i < count; i++)
+				for (int j = i + 1; j < count; j++)
+					if (ids[i] != ids[j])
+						addEdgeWeight(ids[i], ids[j], 1);
+		} else
+			samplePairs(ids, count, pairCount);
+	}
+
+	// Counts MAX_PAIRS_PER_TX random pairs, each of which stands for
+	// (pairCount / MAX_PAIRS_PER_TX) pairs. The fraction is rounded up or
+	// down at random, so the expected weight of each edge is exact.
+	private void samplePairs(int[] ids, int count, long pairCount) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		double scale = (double) pairCount / MAX_PAIRS_PER_TX;
+		int baseWeight = (int) scale;
+		double fraction = scale - baseWeight;
+
+		for (int n = 0; n < MAX_PAIRS_PER_TX; n++) {
+			int i = random.nextInt(count);
+			int j = random.nextInt(count - 1);
+			if (j >= i)
+				j++;
+			if (ids[i] == ids[j])
+				continue;
+
+			int weight = baseWeight + (random.nextDouble() < fraction ? 1 : 0);
+			if (weight > 0)
+				addEdgeWeight(ids[i], ids[j], weight);
+		}
 	}
 
 	List<Partition> splitToPartitions(int totalPartitions, double multiPartsCost) {
@@ -66,7 +181,7 @@ public class HeatGraph implements Serializable {
 		for (int i = 0; i < totalPartitions; i++)
 			partitions.add(new Partition(i, multiPartsCost));
 
-		for (Vertex v : vertices.values())
+		for (Vertex v : getView())
 			if (v.getPartId() < totalPartitions)
 				partitions.get(v.getPartId()).addVertex(v);
 
@@ -74,11 +189,15 @@ public class HeatGraph implements Serializable {
 	}
 
 	Vertex getVertex(PartitioningKey key) {
-		return vertices.get(key);
+		int id = idOf(key);
+		return (id == -1) ? null : getView()[id];
 	}
 
 	Map<PartitioningKey, Vertex> getVertice() {
-		return new HashMap<PartitioningKey, Vertex>(vertices);
+		Map<PartitioningKey, Vertex> vertices = new HashMap<PartitioningKey, Vertex>(vertexCount);
+		for (Vertex v : getView())
+			vertices.put(v.getKey(), v);
+		return vertices;
 	}
 	
 	void generateMetisGraphFile(File dirPath) throws IOException {
@@ -88,16 +207,13 @@ public class HeatGraph implements Serializable {
 		else if (!dirPath.exists())
 			dirPath.mkdirs();
 		
-		// Create a mapping from vertex keys to integers and count edges
-		int edgeCount = 0;
-		List<PartitioningKey> keys = new ArrayList<PartitioningKey>();
-		Map<PartitioningKey, Integer> keyToInt = new HashMap<PartitioningKey, Integer>(vertices.size());
-		for (Vertex v : vertices.values()) {
-			edgeCount += v.getOutEdgeCount();
-			keys.add(v.getKey());
-			keyToInt.put(v.getKey(), keys.size()); // id starts from 1
+		// Create a mapping from vertex keys to integers
+		List<PartitioningKey> keys = new ArrayList<PartitioningKey>(vertexCount);
+		Map<PartitioningKey, Integer> keyToInt = new HashMap<PartitioningKey, Integer>(vertexCount);
+		for (int id = 0; id < vertexCount; id++) {
+			keys.add(this.keys[id]);
+			keyToInt.put(this.keys[id], id + 1); // id starts from 1
 		}
-		edgeCount /= 2; // because each edge is counted twice
 		
 		// Write the mapping file
 		File mappingFile = new File(dirPath, "mapping.bin");
@@ -105,7 +221,7 @@ public class HeatGraph implements Serializable {
 		
 		// Write the metis graph file
 		File metisFile = new File(dirPath, "metis.txt");
-		writeMetisFile(metisFile, keys, keyToInt, vertices.size(), edgeCount);
+		writeMetisFile(metisFile, keys, keyToInt, vertexCount, edgeCount);
 	}
 	
 	private void writeMetisMappingFile(File filePath, Map<PartitioningKey, Integer> mapping) throws IOException {
@@ -122,8 +238,9 @@ public class HeatGraph implements Serializable {
 			writer.write(String.format("%d %d 011\n", vertexCount, edgeCount));
 	
 			// Write each vertex
+			Vertex[] vertices = getView();
 			for (PartitioningKey key : keys) {
-				Vertex v = vertices.get(key);
+				Vertex v = vertices[idOf(key)];
 				writer.write(v.toMetisFormat(keyToInt));
 				writer.write("\n");
 			}
@@ -151,43 +268,59 @@ public class HeatGraph implements Serializable {
 	}
 	
 	void addVertex(Vertex v) {
-		vertices.put(v.getKey(), v);
+		dropView();
+		
+		int id = idOf(v.getKey());
+		if (id == -1)
+			id = addVertex(v.getKey(), v.getPartId(), v.getVertexWeight());
+		else {
+			partIds[id] = v.getPartId();
+			weights[id] = v.getVertexWeight();
+		}
+		
+		for (OutEdge e : v.getOutEdges()) {
+			int oppositeId = idOf(e.getOpposite().getKey());
+			if (oppositeId != -1)
+				setEdgeWeight(id, oppositeId, e.getWeight());
+		}
 	}
 
 	private void writeObject(ObjectOutputStream out) throws IOException {
+		// Keep the changes made by the planner
+		dropView();
+		
 		// # of vertices
-		out.writeInt(vertices.size());
+		out.writeInt(vertexCount);
 		
 		// Each vertex
-		int edgeCount = 0;
-		for (Vertex v : vertices.values()) {
-			out.writeObject(v.getKey());
-			out.writeInt(v.getPartId());
-			out.writeInt(v.getVertexWeight());
-			edgeCount += v.getOutEdgeCount();
+		for (int id = 0; id < vertexCount; id++) {
+			out.writeObject(keys[id]);
+			out.writeInt(partIds[id]);
+			out.writeInt(weights[id]);
 		}
 		
-		// # of edges
-		out.writeInt(edgeCount);
+		// # of edges, each of which is written in both directions
+		out.writeInt(edgeCount * 2);
 		
 		// Each edge
-		for (Vertex v : vertices.values()) {
-			PartitioningKey fromKey = v.getKey();
-			for (OutEdge edge : v.getOutEdges()) {
-				PartitioningKey toKey = edge.getOpposite().getKey();
-				int weight = edge.getWeight();
-				
-				out.writeObject(fromKey);
-				out.writeObject(toKey);
-				out.writeInt(weight);
-			}
+		for (int e = 0; e < edgeCount; e++) {
+			PartitioningKey fromKey = keys[(int) (edgePairs[e] >>> 32)];
+			PartitioningKey toKey = keys[(int) edgePairs[e]];
+			int weight = edgeWeights[e];
+			
+			out.writeObject(fromKey);
+			out.writeObject(toKey);
+			out.writeInt(weight);
+			out.writeObject(toKey);
+			out.writeObject(fromKey);
+			out.writeInt(weight);
 		}
 	}
 
 	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
 		// # of vertices
 		int vertexCount = in.readInt();
-		this.vertices = new HashMap<PartitioningKey, Vertex>(vertexCount);
+		initVertices(vertexCount);
 		
 		// Each vertex
 		for (int i = 0; i < vertexCount; i++) {
@@ -195,12 +328,13 @@ public class HeatGraph implements Serializable {
 			int partId = in.readInt();
 			int weight = in.readInt();
 			
-			Vertex v = new Vertex(key, partId, weight);
-			vertices.put(key, v);
+			addVertex(key, partId, weight);
 		}
 		
 		// # of edges
 		int edgeCount = in.readInt();
+		maxEdges = MAX_EDGES;
+		initEdges(edgeCount / 2);
 		
 		// Each edge
 		for (int i = 0; i < edgeCount; i++) {
@@ -208,9 +342,259 @@ public class HeatGraph implements Serializable {
 			PartitioningKey toKey = (PartitioningKey) in.readObject();
 			int weight = in.readInt();
 			
-			Vertex from = vertices.get(fromKey);
-			Vertex to = vertices.get(toKey);
-			from.setEdgeTo(to, weight);
+			setEdgeWeight(idOf(fromKey), idOf(toKey), weight);
+		}
+	}
+	
+	private Vertex[] getView() {
+		if (view == null) {
+			Vertex[] vertices = new Vertex[vertexCount];
+			for (int id = 0; id < vertexCount; id++)
+				vertices[id] = new Vertex(keys[id], partIds[id], weights[id]);
+			for (int e = 0; e < edgeCount; e++) {
+				Vertex u = vertices[(int) (edgePairs[e] >>> 32)];
+				Vertex v = vertices[(int) edgePairs[e]];
+				u.setEdgeTo(v, edgeWeights[e]);
+				v.setEdgeTo(u, edgeWeights[e]);
+			}
+			view = vertices;
 		}
+		return view;
+	}
+	
+	private void dropView() {
+		if (view == null)
+			return;
+		
+		// The planner may have moved some vertices
+		for (int id = 0; id < vertexCount; id++)
+			partIds[id] = view[id].getPartId();
+		view = null;
+	}
+	
+	private void initVertices(int capacity) {
+		capacity = Math.max(capacity, 16);
+		keys = new PartitioningKey[capacity];
+		partIds = new int[capacity];
+		weights = new int[capacity];
+		vertexCount = 0;
+		idSlots = new int[tableSizeFor(capacity)];
+	}
+	
+	private void initEdges(int capacity) {
+		capacity = Math.max(capacity, 16);
+		edgePairs = new long[capacity];
+		edgeWeights = new int[capacity];
+		edgeCount = 0;
+		edgeSlots = new int[tableSizeFor(capacity)];
+		if (maxEdges > 0) {
+			heap = new int[capacity];
+			heapPos = new int[capacity];
+		}
+	}
+	
+	private int idOf(PartitioningKey key) {
+		int mask = idSlots.length - 1;
+		int slot = mix(key.hashCode()) & mask;
+		while (idSlots[slot] != 0) {
+			int id = idSlots[slot] - 1;
+			if (keys[id].equals(key))
+				return id;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+	
+	private int addVertex(PartitioningKey key, int partId, int weight) {
+		if (vertexCount == keys.length) {
+			int capacity = keys.length * 2;
+			keys = Arrays.copyOf(keys, capacity);
+			partIds = Arrays.copyOf(partIds, capacity);
+			weights = Arrays.copyOf(weights, capacity);
+		}
+		if ((vertexCount + 1) * 2 > idSlots.length)
+			rehashVertices(idSlots.length * 2);
+		
+		int id = vertexCount++;
+		keys[id] = key;
+		partIds[id] = partId;
+		weights[id] = weight;
+		insertId(idSlots, id);
+		return id;
+	}
+	
+	private void rehashVertices(int size) {
+		idSlots = new int[size];
+		for (int id = 0; id < vertexCount; id++)
+			insertId(idSlots, id);
+	}
+	
+	private void insertId(int[] slots, int id) {
+		int mask = slots.length - 1;
+		int slot = mix(keys[id].hashCode()) & mask;
+		while (slots[slot] != 0)
+			slot = (slot + 1) & mask;
+		slots[slot] = id + 1;
+	}
+	
+	private void addEdgeWeight(int u, int v, int delta) {
+		long pair = pairOf(u, v);
+		int e = edgeIdOf(pair);
+		if (e == -1)
+			addEdge(pair, delta);
+		else {
+			edgeWeights[e] += delta;
+			if (maxEdges > 0)
+				siftDown(heapPos[e]);
+		}
+	}
+	
+	private void setEdgeWeight(int u, int v, int weight) {
+		long pair = pairOf(u, v);
+		int e = edgeIdOf(pair);
+		if (e == -1)
+			addEdge(pair, weight);
+		else {
+			edgeWeights[e] = weight;
+			if (maxEdges > 0) {
+				siftUp(heapPos[e]);
+				siftDown(heapPos[e]);
+			}
+		}
+	}
+	
+	private void addEdge(long pair, int weight) {
+		if (maxEdges > 0 && edgeCount >= maxEdges) {
+			// The new edge takes the place of the lightest one and
+			// inherits its weight
+			int e = heap[0];
+			removeEdgeSlot(e);
+			edgePairs[e] = pair;
+			edgeWeights[e] += weight;
+			insertEdgeId(edgeSlots, e);
+			siftDown(0);
+			return;
+		}
+		
+		if (edgeCount == edgePairs.length) {
+			int capacity = edgePairs.length * 2;
+			edgePairs = Arrays.copyOf(edgePairs, capacity);
+			edgeWeights = Arrays.copyOf(edgeWeights, capacity);
+			if (maxEdges > 0) {
+				heap = Arrays.copyOf(heap, capacity);
+				heapPos = Arrays.copyOf(heapPos, capacity);
+			}
+		}
+		if ((edgeCount + 1) * 2 > edgeSlots.length)
+			rehashEdges(edgeSlots.length * 2);
+		
+		int e = edgeCount++;
+		edgePairs[e] = pair;
+		edgeWeights[e] = weight;
+		insertEdgeId(edgeSlots, e);
+		if (maxEdges > 0) {
+			heap[e] = e;
+			heapPos[e] = e;
+			siftUp(e);
+		}
+	}
+	
+	private int edgeIdOf(long pair) {
+		int mask = edgeSlots.length - 1;
+		int slot = mix(Long.hashCode(pair)) & mask;
+		while (edgeSlots[slot] != 0) {
+			int e = edgeSlots[slot] - 1;
+			if (edgePairs[e] == pair)
+				return e;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+	
+	// Removes the edge from the table, moving the edges after it in the
+	// probe sequence back so that they can still be found
+	private void removeEdgeSlot(int e) {
+		int mask = edgeSlots.length - 1;
+		int hole = mix(Long.hashCode(edgePairs[e])) & mask;
+		while (edgeSlots[hole] != e + 1)
+			hole = (hole + 1) & mask;
+		edgeSlots[hole] = 0;
+		
+		int slot = hole;
+		while (true) {
+			slot = (slot + 1) & mask;
+			if (edgeSlots[slot] == 0)
+				return;
+			int home = mix(Long.hashCode(edgePairs[edgeSlots[slot] - 1])) & mask;
+			// Move it if the hole is between its home and its slot
+			if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+				edgeSlots[hole] = edgeSlots[slot];
+				edgeSlots[slot] = 0;
+				hole = slot;
+			}
+		}
+	}
+	
+	private void rehashEdges(int size) {
+		edgeSlots = new int[size];
+		for (int e = 0; e < edgeCount; e++)
+			insertEdgeId(edgeSlots, e);
+	}
+	
+	private void insertEdgeId(int[] slots, int e) {
+		int mask = slots.length - 1;
+		int slot = mix(Long.hashCode(edgePairs[e])) & mask;
+		while (slots[slot] != 0)
+			slot = (slot + 1) & mask;
+		slots[slot] = e + 1;
+	}
+	
+	private void siftUp(int pos) {
+		int e = heap[pos];
+		while (pos > 0) {
+			int parent = (pos - 1) / 2;
+			if (edgeWeights[heap[parent]] <= edgeWeights[e])
+				break;
+			placeInHeap(heap[parent], pos);
+			pos = parent;
+		}
+		placeInHeap(e, pos);
+	}
+	
+	private void siftDown(int pos) {
+		int e = heap[pos];
+		while (true) {
+			int child = pos * 2 + 1;
+			if (child >= edgeCount)
+				break;
+			if (child + 1 < edgeCount && edgeWeights[heap[child + 1]] < edgeWeights[heap[child]])
+				child++;
+			if (edgeWeights[heap[child]] >= edgeWeights[e])
+				break;
+			placeInHeap(heap[child], pos);
+			pos = child;
+		}
+		placeInHeap(e, pos);
+	}
+	
+	private void placeInHeap(int e, int pos) {
+		heap[pos] = e;
+		heapPos[e] = pos;
+	}
+	
+	private static long pairOf(int u, int v) {
+		return (u < v) ? ((long) u << 32) | v : ((long) v << 32) | u;
+	}
+	
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+	
+	private static int tableSizeFor(int capacity) {
+		int size = 16;
+		while (size < capacity * 2)
+			size <<= 1;
+		return size;
 	}
 }
@@ -22,6 +22,11 @@ public class ScatterPartitionPlan extends PartitionPlan {
 		return basePartition.isFullyReplicated(key);
 	}
 
+	@Override
+	public TablePlacement getTablePlacement(String tableName) {
+		return basePartition.getTablePlacement(tableName);
+	}
+
 	@Override
 	public int getPartition(PrimaryKey key) {
 		PartitioningKey partKey = basePartition.getPartitioningKey(key);
@@ -0,0 +1,102 @@
+package org.elasql.migration.planner.hashing;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasql.migration.MigrationComponentFactory;
+import org.elasql.migration.MigrationPlan;
+import org.elasql.migration.MigrationRange;
+import org.elasql.storage.metadata.ConsistentHashPartitionPlan;
+import org.elasql.storage.metadata.ConsistentHashPartitionPlan.Arc;
+import org.elasql.storage.metadata.PartitionPlan;
+
+/**
+ * A migration plan that moves a {@link ConsistentHashPartitionPlan} to
+ * another one with a different number of partitions. The plan consists of
+ * the hash ranges whose owners change, so only the keys in these ranges are
+ * migrated.
+ */
+public class ConsistentHashMigrationPlan implements MigrationPlan {
+
+	private static final long serialVersionUID = 20210305002L;
+
+	/**
+	 * Creates the plan that adds one partition to the given plan.
+	 */
+	public static ConsistentHashMigrationPlan forScaleOut(ConsistentHashPartitionPlan currentPlan) {
+		return new ConsistentHashMigrationPlan(currentPlan, currentPlan.scaleOut());
+	}
+
+	private final int newNumOfParts;
+	private final int virtualNodes;
+	private final List<Arc> arcs;
+
+	public ConsistentHashMigrationPlan(ConsistentHashPartitionPlan currentPlan,
+			ConsistentHashPartitionPlan newPlan) {
+		if (currentPlan.getVirtualNodes() != newPlan.getVirtualNodes())
+			throw new IllegalArgumentException("the plans have different numbers of virtual nodes");
+
+		this.newNumOfParts = newPlan.numberOfPartitions();
+		this.virtualNodes = newPlan.getVirtualNodes();
+		this.arcs = currentPlan.arcsMovedTo(newPlan);
+	}
+
+	private ConsistentHashMigrationPlan(int newNumOfParts, int virtualNodes, List<Arc> arcs) {
+		this.newNumOfParts = newNumOfParts;
+		this.virtualNodes = virtualNodes;
+		this.arcs = arcs;
+	}
+
+	public List<Arc> getArcs() {
+		return arcs;
+	}
+
+	@Override
+	public PartitionPlan getNewPart() {
+		// The plan is rebuilt, since the positions of the virtual
+		// nodes only depend on the partition ids
+		return new ConsistentHashPartitionPlan(newNumOfParts, virtualNodes);
+	}
+
+	@Override
+	public List<MigrationRange> getMigrationRanges(MigrationComponentFactory factory) {
+		List<MigrationRange> ranges = new ArrayList<MigrationRange>();
+		for (Map.Entry<Long, List<Arc>> entry : groupByRoutes().entrySet()) {
+			Arc first = entry.getValue().get(0);
+			ranges.add(factory.toMigrationRange(first.getSourcePartId(), first.getDestPartId(),
+					entry.getValue()));
+		}
+		return ranges;
+	}
+
+	@Override
+	public List<MigrationPlan> splits() {
+		// One plan for each pair of source and destination
+		List<MigrationPlan> plans = new ArrayList<MigrationPlan>();
+		for (List<Arc> routeArcs : groupByRoutes().values())
+			plans.add(new ConsistentHashMigrationPlan(newNumOfParts, virtualNodes, routeArcs));
+		return plans;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("{Moves %d hash ranges to a consistent hash plan with %d partitions}",
+				arcs.size(), newNumOfParts);
+	}
+
+	private Map<Long, List<Arc>> groupByRoutes() {
+		Map<Long, List<Arc>> arcsByRoutes = new LinkedHashMap<Long, List<Arc>>();
+		for (Arc arc : arcs) {
+			long route = ((long) arc.getSourcePartId() << 32) | arc.getDestPartId();
+			List<Arc> routeArcs = arcsByRoutes.get(route);
+			if (routeArcs == null) {
+				routeArcs = new ArrayList<Arc>();
+				arcsByRoutes.put(route, routeArcs);
+			}
+			routeArcs.add(arc);
+		}
+		return arcsByRoutes;
+	}
+}
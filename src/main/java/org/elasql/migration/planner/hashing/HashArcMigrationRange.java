@@ -0,0 +1,156 @@
+package org.elasql.migration.planner.hashing;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.elasql.migration.MigrationComponentFactory;
+import org.elasql.migration.MigrationRange;
+import org.elasql.migration.MigrationRangeUpdate;
+import org.elasql.migration.MigrationSettings;
+import org.elasql.sql.PrimaryKey;
+import org.elasql.storage.metadata.ConsistentHashPartitionPlan;
+import org.elasql.storage.metadata.ConsistentHashPartitionPlan.Arc;
+
+/**
+ * A migration range that contains the keys whose hash values fall in some
+ * ranges of a consistent hash ring. Checking if a key is in the range needs
+ * no enumeration, but finding the keys to push does, so the keys of the
+ * source partition are enumerated by
+ * {@link MigrationComponentFactory#newKeyIterator(int)} and filtered by the
+ * hash ranges.
+ */
+public class HashArcMigrationRange implements MigrationRange {
+
+	private int sourcePartId, destPartId;
+	private long[] starts, ends;
+
+	private MigrationComponentFactory factory;
+	private Iterator<PrimaryKey> keyIterator;
+	private Deque<PrimaryKey> insertedKeys = new ArrayDeque<PrimaryKey>();
+	private Set<PrimaryKey> pushedKeys = new HashSet<PrimaryKey>();
+	private boolean isAllPushed;
+
+	private Set<PrimaryKey> migratedKeys = new HashSet<PrimaryKey>();
+	private boolean isAllMigrated;
+
+	/**
+	 * @param arcs the hash ranges sorted by their positions
+	 */
+	public HashArcMigrationRange(int sourcePartId, int destPartId, List<Arc> arcs,
+			MigrationComponentFactory factory) {
+		this.sourcePartId = sourcePartId;
+		this.destPartId = destPartId;
+		this.factory = factory;
+		this.starts = new long[arcs.size()];
+		this.ends = new long[arcs.size()];
+		for (int i = 0; i < arcs.size(); i++) {
+			starts[i] = arcs.get(i).getStart();
+			ends[i] = arcs.get(i).getEnd();
+		}
+	}
+
+	@Override
+	public boolean addKey(PrimaryKey key) {
+		if (!contains(key))
+			return false;
+		insertedKeys.add(key);
+		return true;
+	}
+
+	@Override
+	public boolean contains(PrimaryKey key) {
+		long hash = ConsistentHashPartitionPlan.ringHash(key);
+
+		// Find the last range starting at or before the hash
+		int low = 0, high = starts.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (starts[mid] <= hash)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		return high >= 0 && hash <= ends[high];
+	}
+
+	@Override
+	public boolean isMigrated(PrimaryKey key) {
+		return isAllMigrated || migratedKeys.contains(key);
+	}
+
+	@Override
+	public void setMigrated(PrimaryKey key) {
+		if (contains(key))
+			migratedKeys.add(key);
+	}
+
+	@Override
+	public Set<PrimaryKey> generateNextMigrationChunk(boolean useBytesForSize, int maxChunkSize) {
+		// The sizes of the records are unknown from their keys, so a chunk
+		// measured in bytes is limited by the number of keys instead
+		if (useBytesForSize)
+			maxChunkSize = MigrationSettings.CHUNK_SIZE_IN_COUNT;
+		if (keyIterator == null)
+			keyIterator = factory.newKeyIterator(sourcePartId);
+
+		Set<PrimaryKey> chunk = new HashSet<PrimaryKey>();
+		while (chunk.size() < maxChunkSize && !insertedKeys.isEmpty())
+			addToChunk(chunk, insertedKeys.removeFirst());
+		while (chunk.size() < maxChunkSize && keyIterator.hasNext()) {
+			PrimaryKey key = keyIterator.next();
+			if (contains(key))
+				addToChunk(chunk, key);
+		}
+
+		if (insertedKeys.isEmpty() && !keyIterator.hasNext())
+			isAllPushed = true;
+		return chunk;
+	}
+
+	@Override
+	public int getSourcePartId() {
+		return sourcePartId;
+	}
+
+	@Override
+	public int getDestPartId() {
+		return destPartId;
+	}
+
+	@Override
+	public MigrationRangeUpdate generateStatusUpdate() {
+		// Only sends the keys pushed since the last update
+		HashArcMigrationRangeUpdate update = new HashArcMigrationRangeUpdate(
+				sourcePartId, destPartId, pushedKeys, isAllPushed);
+		pushedKeys = new HashSet<PrimaryKey>();
+		return update;
+	}
+
+	@Override
+	public boolean updateMigrationStatus(MigrationRangeUpdate update) {
+		if (!(update instanceof HashArcMigrationRangeUpdate) || update.getSourcePartId() != sourcePartId
+				|| update.getDestPartId() != destPartId)
+			return false;
+
+		HashArcMigrationRangeUpdate hUpdate = (HashArcMigrationRangeUpdate) update;
+		migratedKeys.addAll(hUpdate.getPushedKeys());
+		if (hUpdate.isAllPushed())
+			isAllMigrated = true;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Migration from part.%d to part.%d with %d hash ranges",
+				sourcePartId, destPartId, starts.length);
+	}
+
+	private void addToChunk(Set<PrimaryKey> chunk, PrimaryKey key) {
+		if (!isMigrated(key) && chunk.add(key))
+			pushedKeys.add(key);
+	}
+}
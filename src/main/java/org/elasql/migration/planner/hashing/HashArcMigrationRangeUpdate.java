@@ -0,0 +1,41 @@
+package org.elasql.migration.planner.hashing;
+
+import java.util.Set;
+
+import org.elasql.migration.MigrationRangeUpdate;
+import org.elasql.sql.PrimaryKey;
+
+public class HashArcMigrationRangeUpdate implements MigrationRangeUpdate {
+
+	private static final long serialVersionUID = 20210305003L;
+
+	private int sourcePartId, destPartId;
+	private Set<PrimaryKey> pushedKeys;
+	private boolean isAllPushed;
+
+	HashArcMigrationRangeUpdate(int sourcePartId, int destPartId,
+			Set<PrimaryKey> pushedKeys, boolean isAllPushed) {
+		this.sourcePartId = sourcePartId;
+		this.destPartId = destPartId;
+		this.pushedKeys = pushedKeys;
+		this.isAllPushed = isAllPushed;
+	}
+
+	@Override
+	public int getSourcePartId() {
+		return sourcePartId;
+	}
+
+	@Override
+	public int getDestPartId() {
+		return destPartId;
+	}
+
+	Set<PrimaryKey> getPushedKeys() {
+		return pushedKeys;
+	}
+
+	boolean isAllPushed() {
+		return isAllPushed;
+	}
+}
@@ -0,0 +1,71 @@
+package org.elasql.procedure.calvin;
+
+import org.vanilladb.core.storage.tx.Transaction;
+import org.vanilladb.core.storage.tx.TransactionLifecycleListener;
+
+/**
+ * Counts the transactions of the Calvin stored procedures that have been
+ * created but not finished yet. The transactions are created by the
+ * scheduler in the total order, so a transaction created by the scheduler can
+ * wait for all the earlier ones to finish.
+ */
+class ActiveTxCounter implements TransactionLifecycleListener {
+
+	private static final Object lock = new Object();
+	private static int activeTxCount;
+
+	/**
+	 * Counts the given transaction until it commits or rolls back.
+	 * 
+	 * @param tx the new transaction
+	 */
+	static void register(Transaction tx) {
+		synchronized (lock) {
+			activeTxCount++;
+		}
+		tx.addLifecycleListener(new ActiveTxCounter());
+	}
+
+	/**
+	 * Blocks until the given number of transactions, including the caller's
+	 * own, are the only ones still active.
+	 * 
+	 * @param count the number of transactions allowed to be active
+	 */
+	static void waitUntilAtMost(int count) throws InterruptedException {
+		synchronized (lock) {
+			while (activeTxCount > count)
+				lock.wait();
+		}
+	}
+
+	private boolean isFinished;
+
+	private ActiveTxCounter() {
+	}
+
+	@Override
+	public void onTxCommit(Transaction tx) {
+		finish();
+	}
+
+	@Override
+	public void onTxRollback(Transaction tx) {
+		finish();
+	}
+
+	@Override
+	public void onTxEndStatement(Transaction tx) {
+		// do nothing
+	}
+
+	private void finish() {
+		synchronized (lock) {
+			if (isFinished)
+				return;
+			isFinished = true;
+			activeTxCount--;
+			lock.notifyAll();
+		}
+	}
+}
@@ -101,7 +101,8 @@ public abstract class CalvinStoredProcedure<H extends StoredProcedureParamHelper
 		if (isParticipating()) {
 			// create a transaction
 			tx = Elasql.txMgr().newTransaction(Connection.TRANSACTION_SERIALIZABLE, execPlan.isReadOnly(), txNum);
-			tx.addLifecycleListener(new DdRecoveryMgr(tx.getTransactionNumber()));
+			tx.addLifecycleListener(new DdRecoveryMgr(tx.getTransactionNumber(), !isReadOnly()));
+			ActiveTxCounter.register(tx);
 
 			// create a cache manager
 			cacheMgr = postOffice.createCacheMgr(tx, execPlan.hasRemoteReads());
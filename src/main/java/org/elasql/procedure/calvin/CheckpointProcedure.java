@@ -0,0 +1,137 @@
+package org.elasql.procedure.calvin;
+
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.elasql.cache.CachedRecord;
+import org.elasql.schedule.calvin.ExecutionPlan;
+import org.elasql.schedule.calvin.ExecutionPlan.ParticipantRole;
+import org.elasql.schedule.calvin.ReadWriteSetAnalyzer;
+import org.elasql.server.Elasql;
+import org.elasql.sql.PrimaryKey;
+import org.elasql.storage.tx.recovery.DdRecoveryMgr;
+import org.elasql.storage.tx.recovery.RequestLogReplayer;
+import org.elasql.util.ElasqlProperties;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.server.task.Task;
+import org.vanilladb.core.sql.storedprocedure.StoredProcedureParamHelper;
+import org.vanilladb.core.storage.tx.Transaction;
+
+/**
+ * Takes a checkpoint on every server at the position of this transaction in
+ * the total order.<br>
+ * <br>
+ * The checkpoint is made by the scheduler while preparing this transaction,
+ * so no later transaction has been dispatched. The scheduler waits for the
+ * earlier transactions to finish (see {@link ActiveTxCounter}), flushes the storage with a checkpoint of
+ * VanillaCore, and then writes a checkpoint record to the request log (see
+ * {@link DdRecoveryMgr#logCheckpoint(long)}). In the logical-only logging
+ * mode, the data files are also copied as a snapshot in between. Every server
+ * does this at the same transaction, so the checkpoints of all the servers
+ * are consistent.<br>
+ * <br>
+ * This is the only checkpoint procedure, so the logical-only logging mode,
+ * which relies on the checkpoints, is only available for Calvin.
+ */
+public class CheckpointProcedure extends CalvinStoredProcedure<StoredProcedureParamHelper> {
+	private static Logger logger = Logger.getLogger(CheckpointProcedure.class.getName());
+
+	public static final int SP_CHECKPOINT = -201;
+
+	/**
+	 * The interval between two checkpoints in milliseconds. 0 disables the
+	 * periodic checkpoints.
+	 */
+	public static final long CHECKPOINT_INTERVAL;
+
+	static {
+		CHECKPOINT_INTERVAL = ElasqlProperties.getLoader()
+				.getPropertyAsLong(CheckpointProcedure.class.getName() + ".CHECKPOINT_INTERVAL", 0);
+	}
+
+	/**
+	 * Periodically requests a checkpoint through the total order. Only one
+	 * server needs to do this.
+	 */
+	public static void startPeriodicCheckpoints() {
+		if (CHECKPOINT_INTERVAL <= 0)
+			return;
+
+		VanillaDb.taskMgr().runTask(new Task() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(CHECKPOINT_INTERVAL);
+					} catch (InterruptedException e) {
+						if (logger.isLoggable(Level.INFO))
+							logger.info("stop requesting the periodic checkpoints");
+						return;
+					}
+					Elasql.connectionMgr().sendStoredProcedureCall(false, SP_CHECKPOINT, new Object[0]);
+				}
+			}
+		});
+	}
+
+	public CheckpointProcedure(long txNum) {
+		super(txNum, StoredProcedureParamHelper.newDefaultParamHelper());
+	}
+
+	@Override
+	protected ExecutionPlan analyzeParameters(Object[] pars) {
+		// Every server takes part without touching any record
+		ExecutionPlan plan = new ExecutionPlan();
+		plan.setParticipantRole(ParticipantRole.ACTIVE);
+		plan.setForceReadWriteTx();
+		return plan;
+	}
+
+	@Override
+	public void executeLogicInScheduler(Transaction tx) {
+		// A replayed checkpoint must not truncate the log being replayed
+		if (DdRecoveryMgr.isReplayed(txNum))
+			return;
+
+		long startTime = System.currentTimeMillis();
+
+		// Wait for the earlier transactions
+		boolean isInterrupted = false;
+		while (true) {
+			try {
+				ActiveTxCounter.waitUntilAtMost(1);
+				break;
+			} catch (InterruptedException e) {
+				// The checkpoint must not be taken while they are running
+				isInterrupted = true;
+			}
+		}
+		if (isInterrupted)
+			Thread.currentThread().interrupt();
+
+		VanillaDb.txMgr().createCheckpoint(tx);
+		// The snapshot must be complete before the log is truncated
+		RequestLogReplayer.takeSnapshot(txNum);
+		DdRecoveryMgr.logCheckpoint(txNum);
+
+		if (logger.isLoggable(Level.INFO))
+			logger.info(String.format("a checkpoint is taken at tx.%d in %d ms", txNum,
+					System.currentTimeMillis() - startTime));
+	}
+
+	@Override
+	protected void prepareKeys(ReadWriteSetAnalyzer analyzer) {
+
+	}
+
+	@Override
+	protected void executeSql(Map<PrimaryKey, CachedRecord> readings) {
+
+	}
+
+	@Override
+	public boolean willResponseToClients() {
+		return false;
+	}
+}
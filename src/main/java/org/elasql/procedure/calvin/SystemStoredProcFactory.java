@@ -0,0 +1,24 @@
+package org.elasql.procedure.calvin;
+
+/**
+ * Creates the stored procedures used by the system itself, and hands the
+ * other ones to the factory of the application.
+ */
+public class SystemStoredProcFactory implements CalvinStoredProcedureFactory {
+
+	private CalvinStoredProcedureFactory underlayerFactory;
+
+	public SystemStoredProcFactory(CalvinStoredProcedureFactory underlayerFactory) {
+		this.underlayerFactory = underlayerFactory;
+	}
+
+	@Override
+	public CalvinStoredProcedure<?> getStoredProcedure(int pid, long txNum) {
+		switch (pid) {
+			case CheckpointProcedure.SP_CHECKPOINT:
+				return new CheckpointProcedure(txNum);
+			default:
+				return underlayerFactory.getStoredProcedure(pid, txNum);
+		}
+	}
+}
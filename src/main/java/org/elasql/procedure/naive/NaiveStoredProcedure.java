@@ -87,7 +87,7 @@ public abstract class NaiveStoredProcedure<H extends StoredProcedureParamHelper>
 		this.tx = Elasql.txMgr().newTransaction(
 				Connection.TRANSACTION_SERIALIZABLE, isReadOnly, txNum);
 		this.tx.addLifecycleListener(new DdRecoveryMgr(tx
-				.getTransactionNumber()));
+				.getTransactionNumber(), !isReadOnly));
 
 		// prepare keys
 		prepareKeys();
@@ -82,7 +82,7 @@ public abstract class TPartStoredProcedure<H extends StoredProcedureParamHelper>
 		
 		// create a transaction
 		tx = Elasql.txMgr().newTransaction(Connection.TRANSACTION_SERIALIZABLE, plan.isReadOnly(), txNum);
-		tx.addLifecycleListener(new DdRecoveryMgr(tx.getTransactionNumber()));
+		tx.addLifecycleListener(new DdRecoveryMgr(tx.getTransactionNumber(), !isReadOnly()));
 
 		// create a local cache
 		cache = new TPartTxLocalCache(tx);
@@ -50,7 +50,8 @@ public class TupleSet implements Serializable {
 
 	public void addTuple(PrimaryKey key, long srcTxNum, long destTxNum,
 			CachedRecord rec) {
-		// Clone the record to prevent concurrent access from communication threads
+		// Clone the record to prevent concurrent access from communication threads.
+		// The clone shares the field values until one of the records is modified.
 		rec = new CachedRecord(rec);
 		tuples.add(new Tuple(key, srcTxNum, destTxNum, rec));
 	}
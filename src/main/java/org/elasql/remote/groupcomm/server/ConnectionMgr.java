@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,6 +32,9 @@ import org.elasql.remote.groupcomm.Tuple;
 import org.elasql.remote.groupcomm.TupleSet;
 import org.elasql.server.Elasql;
 import org.elasql.server.Elasql.ServiceType;
+import org.elasql.storage.tx.recovery.DdRecoveryMgr;
+import org.elasql.storage.tx.recovery.RequestLogSync;
+import org.elasql.util.ElasqlProperties;
 import org.vanilladb.comm.server.VanillaCommServer;
 import org.vanilladb.comm.server.VanillaCommServerListener;
 import org.vanilladb.comm.view.ProcessType;
@@ -40,11 +44,29 @@ public class ConnectionMgr implements VanillaCommServerListener {
 	private static Logger logger = Logger.getLogger(ConnectionMgr.class.getName());
 	
 	public static final int SEQUENCER_ID = VanillaCommServer.getServerCount() - 1;
+	
+	/**
+	 * The time in ms without any request after which the sequencer sends a
+	 * no-op request, so that the schedulers do not hold the last requests
+	 * forever. Only needed when the T-Part scheduler looks ahead at the
+	 * upcoming batches. 0 disables it.
+	 */
+	public static final long IDLE_NO_OP_DELAY;
+	
+	static {
+		IDLE_NO_OP_DELAY = ElasqlProperties.getLoader()
+				.getPropertyAsLong(ConnectionMgr.class.getName() + ".IDLE_NO_OP_DELAY", 0);
+	}
 
 	private VanillaCommServer commServer;
 	private boolean sequencerMode;
 	private BlockingQueue<List<Serializable>> tomSendQueue = new LinkedBlockingQueue<List<Serializable>>();
 	private boolean areAllServersReady = false;
+	
+	// The requests received before the scheduling starts
+	private final Object schedulingLock = new Object();
+	private List<StoredProcedureCall> pendingCalls = new ArrayList<StoredProcedureCall>();
+	private long txNumOffset;
 
 	public ConnectionMgr(int id) {
 		sequencerMode = Elasql.serverId() == SEQUENCER_ID;
@@ -58,7 +80,36 @@ public class ConnectionMgr implements VanillaCommServerListener {
 		}
 	}
 
+	/**
+	 * Starts handing the total-ordered requests to the scheduler. The requests
+	 * received before are held until then, so that a recovering server can
+	 * replay its log while it is connected to the others.<br>
+	 * <br>
+	 * The serial numbers of the total order start over when the servers
+	 * restart, so the requests are numbered after the last transaction
+	 * recovered from the log. Every server, including the stand-alone
+	 * sequencer, gets the same transaction from
+	 * {@link RequestLogSync}, so they all number the requests in the same
+	 * way.
+	 * 
+	 * @param lastRecoveredTxNum the number of the last recovered transaction
+	 */
+	public void startScheduling(long lastRecoveredTxNum) {
+		synchronized (schedulingLock) {
+			txNumOffset = lastRecoveredTxNum + 1 - Elasql.START_TX_NUMBER;
+			for (StoredProcedureCall spc : pendingCalls) {
+				spc.setTxNum(spc.getTxNum() + txNumOffset);
+				Elasql.scheduler().schedule(spc);
+			}
+			pendingCalls = null;
+		}
+	}
+
 	public void sendClientResponse(int clientId, int rteId, long txNum, SpResultSet rs) {
+		// The clients of the replayed transactions are gone
+		if (DdRecoveryMgr.isReplayed(txNum))
+			return;
+		
 		commServer.sendP2pMessage(ProcessType.CLIENT, clientId,
 				new ClientResponse(clientId, rteId, txNum, rs));
 	}
@@ -70,6 +121,10 @@ public class ConnectionMgr implements VanillaCommServerListener {
 	public void pushTupleSet(int nodeId, TupleSet reading) {
 		commServer.sendP2pMessage(ProcessType.SERVER, nodeId, reading);
 	}
+	
+	public void sendRecoveryMessage(int nodeId, RequestLogSync.Message message) {
+		commServer.sendP2pMessage(ProcessType.SERVER, nodeId, message);
+	}
 
 	@Override
 	public void onServerReady() {
@@ -112,6 +167,8 @@ public class ConnectionMgr implements VanillaCommServerListener {
 			
 			for (Tuple t : ts.getTupleSet())
 				Elasql.remoteRecReceiver().cacheRemoteRecord(t);
+		} else if (message instanceof RequestLogSync.Message) {
+			RequestLogSync.onReceive(senderId, (RequestLogSync.Message) message);
 		} else
 			throw new IllegalArgumentException();
 	}
@@ -123,17 +180,38 @@ public class ConnectionMgr implements VanillaCommServerListener {
 			return;
 		
 		StoredProcedureCall spc = (StoredProcedureCall) message;
-		spc.setTxNum(serialNumber);
-		Elasql.scheduler().schedule(spc);
+		synchronized (schedulingLock) {
+			if (pendingCalls != null) {
+				spc.setTxNum(serialNumber);
+				pendingCalls.add(spc);
+				return;
+			}
+			spc.setTxNum(serialNumber + txNumOffset);
+			Elasql.scheduler().schedule(spc);
+		}
 	}
 	
 	private void createTomSender() {
 		new Thread(new Runnable() {
 			@Override
 			public void run() {
+				boolean hasSentRequests = false;
 				while (true) {
 					try {
-						List<Serializable> messages = tomSendQueue.take();
+						List<Serializable> messages;
+						if (IDLE_NO_OP_DELAY > 0 && hasSentRequests) {
+							messages = tomSendQueue.poll(IDLE_NO_OP_DELAY, TimeUnit.MILLISECONDS);
+							if (messages == null) {
+								// Only one no-op request after the last requests
+								messages = new ArrayList<Serializable>();
+								messages.add(StoredProcedureCall.getNoOpStoredProcCall(-1));
+								hasSentRequests = false;
+							} else
+								hasSentRequests = true;
+						} else {
+							messages = tomSendQueue.take();
+							hasSentRequests = true;
+						}
 						commServer.sendTotalOrderMessages(messages);
 					} catch (InterruptedException e) {
 						e.printStackTrace();
@@ -144,7 +222,11 @@ public class ConnectionMgr implements VanillaCommServerListener {
 		}).start();;
 	}
 	
-	private void waitForServersReady() {
+	/**
+	 * Blocks until the communication modules of all the servers have
+	 * started.
+	 */
+	public void waitForServersReady() {
 		if (logger.isLoggable(Level.INFO))
 			logger.info("wait for all servers to start up comm. module");
 		synchronized (this) {
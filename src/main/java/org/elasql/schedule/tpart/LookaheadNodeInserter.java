@@ -0,0 +1,26 @@
+package org.elasql.schedule.tpart;
+
+import java.util.List;
+
+import org.elasql.procedure.tpart.TPartStoredProcedureTask;
+import org.elasql.schedule.tpart.graph.TGraph;
+
+/**
+ * A {@link BatchNodeInserter} that can take the batches arriving after the
+ * current one into account when it decides where to put the transactions.
+ */
+public interface LookaheadNodeInserter extends BatchNodeInserter {
+
+	/**
+	 * Insert a batch of transaction requests into the given T-Graph with the
+	 * knowledge of the upcoming batches. Only the tasks of the current batch
+	 * are inserted.
+	 * 
+	 * @param graph the graph that the inserter inserts the tasks to
+	 * @param tasks the tasks to be inserted to the graph
+	 * @param upcomingBatches the batches that will be inserted next, ordered
+	 *            by their arrival
+	 */
+	void insertBatch(TGraph graph, List<TPartStoredProcedureTask> tasks,
+			List<List<TPartStoredProcedureTask>> upcomingBatches);
+}
@@ -0,0 +1,84 @@
+package org.elasql.schedule.tpart;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasql.procedure.tpart.TPartStoredProcedureTask;
+import org.elasql.schedule.tpart.graph.TGraph;
+import org.elasql.sql.PrimaryKey;
+import org.elasql.storage.metadata.PartitionMetaMgr;
+
+/**
+ * Decides if a read-only transaction can skip the T-Graph. It is taken if all
+ * the records that the transaction reads are on the same partition and none
+ * of them will be modified by the transactions that are waiting to be sunk.
+ * Since all the transactions before it that write these records have been
+ * sunk, reading from the storage with the conservative locks booked now gives
+ * the same result as running it in the T-Graph.
+ */
+class ReadOnlyFastPath {
+	
+	private PartitionMetaMgr partMgr;
+	// The number of the received but not yet sunk transactions that write
+	// each record
+	private Map<PrimaryKey, Integer> pendingWrites = new HashMap<PrimaryKey, Integer>();
+	
+	ReadOnlyFastPath(PartitionMetaMgr partMgr) {
+		this.partMgr = partMgr;
+	}
+	
+	/**
+	 * Finds the partition that can run the given transaction without the
+	 * T-Graph.
+	 * 
+	 * @param task the transaction
+	 * @param graph the T-Graph, which must be empty
+	 * @return the partition, or -1 if the transaction must go through the T-Graph
+	 */
+	int choosePartition(TPartStoredProcedureTask task, TGraph graph) {
+		if (!task.isReadOnly() || !task.getWriteSet().isEmpty())
+			return -1;
+		
+		int partId = -1;
+		for (PrimaryKey key : task.getReadSet()) {
+			// Replicated records can be read anywhere
+			if (partMgr.isFullyReplicated(key))
+				continue;
+			
+			if (pendingWrites.containsKey(key))
+				return -1;
+			
+			// The graph is empty here, so this is always a sink
+			int location = graph.getResourcePosition(key).getPartId();
+			if (partId == -1)
+				partId = location;
+			else if (partId != location)
+				return -1;
+		}
+		
+		// Spread the transactions reading only replicated records
+		if (partId == -1)
+			partId = (int) (task.getTxNum() % PartitionMetaMgr.NUM_PARTITIONS);
+		return partId;
+	}
+	
+	void addPendingWrites(TPartStoredProcedureTask task) {
+		for (PrimaryKey key : task.getWriteSet()) {
+			Integer count = pendingWrites.get(key);
+			pendingWrites.put(key, (count == null) ? 1 : count + 1);
+		}
+	}
+	
+	void removePendingWrites(List<TPartStoredProcedureTask> tasks) {
+		for (TPartStoredProcedureTask task : tasks) {
+			for (PrimaryKey key : task.getWriteSet()) {
+				int count = pendingWrites.get(key);
+				if (count == 1)
+					pendingWrites.remove(key);
+				else
+					pendingWrites.put(key, count - 1);
+			}
+		}
+	}
+}
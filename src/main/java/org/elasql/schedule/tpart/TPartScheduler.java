@@ -1,7 +1,10 @@
 package org.elasql.schedule.tpart;
 
 import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -15,10 +18,12 @@ import org.elasql.procedure.tpart.TPartStoredProcedure.ProcedureType;
 import org.elasql.procedure.tpart.TPartStoredProcedureFactory;
 import org.elasql.procedure.tpart.TPartStoredProcedureTask;
 import org.elasql.remote.groupcomm.StoredProcedureCall;
+import org.elasql.remote.groupcomm.server.ConnectionMgr;
 import org.elasql.schedule.Scheduler;
 import org.elasql.schedule.tpart.graph.Edge;
 import org.elasql.schedule.tpart.graph.TGraph;
 import org.elasql.schedule.tpart.graph.TxNode;
+import org.elasql.schedule.tpart.replay.TraceRecorder;
 import org.elasql.schedule.tpart.sink.Sinker;
 import org.elasql.server.Elasql;
 import org.elasql.storage.metadata.PartitionMetaMgr;
@@ -31,6 +36,23 @@ public class TPartScheduler extends Task implements Scheduler {
 	private static Logger logger = Logger.getLogger(TPartScheduler.class.getName());
 
 	private static final int SCHEDULE_BATCH_SIZE;
+	
+	/**
+	 * The number of upcoming batches that a {@link LookaheadNodeInserter} can
+	 * see. A batch is held until this many batches arrive after it, so a
+	 * larger number adds more latency. 0 disables the lookahead. The held
+	 * batches are flushed when a no-op request arrives, which the sequencer
+	 * sends when no request comes for
+	 * {@link ConnectionMgr#IDLE_NO_OP_DELAY} ms.
+	 */
+	private static final int LOOKAHEAD_BATCHES;
+	
+	/**
+	 * Lets the read-only transactions whose records are all on one partition
+	 * skip the T-Graph. They are dispatched as soon as they arrive instead of
+	 * waiting for a batch, and they are not counted in the batch size.
+	 */
+	private static final boolean READ_ONLY_FAST_PATH;
 
 	private TPartStoredProcedureFactory factory;
 	
@@ -39,6 +61,10 @@ public class TPartScheduler extends Task implements Scheduler {
 	static {
 		SCHEDULE_BATCH_SIZE = ElasqlProperties.getLoader()
 				.getPropertyAsInteger(TPartScheduler.class.getName() + ".SCHEDULE_BATCH_SIZE", 10);
+		LOOKAHEAD_BATCHES = ElasqlProperties.getLoader()
+				.getPropertyAsInteger(TPartScheduler.class.getName() + ".LOOKAHEAD_BATCHES", 0);
+		READ_ONLY_FAST_PATH = ElasqlProperties.getLoader()
+				.getPropertyAsBoolean(TPartScheduler.class.getName() + ".READ_ONLY_FAST_PATH", false);
 	}
 
 	private BlockingQueue<StoredProcedureCall> spcQueue;
@@ -46,6 +72,13 @@ public class TPartScheduler extends Task implements Scheduler {
 	private Sinker sinker;
 	private TGraph graph;
 	private boolean batchingEnabled = true;
+	private Deque<List<TPartStoredProcedureTask>> pendingBatches;
+	private TraceRecorder traceRecorder;
+	// Only created when the read-only fast path is enabled
+	private ReadOnlyFastPath fastPath;
+	// The number of the dispatched transactions that have not finished
+	private final Object runningTaskLock = new Object();
+	private int runningTasks = 0;
 
 	public TPartScheduler(TPartStoredProcedureFactory factory, 
 			BatchNodeInserter inserter, Sinker sinker, TGraph graph) {
@@ -61,6 +94,16 @@ public class TPartScheduler extends Task implements Scheduler {
 		this.graph = graph;
 		this.batchingEnabled = isBatching;
 		this.spcQueue = new LinkedBlockingQueue<StoredProcedureCall>();
+		if (isBatching && LOOKAHEAD_BATCHES > 0 && inserter instanceof LookaheadNodeInserter) {
+			this.pendingBatches = new ArrayDeque<List<TPartStoredProcedureTask>>();
+			if (ConnectionMgr.IDLE_NO_OP_DELAY == 0 && logger.isLoggable(Level.WARNING))
+				logger.warning("the held batches are not flushed when no request comes, "
+						+ "set ConnectionMgr.IDLE_NO_OP_DELAY to flush them");
+		}
+		if (TraceRecorder.ENABLED)
+			this.traceRecorder = new TraceRecorder(Elasql.serverId());
+		if (READ_ONLY_FAST_PATH)
+			this.fastPath = new ReadOnlyFastPath(Elasql.partitionMetaMgr());
 		
 		// Clear the dump dir
 //		dumpDir.mkdirs();
@@ -93,6 +136,17 @@ public class TPartScheduler extends Task implements Scheduler {
 //					VanillaDb.taskMgr().runTask(task);
 					continue;
 				}
+				
+				// A no-op request is in the total order, so every node
+				// flushes the waiting transactions at the same point
+				if (task.getProcedureType() == ProcedureType.NOP) {
+					if (!batchedTasks.isEmpty()) {
+						scheduleBatch(batchedTasks);
+						batchedTasks = new LinkedList<TPartStoredProcedureTask>();
+					}
+					flushPendingBatches();
+					continue;
+				}
 
 				// TODO: Uncomment this when the migration module is migrated
 //				if (task.getProcedureType() == ProcedureType.MIGRATION) {
@@ -102,14 +156,19 @@ public class TPartScheduler extends Task implements Scheduler {
 //				}
 
 				if (task.getProcedureType() == ProcedureType.NORMAL) {
+					if (fastPath != null && tryFastPath(task))
+						continue;
+					
 					batchedTasks.add(task);
+					if (fastPath != null)
+						fastPath.addPendingWrites(task);
 				}
 				
 				// sink current t-graph if # pending tx exceeds threshold
 				if ((batchingEnabled && batchedTasks.size() >= SCHEDULE_BATCH_SIZE)
 						|| !batchingEnabled) {
-					processBatch(batchedTasks);
-					batchedTasks.clear();
+					scheduleBatch(batchedTasks);
+					batchedTasks = new LinkedList<TPartStoredProcedureTask>();
 				}
 
 			} catch (InterruptedException ex) {
@@ -119,9 +178,59 @@ public class TPartScheduler extends Task implements Scheduler {
 		}
 	}
 	
-	private void processBatch(List<TPartStoredProcedureTask> batchedTasks) {
+	/**
+	 * Dispatches a read-only transaction directly if {@link ReadOnlyFastPath}
+	 * allows it.
+	 * 
+	 * @return true if the transaction is dispatched
+	 */
+	private boolean tryFastPath(TPartStoredProcedureTask task) {
+		int partId = fastPath.choosePartition(task, graph);
+		if (partId == -1)
+			return false;
+		
+		TPartStoredProcedureTask localTask = sinker.sinkReadOnlyTask(task, partId);
+		if (localTask != null)
+			dispatch(localTask);
+		return true;
+	}
+	
+	private void scheduleBatch(List<TPartStoredProcedureTask> batchedTasks) {
+		if (pendingBatches == null) {
+			processBatch(batchedTasks, null);
+			return;
+		}
+		
+		// Hold the batch until enough batches arrive after it
+		pendingBatches.add(batchedTasks);
+		if (pendingBatches.size() > LOOKAHEAD_BATCHES) {
+			List<TPartStoredProcedureTask> currentBatch = pendingBatches.poll();
+			processBatch(currentBatch, new ArrayList<List<TPartStoredProcedureTask>>(pendingBatches));
+		}
+	}
+	
+	private void flushPendingBatches() {
+		if (pendingBatches == null)
+			return;
+		
+		// The last batches are routed with fewer upcoming batches
+		while (!pendingBatches.isEmpty()) {
+			List<TPartStoredProcedureTask> currentBatch = pendingBatches.poll();
+			processBatch(currentBatch, new ArrayList<List<TPartStoredProcedureTask>>(pendingBatches));
+		}
+	}
+	
+	private void processBatch(List<TPartStoredProcedureTask> batchedTasks,
+			List<List<TPartStoredProcedureTask>> upcomingBatches) {
 		// Insert the batch of tasks
-		inserter.insertBatch(graph, batchedTasks);
+		if (upcomingBatches != null)
+			((LookaheadNodeInserter) inserter).insertBatch(graph, batchedTasks, upcomingBatches);
+		else
+			inserter.insertBatch(graph, batchedTasks);
+		
+		// Record the routing decisions before the graph is cleared
+		if (traceRecorder != null)
+			traceRecorder.record(graph.getTxNodes());
 		
 		// Debug
 //		printGraphStatistics();
@@ -135,6 +244,16 @@ public class TPartScheduler extends Task implements Scheduler {
 			Iterator<TPartStoredProcedureTask> plansTter = sinker.sink(graph);
 			dispatchToTaskMgr(plansTter);
 		}
+		
+		// Every node reaches here after the same transactions, so
+		// the snapshots of the nodes match each other
+		if (sinker.isSnapshotDue()) {
+			waitForRunningTasks();
+			sinker.takeSnapshot();
+		}
+		
+		if (fastPath != null)
+			fastPath.removePendingWrites(batchedTasks);
 	}
 	
 	// TODO: Uncomment this when the migration module is migrated
@@ -165,7 +284,39 @@ public class TPartScheduler extends Task implements Scheduler {
 	private void dispatchToTaskMgr(Iterator<TPartStoredProcedureTask> plans) {
 		while (plans.hasNext()) {
 			TPartStoredProcedureTask p = plans.next();
-			VanillaDb.taskMgr().runTask(p);
+			dispatch(p);
+		}
+	}
+	
+	private void dispatch(final TPartStoredProcedureTask task) {
+		synchronized (runningTaskLock) {
+			runningTasks++;
+		}
+		
+		VanillaDb.taskMgr().runTask(new Task() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					synchronized (runningTaskLock) {
+						runningTasks--;
+						if (runningTasks == 0)
+							runningTaskLock.notifyAll();
+					}
+				}
+			}
+		});
+	}
+	
+	private void waitForRunningTasks() {
+		synchronized (runningTaskLock) {
+			try {
+				while (runningTasks > 0)
+					runningTaskLock.wait();
+			} catch (InterruptedException e) {
+				throw new RuntimeException("interrupted while waiting for the running transactions", e);
+			}
 		}
 	}
 	
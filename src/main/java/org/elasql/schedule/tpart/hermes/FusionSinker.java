@@ -1,23 +1,66 @@
 package org.elasql.schedule.tpart.hermes;
 
+import java.util.Iterator;
+import java.util.List;
+
 import org.elasql.cache.tpart.TPartCacheMgr;
+import org.elasql.procedure.tpart.TPartStoredProcedureTask;
 import org.elasql.schedule.tpart.graph.Edge;
+import org.elasql.schedule.tpart.graph.TGraph;
 import org.elasql.schedule.tpart.graph.TxNode;
 import org.elasql.schedule.tpart.sink.Sinker;
 import org.elasql.schedule.tpart.sink.SunkPlan;
+import org.elasql.server.Elasql;
 import org.elasql.sql.PrimaryKey;
 
 public class FusionSinker extends Sinker {
 	
 	private FusionTable fusionTable;
+	private FusionTableSnapshot snapshot;
+	private TPartCacheMgr cacheMgr;
 	
 	public FusionSinker(FusionTable table) {
 		fusionTable = table;
+		// The offline replay tools run without a cache manager
+		if (FusionTableSnapshot.SNAPSHOT_INTERVAL_TXS > 0
+				&& Elasql.remoteRecReceiver() instanceof TPartCacheMgr) {
+			snapshot = new FusionTableSnapshot(table, myId);
+			cacheMgr = (TPartCacheMgr) Elasql.remoteRecReceiver();
+			
+			// The last snapshot may locate the records that have left here
+			cacheMgr.deferStorageDeletions();
+		}
 	}
 	
-	// Writing back (to sinks)
 	@Override
-	protected void generateWritingBackPlans(SunkPlan plan, TxNode node) {
+	public Iterator<TPartStoredProcedureTask> sink(TGraph graph) {
+		// The fusion table is only modified by this thread
+		List<TxNode> nodes = graph.getTxNodes();
+		if (snapshot != null && !nodes.isEmpty())
+			snapshot.onTxsSunk(nodes.size(), nodes.get(nodes.size() - 1).getTxNum());
+		
+		return super.sink(graph);
+	}
+	
+	@Override
+	public boolean isSnapshotDue() {
+		return snapshot != null && snapshot.isDue();
+	}
+	
+	@Override
+	public void takeSnapshot() {
+		// The saved locations are only valid with the cached records in
+		// the local storage, and the records that have left must stay in
+		// the storage until the new snapshot replaces the old one.
+		snapshot.startNextRound();
+		if (cacheMgr.persistCachedRecords() && snapshot.save())
+			cacheMgr.deleteDeferredRecords();
+	}
+	
+	// The write-back plans are generated by the super class. Here we only
+	// maintain the fusion table, which is shared by all the nodes.
+	@Override
+	protected void updateLocations(SunkPlan plan, TxNode node) {
 		// TODO: Uncomment this when the migration module is migrated
 		// MigrationTx: remove the corresponding range from the migration manager
 //		if (node.getTask().getProcedureType() == ProcedureType.MIGRATION) {
@@ -90,17 +133,6 @@ public class FusionSinker extends Sinker {
 //					}
 //					parMeta.removeFromLocationTable(k);
 //				}
-				
-				// For any node (which may not be the master node),
-				// if it is the destination of a write-back,
-				// add this info to the plan.
-				if (dataWriteBackPos == myId) {
-					// tell the task to write back local
-					plan.addLocalWriteBackInfo(k);
-				} else if (plan.isHereMaster()) { // XXX: Untested
-					// push the write-back data to the remote node
-					plan.addPushingInfo(k, dataWriteBackPos, TPartCacheMgr.toSinkId(dataWriteBackPos));
-				}
 			}
 //		} // TODO: Uncomment this when the migration module is migrated
 	}
@@ -1,6 +1,5 @@
 package org.elasql.schedule.tpart.hermes;
 
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -9,6 +8,13 @@ import org.elasql.sql.PrimaryKey;
 import org.elasql.storage.metadata.PartitionMetaMgr;
 import org.elasql.util.ElasqlProperties;
 
+/**
+ * Records the locations of the records that are not at their home partitions.
+ * The locations are kept in an open-addressing hash table of primitive arrays
+ * with a fixed number of slots. When the table is full, an entry is chosen by
+ * the CLOCK algorithm and swapped out to the {@link OverflowArea}, which is
+ * kept off the Java heap.
+ */
 public class FusionTable {
 
 	public static final int EXPECTED_MAX_SIZE;
@@ -18,19 +24,20 @@ public class FusionTable {
 				.getPropertyAsInteger(FusionTable.class.getName() + ".EXPECTED_MAX_SIZE", 100_000);
 	}
 
-	class LocationRecord {
-		PrimaryKey key; // null => not used
-		int partId;
-		int nextFreeSlotId; // free chain (increase the speed to search free space)
-		boolean referenced; // for clock replacement strategy
-	}
+	private static final int EMPTY_PART = -1;
+
+	// The hash table. Each slot holds a key, its hash code (the fingerprint
+	// that is compared before the key), its partition and its CLOCK bit.
+	private final int maxSize;
+	private final int mask;
+	private final PrimaryKey[] keys;
+	private final int[] hashes;
+	private final int[] partIds;
+	private final boolean[] referenced;
+	private int tableSize;
+	private int clockHand;
 
-	private int size;
-	private int firstFreeSlot;
-	private LocationRecord[] locations;
-	private Map<PrimaryKey, Integer> keyToSlotIds;
-	private Map<PrimaryKey, Integer> overflowedKeys;
-	private int nextSlotToReplace;
+	private OverflowArea overflow;
 
 	// Tracking
 	private int[] countsPerParts = new int[PartitionMetaMgr.NUM_PARTITIONS];
@@ -64,20 +71,22 @@ public class FusionTable {
 	 * Create a fusion table
 	 */
 	public FusionTable() {
-		size = 0;
-		firstFreeSlot = 0;
-		locations = new LocationRecord[EXPECTED_MAX_SIZE];
-		for (int i = 0; i < EXPECTED_MAX_SIZE; i++) {
-			locations[i] = new LocationRecord();
-			if (i != EXPECTED_MAX_SIZE - 1)
-				locations[i].nextFreeSlotId = i + 1;
-			else
-				locations[i].nextFreeSlotId = -1;
-		}
-		keyToSlotIds = new HashMap<PrimaryKey, Integer>(EXPECTED_MAX_SIZE);
-//		keyToSlotIds = new ConcurrentHashMap<RecordKey, Integer>(expMaxSize);
-		overflowedKeys = new HashMap<PrimaryKey, Integer>();
-		nextSlotToReplace = 0;
+		this(EXPECTED_MAX_SIZE);
+	}
+
+	FusionTable(int maxSize) {
+		// Keep the load factor under 0.5 to make the probing short
+		int capacity = 2;
+		while (capacity < maxSize * 2)
+			capacity <<= 1;
+
+		this.maxSize = maxSize;
+		this.mask = capacity - 1;
+		this.keys = new PrimaryKey[capacity];
+		this.hashes = new int[capacity];
+		this.partIds = new int[capacity];
+		this.referenced = new boolean[capacity];
+		this.overflow = new OverflowArea();
 
 		// Debug: Show the statistics of the fusion table
 //		new PeriodicalJob(10_000, 1200_000, new Runnable() {
@@ -86,7 +95,7 @@ public class FusionTable {
 //				long time = System.currentTimeMillis() - Elasql.START_TIME_MS;
 //				time /= 1000;
 //				System.out.println(String.format("Time: %d seconds, Total Size: %d, Overflow Size: %d",
-//						time, size, overflowedKeys.size()));
+//						time, size(), overflow.size()));
 //			}
 //		}).start();
 
@@ -123,11 +132,12 @@ public class FusionTable {
 //					tableToIdx.put(tableNames[i], i);
 //				
 //				// Calculate table names
-//				Set<RecordKey> keys = new HashSet<RecordKey>(keyToSlotIds.keySet());
 //				int[] counts = new int[tableNames.length];
-//				for (RecordKey key : keys) {
-//					int idx = tableToIdx.get(key.getTableName());
-//					counts[idx]++;
+//				for (PrimaryKey key : keys) {
+//					if (key != null) {
+//						int idx = tableToIdx.get(key.getTableName());
+//						counts[idx]++;
+//					}
 //				}
 //				
 //				// Output the result
@@ -160,16 +170,17 @@ public class FusionTable {
 	}
 
 	public void setLocation(PrimaryKey key, int partId) {
-		Integer slotId = keyToSlotIds.get(key);
+		int slot = findSlot(key);
 
-		if (slotId != null) {
-			countsPerParts[locations[slotId].partId]--;
-			locations[slotId].partId = partId;
-			locations[slotId].referenced = true;
+		if (slot != -1) {
+			countsPerParts[partIds[slot]]--;
+			partIds[slot] = partId;
+			referenced[slot] = true;
 		} else {
-			if (overflowedKeys.containsKey(key)) {
-				countsPerParts[overflowedKeys.get(key)]--;
-				overflowedKeys.put(key, partId);
+			int oldPartId = overflow.get(key);
+			if (oldPartId != -1) {
+				countsPerParts[oldPartId]--;
+				overflow.put(key, partId);
 			} else
 				insertNewRecord(key, partId);
 		}
@@ -178,15 +189,15 @@ public class FusionTable {
 	}
 
 	public int getLocation(PrimaryKey key) {
-		Integer slotId = keyToSlotIds.get(key);
+		int slot = findSlot(key);
 
-		if (slotId != null) {
+		if (slot != -1) {
 			hitCounter.hit();
-			locations[slotId].referenced = true;
-			return locations[slotId].partId;
+			referenced[slot] = true;
+			return partIds[slot];
 		} else {
-			Integer partId = overflowedKeys.get(key);
-			if (partId != null) {
+			int partId = overflow.get(key);
+			if (partId != -1) {
 				hitCounter.hit();
 				return partId;
 			} else {
@@ -197,7 +208,7 @@ public class FusionTable {
 	}
 
 	public boolean containsKey(PrimaryKey key) {
-		return keyToSlotIds.containsKey(key) || overflowedKeys.containsKey(key);
+		return findSlot(key) != -1 || overflow.containsKey(key);
 	}
 
 	/**
@@ -207,81 +218,139 @@ public class FusionTable {
 	 * @return the partition id in the record
 	 */
 	public int remove(PrimaryKey key) {
-		Integer slotId = keyToSlotIds.remove(key);
-
-		if (slotId != null) {
-			locations[slotId].key = null;
-			size--;
-			countsPerParts[locations[slotId].partId]--;
-
-			// add to the free chain
-			locations[slotId].nextFreeSlotId = firstFreeSlot;
-			firstFreeSlot = slotId;
+		int slot = findSlot(key);
 
-			return locations[slotId].partId;
+		if (slot != -1) {
+			int partId = partIds[slot];
+			countsPerParts[partId]--;
+			deleteSlot(slot);
+			return partId;
 		} else {
-			Integer partId = overflowedKeys.remove(key);
-			if (partId != null) {
-				size--;
+			int partId = overflow.remove(key);
+			if (partId != -1)
 				countsPerParts[partId]--;
-				return partId;
-			} else
-				return -1;
+			return partId;
 		}
 	}
 
 	public int size() {
-		return size;
+		return tableSize + overflow.size();
 	}
 
 	@Deprecated
 	public Map<PrimaryKey, Integer> removeOverflowKeys() {
-		Map<PrimaryKey, Integer> removedKeys = overflowedKeys;
-		overflowedKeys = new HashMap<PrimaryKey, Integer>();
-		size -= removedKeys.size();
+		Map<PrimaryKey, Integer> removedKeys = overflow.toMap();
+		overflow.clear();
 		return removedKeys;
 	}
 
 	public Set<PrimaryKey> getOverflowKeys() {
-		return new HashSet<PrimaryKey>(overflowedKeys.keySet());
+		if (overflow.size() == 0)
+			return new HashSet<PrimaryKey>();
+		return new HashSet<PrimaryKey>(overflow.toMap().keySet());
 	}
 
-	private void insertNewRecord(PrimaryKey key, int partId) {
-		int freeSlot = findFreeSlot();
-		if (freeSlot == -1)
-			freeSlot = swapOutRecord();
-
-		locations[freeSlot].key = key;
-		locations[freeSlot].partId = partId;
-		locations[freeSlot].referenced = true;
-		keyToSlotIds.put(key, freeSlot);
-		size++;
+	/**
+	 * A copy of the content of a fusion table, which can be written out
+	 * without holding the table.
+	 */
+	static class Content {
+		final PrimaryKey[] keys;
+		final int[] partIds;
+		final byte[] overflowEntries;
+
+		private Content(PrimaryKey[] keys, int[] partIds, byte[] overflowEntries) {
+			this.keys = keys;
+			this.partIds = partIds;
+			this.overflowEntries = overflowEntries;
+		}
 	}
 
-	private int findFreeSlot() {
-		if (firstFreeSlot != -1) {
-			int freeSlot = firstFreeSlot;
-			firstFreeSlot = locations[freeSlot].nextFreeSlotId;
-			return freeSlot;
-		} else { // no free slot
-			return -1;
+	Content copyContent() {
+		// The keys are immutable, so copying the references is enough
+		PrimaryKey[] copiedKeys = new PrimaryKey[tableSize];
+		int[] copiedPartIds = new int[tableSize];
+		int count = 0;
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (keys[slot] != null) {
+				copiedKeys[count] = keys[slot];
+				copiedPartIds[count] = partIds[slot];
+				count++;
+			}
+		}
+		return new Content(copiedKeys, copiedPartIds, overflow.copyEntries());
+	}
+
+	private int findSlot(PrimaryKey key) {
+		int hash = key.hashCode();
+		int slot = spread(hash) & mask;
+		while (keys[slot] != null) {
+			if (hashes[slot] == hash && keys[slot].equals(key))
+				return slot;
+			slot = (slot + 1) & mask;
 		}
+		return -1;
 	}
 
-	private int swapOutRecord() {
+	private void insertNewRecord(PrimaryKey key, int partId) {
+		if (tableSize >= maxSize)
+			swapOutRecord();
+
+		int hash = key.hashCode();
+		int slot = spread(hash) & mask;
+		while (keys[slot] != null)
+			slot = (slot + 1) & mask;
+
+		keys[slot] = key;
+		hashes[slot] = hash;
+		partIds[slot] = partId;
+		referenced[slot] = true;
+		tableSize++;
+	}
+
+	private void swapOutRecord() {
 		// Select a slot (using clock)
-		while (locations[nextSlotToReplace].referenced) {
-			locations[nextSlotToReplace].referenced = false;
-			nextSlotToReplace = (nextSlotToReplace + 1) % EXPECTED_MAX_SIZE;
+		while (keys[clockHand] == null || referenced[clockHand]) {
+			referenced[clockHand] = false;
+			clockHand = (clockHand + 1) & mask;
 		}
-		int swapSlot = nextSlotToReplace;
-		nextSlotToReplace = (nextSlotToReplace + 1) % EXPECTED_MAX_SIZE;
+		int swapSlot = clockHand;
+		clockHand = (clockHand + 1) & mask;
 
 		// Swap out the content of the slot
-		keyToSlotIds.remove(locations[swapSlot].key);
-		overflowedKeys.put(locations[swapSlot].key, locations[swapSlot].partId);
-		locations[swapSlot].key = null;
+		overflow.put(keys[swapSlot], partIds[swapSlot]);
+		deleteSlot(swapSlot);
+	}
+
+	/**
+	 * Empties the given slot and shifts the following entries in the same
+	 * probing sequence backward, so that no tombstone is needed.
+	 */
+	private void deleteSlot(int slot) {
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (keys[next] != null) {
+			int home = spread(hashes[next]) & mask;
+			// Move the entry if its home is not in (hole, next]
+			boolean movable = (hole <= next) ? (home <= hole || home > next)
+					: (home <= hole && home > next);
+			if (movable) {
+				keys[hole] = keys[next];
+				hashes[hole] = hashes[next];
+				partIds[hole] = partIds[next];
+				referenced[hole] = referenced[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+
+		keys[hole] = null;
+		partIds[hole] = EMPTY_PART;
+		referenced[hole] = false;
+		tableSize--;
+	}
 
-		return swapSlot;
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
 	}
 }
@@ -0,0 +1,208 @@
+package org.elasql.schedule.tpart.hermes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.elasql.sql.PrimaryKeyCodec;
+import org.elasql.storage.metadata.PartitionMetaMgr;
+import org.elasql.util.ElasqlProperties;
+
+/**
+ * Periodically saves the content of a fusion table to a local file, so that
+ * Hermes can restart with the record placements it has learned.<br>
+ * <br>
+ * The file starts with a magic number, a format version, the number of
+ * partitions and the last transaction reflected by the snapshot, followed by
+ * entries of [partId, key length, key bytes], and ends with a partId of -1. A
+ * snapshot is written to a temporary file first and then renamed, so a crash
+ * during writing never corrupts the last snapshot.<br>
+ * <br>
+ * A snapshot only records where the records are, so the records cached by
+ * {@link org.elasql.cache.tpart.TPartCacheMgr} are written to the local
+ * storage along with it. Snapshots are taken after every
+ * {@link #SNAPSHOT_INTERVAL_TXS} sunk transactions, when the scheduler has
+ * waited for all the dispatched transactions to finish, so every server takes
+ * its snapshot after the same transaction. The servers must be restarted
+ * together from the snapshots of the same transaction, which is logged when a
+ * snapshot is loaded.
+ */
+public class FusionTableSnapshot {
+	private static Logger logger = Logger.getLogger(FusionTableSnapshot.class.getName());
+
+	/**
+	 * The number of sunk transactions between two snapshots. 0 disables both
+	 * taking and loading snapshots.
+	 */
+	public static final long SNAPSHOT_INTERVAL_TXS;
+	public static final String SNAPSHOT_DIR;
+
+	static {
+		SNAPSHOT_INTERVAL_TXS = ElasqlProperties.getLoader()
+				.getPropertyAsLong(FusionTableSnapshot.class.getName() + ".SNAPSHOT_INTERVAL_TXS", 0);
+		SNAPSHOT_DIR = ElasqlProperties.getLoader()
+				.getPropertyAsString(FusionTableSnapshot.class.getName() + ".SNAPSHOT_DIR", ".");
+	}
+
+	private static final int MAGIC = 0x46555349; // "FUSI"
+	private static final int VERSION = 2;
+
+	/**
+	 * Creates a fusion table with the content of the last snapshot of the given
+	 * server if there is one.
+	 *
+	 * @param serverId the id of the server
+	 * @return the fusion table
+	 */
+	public static FusionTable loadOrCreate(int serverId) {
+		FusionTable table = new FusionTable();
+		if (SNAPSHOT_INTERVAL_TXS <= 0)
+			return table;
+
+		File file = snapshotFile(serverId);
+		if (!file.exists())
+			return table;
+
+		try {
+			load(table, file);
+			return table;
+		} catch (IOException | RuntimeException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("fail to load the fusion table snapshot " + file + ": " + e.getMessage());
+			// Start from an empty table rather than a partially loaded one
+			return new FusionTable();
+		}
+	}
+
+	static File snapshotFile(int serverId) {
+		return new File(SNAPSHOT_DIR, String.format("fusion_table_%d.snapshot", serverId));
+	}
+
+	static int load(FusionTable table, File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException("not a fusion table snapshot");
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("unsupported snapshot version " + version);
+			int numOfPartitions = in.readInt();
+			if (numOfPartitions != PartitionMetaMgr.NUM_PARTITIONS)
+				throw new IOException("the snapshot was taken with " + numOfPartitions + " partitions");
+			long lastTxNum = in.readLong();
+
+			int count = 0;
+			int partId = in.readInt();
+			while (partId != -1) {
+				byte[] keyBytes = new byte[in.readInt()];
+				in.readFully(keyBytes);
+				table.setLocation(PrimaryKeyCodec.decode(keyBytes), partId);
+				count++;
+				partId = in.readInt();
+			}
+			
+			if (logger.isLoggable(Level.INFO))
+				logger.info(String.format("loaded %d locations from the fusion table snapshot %s,"
+						+ " which was taken after tx.%d", count, file, lastTxNum));
+			return count;
+		}
+	}
+
+	static int save(FusionTable.Content content, long lastTxNum, File file) throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		int count = 0;
+
+		FileOutputStream fileOut = new FileOutputStream(tmpFile);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(PartitionMetaMgr.NUM_PARTITIONS);
+			out.writeLong(lastTxNum);
+
+			for (int i = 0; i < content.keys.length; i++) {
+				byte[] keyBytes = PrimaryKeyCodec.encode(content.keys[i]);
+				out.writeInt(content.partIds[i]);
+				out.writeInt(keyBytes.length);
+				out.write(keyBytes);
+			}
+			count = content.keys.length;
+			count += OverflowArea.writeLiveEntries(content.overflowEntries, out);
+
+			out.writeInt(-1);
+			
+			// The snapshot must be on the disk before it replaces the last one
+			out.flush();
+			fileOut.getFD().sync();
+		}
+
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		return count;
+	}
+
+	private final FusionTable table;
+	private final File file;
+	private long sunkTxCount;
+	private long lastTxNum = -1;
+
+	FusionTableSnapshot(FusionTable table, int serverId) {
+		this.table = table;
+		this.file = snapshotFile(serverId);
+		file.getAbsoluteFile().getParentFile().mkdirs();
+	}
+
+	/**
+	 * Counts the transactions that have been sunk. This must be called by
+	 * the thread that modifies the fusion table.
+	 * 
+	 * @param txCount the number of the sunk transactions
+	 * @param lastTxNum the last sunk transaction
+	 */
+	void onTxsSunk(int txCount, long lastTxNum) {
+		this.sunkTxCount += txCount;
+		this.lastTxNum = lastTxNum;
+	}
+
+	boolean isDue() {
+		return sunkTxCount >= SNAPSHOT_INTERVAL_TXS;
+	}
+
+	/**
+	 * Starts counting the transactions for the next snapshot. This is called
+	 * even if the current snapshot fails, so the servers keep taking the
+	 * snapshots after the same transactions.
+	 */
+	void startNextRound() {
+		sunkTxCount = 0;
+	}
+
+	/**
+	 * Saves the content of the fusion table. The caller must make sure that
+	 * no dispatched transaction is running and the cached records have been
+	 * written to the local storage.
+	 * 
+	 * @return true if the snapshot is saved
+	 */
+	boolean save() {
+		try {
+			long startTime = System.currentTimeMillis();
+			int count = save(table.copyContent(), lastTxNum, file);
+			if (logger.isLoggable(Level.INFO))
+				logger.info(String.format("saved %d locations to the fusion table snapshot after tx.%d in %d ms",
+						count, lastTxNum, System.currentTimeMillis() - startTime));
+			return true;
+		} catch (IOException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("fail to save the fusion table snapshot: " + e.getMessage());
+			return false;
+		}
+	}
+}
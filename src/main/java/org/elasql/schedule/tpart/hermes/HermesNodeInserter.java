@@ -3,12 +3,14 @@ package org.elasql.schedule.tpart.hermes;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.elasql.procedure.tpart.TPartStoredProcedureTask;
-import org.elasql.schedule.tpart.BatchNodeInserter;
+import org.elasql.schedule.tpart.LookaheadNodeInserter;
 import org.elasql.schedule.tpart.graph.Edge;
 import org.elasql.schedule.tpart.graph.TGraph;
 import org.elasql.schedule.tpart.graph.TxNode;
@@ -17,13 +19,24 @@ import org.elasql.sql.PrimaryKey;
 import org.elasql.storage.metadata.PartitionMetaMgr;
 import org.elasql.util.ElasqlProperties;
 
-public class HermesNodeInserter implements BatchNodeInserter {
+public class HermesNodeInserter implements LookaheadNodeInserter {
 	
 	private static final double IMBALANCED_TOLERANCE;
+	
+	/**
+	 * How much a remote access expected in the next batch counts, compared to
+	 * a remote edge in the current batch. The expected accesses in the batch
+	 * after the next are weighted by half of this, and so on. The estimations
+	 * are rough, so a small weight that mostly breaks the ties between equally
+	 * good partitions works better than a large one.
+	 */
+	private static final double LOOKAHEAD_WEIGHT;
 
 	static {
 		IMBALANCED_TOLERANCE = ElasqlProperties.getLoader()
 				.getPropertyAsDouble(HermesNodeInserter.class.getName() + ".IMBALANCED_TOLERANCE", 0.25);
+		LOOKAHEAD_WEIGHT = ElasqlProperties.getLoader()
+				.getPropertyAsDouble(HermesNodeInserter.class.getName() + ".LOOKAHEAD_WEIGHT", 0.2);
 	}
 	
 	private PartitionMetaMgr partMgr = Elasql.partitionMetaMgr();
@@ -31,11 +44,31 @@ public class HermesNodeInserter implements BatchNodeInserter {
 	private Set<Integer> overloadedParts = new HashSet<Integer>();
 	private Set<Integer> saturatedParts = new HashSet<Integer>();
 	private int overloadedThreshold;
+	
+	// The expected number of accesses to each record from the upcoming batches
+	// per partition. The last element of each array is the sum of the others.
+	// This is null when there is no upcoming batch.
+	private Map<PrimaryKey, double[]> futureDemands;
+	// The last tx in the current batch that writes each record, which decides
+	// where the record is after this batch.
+	private Map<PrimaryKey, Long> lastWriters = new HashMap<PrimaryKey, Long>();
 
 	@Override
 	public void insertBatch(TGraph graph, List<TPartStoredProcedureTask> tasks) {
+		insertBatch(graph, tasks, Collections.<List<TPartStoredProcedureTask>>emptyList());
+	}
+
+	@Override
+	public void insertBatch(TGraph graph, List<TPartStoredProcedureTask> tasks,
+			List<List<TPartStoredProcedureTask>> upcomingBatches) {
 		// Step 0: Reset statistics
 		resetStatistics();
+		futureDemands = estimateFutureDemands(graph, upcomingBatches);
+		if (futureDemands != null) {
+			for (TPartStoredProcedureTask task : tasks)
+				for (PrimaryKey key : task.getWriteSet())
+					lastWriters.put(key, task.getTxNum());
+		}
 		
 		// Step 1: Insert nodes to the graph
 		for (TPartStoredProcedureTask task : tasks) {
@@ -64,6 +97,9 @@ public class HermesNodeInserter implements BatchNodeInserter {
 				throw new RuntimeException("Something wrong");
 		}
 		
+		futureDemands = null;
+		lastWriters.clear();
+		
 //		System.out.println(String.format("Final loads: %s", Arrays.toString(loadPerPart)));
 	}
 	
@@ -73,18 +109,95 @@ public class HermesNodeInserter implements BatchNodeInserter {
 		saturatedParts.clear();
 	}
 	
+	/**
+	 * Estimates which partition would each transaction in the upcoming batches
+	 * run on by looking at where most of its read set is, and counts the
+	 * accesses to each record from each partition.
+	 */
+	private Map<PrimaryKey, double[]> estimateFutureDemands(TGraph graph,
+			List<List<TPartStoredProcedureTask>> upcomingBatches) {
+		if (upcomingBatches.isEmpty())
+			return null;
+		
+		int numOfParts = partMgr.getCurrentNumOfParts();
+		Map<PrimaryKey, double[]> demands = new HashMap<PrimaryKey, double[]>();
+		int[] readsPerPart = new int[numOfParts];
+		
+		for (int distance = 1; distance <= upcomingBatches.size(); distance++) {
+			double weight = LOOKAHEAD_WEIGHT / distance;
+			
+			for (TPartStoredProcedureTask task : upcomingBatches.get(distance - 1)) {
+				// Find the partition that has most of the read set
+				Arrays.fill(readsPerPart, 0);
+				for (PrimaryKey key : task.getReadSet()) {
+					if (!partMgr.isFullyReplicated(key))
+						readsPerPart[graph.getResourcePosition(key).getPartId()]++;
+				}
+				int expectedPartId = 0;
+				for (int partId = 1; partId < numOfParts; partId++) {
+					if (readsPerPart[partId] > readsPerPart[expectedPartId])
+						expectedPartId = partId;
+				}
+				if (readsPerPart[expectedPartId] == 0)
+					continue;
+				
+				addDemands(demands, task.getReadSet(), expectedPartId, weight, numOfParts);
+				addDemands(demands, task.getWriteSet(), expectedPartId, weight, numOfParts);
+			}
+		}
+		
+		return demands;
+	}
+	
+	private void addDemands(Map<PrimaryKey, double[]> demands, Set<PrimaryKey> keys,
+			int partId, double weight, int numOfParts) {
+		for (PrimaryKey key : keys) {
+			if (partMgr.isFullyReplicated(key))
+				continue;
+			
+			double[] demand = demands.get(key);
+			if (demand == null) {
+				demand = new double[numOfParts + 1];
+				demands.put(key, demand);
+			}
+			demand[partId] += weight;
+			demand[numOfParts] += weight;
+		}
+	}
+	
+	/**
+	 * Estimates the number of remote accesses the upcoming batches will have
+	 * if the given transaction runs on the given partition. Only the records
+	 * that the transaction is the last writer of in this batch are counted,
+	 * since they will stay on that partition after this batch.
+	 */
+	private double countFutureRemoteAccesses(TPartStoredProcedureTask task, int partId) {
+		if (futureDemands == null)
+			return 0;
+		
+		double count = 0;
+		for (PrimaryKey key : task.getWriteSet()) {
+			double[] demand = futureDemands.get(key);
+			if (demand != null && lastWriters.get(key) == task.getTxNum())
+				count += demand[demand.length - 1] - demand[partId];
+		}
+		return count;
+	}
+	
 	private void insertAccordingRemoteEdges(TGraph graph, TPartStoredProcedureTask task) {
 		int bestPartId = 0;
-		int minRemoteEdgeCount = task.getReadSet().size();
+		double minCost = countRemoteReadEdge(graph, task, 0)
+				+ countFutureRemoteAccesses(task, 0);
 		
-		for (int partId = 0; partId < partMgr.getCurrentNumOfParts(); partId++) {
+		for (int partId = 1; partId < partMgr.getCurrentNumOfParts(); partId++) {
 			
 			// Count the number of remote edge
-			int remoteEdgeCount = countRemoteReadEdge(graph, task, partId);
+			double cost = countRemoteReadEdge(graph, task, partId)
+					+ countFutureRemoteAccesses(task, partId);
 			
 			// Find the node in which the tx has fewest remote edges.
-			if (remoteEdgeCount < minRemoteEdgeCount) {
-				minRemoteEdgeCount = remoteEdgeCount;
+			if (cost < minCost) {
+				minCost = cost;
 				bestPartId = partId;
 			}
 		}
@@ -146,8 +259,9 @@ public class HermesNodeInserter implements BatchNodeInserter {
 			if (!overloadedParts.contains(currentPartId))
 				continue;
 			
-			int currentRemoteEdges = countRemoteReadWriteEdges(node, currentPartId);
-			int bestDelta = increaseTolerence + 1;
+			double currentCost = countRemoteReadWriteEdges(node, currentPartId)
+					+ countFutureRemoteAccesses(node.getTask(), currentPartId);
+			double bestDelta = increaseTolerence + 1;
 			int bestPartId = currentPartId;
 			
 			// Find a better partition
@@ -165,10 +279,11 @@ public class HermesNodeInserter implements BatchNodeInserter {
 					continue;
 				
 				// Count remote edges
-				int remoteEdgeCount = countRemoteReadWriteEdges(node, partId);
+				double cost = countRemoteReadWriteEdges(node, partId)
+						+ countFutureRemoteAccesses(node.getTask(), partId);
 				
 				// Calculate the difference
-				int delta = remoteEdgeCount - currentRemoteEdges;
+				double delta = cost - currentCost;
 				if (delta <= increaseTolerence) {
 					// Prefer the machine with lower loadn
 					if ((delta < bestDelta) ||
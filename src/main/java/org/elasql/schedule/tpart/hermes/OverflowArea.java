@@ -0,0 +1,303 @@
+package org.elasql.schedule.tpart.hermes;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasql.sql.PrimaryKey;
+import org.elasql.sql.PrimaryKeyCodec;
+
+/**
+ * Keeps the locations swapped out of the fusion table in a direct (off-heap)
+ * buffer, so that a large number of overflowed keys does not burden the
+ * garbage collector.<br>
+ * <br>
+ * Each entry in the buffer is laid out as [partId, key length, key bytes]. A
+ * removed entry has partId -1 and its space is reclaimed by compaction. The
+ * only on-heap part is a primitive open-addressing index from the hash codes
+ * of the keys to the offsets of the entries. A lookup probes the index by the
+ * hash code and encodes the key only when it finds a matching hash code, so
+ * the misses of the fusion table do not allocate.
+ */
+class OverflowArea {
+
+	private static final int INITIAL_BUFFER_SIZE = 1024 * 1024;
+	private static final int INITIAL_INDEX_SIZE = 1024; // must be a power of 2
+	private static final int HEADER_SIZE = 8;
+	private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+
+	// Index slots: 0 => empty, -1 => removed, otherwise offset + 1
+	private static final int EMPTY = 0;
+	private static final int REMOVED = -1;
+
+	private ByteBuffer buffer;
+	private int writePos;
+	private int deadBytes;
+	private int size;
+
+	private int[] indexHashes;
+	private int[] indexOffsets;
+	private int usedIndexSlots; // including the removed ones
+
+	OverflowArea() {
+		buffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+		indexHashes = new int[INITIAL_INDEX_SIZE];
+		indexOffsets = new int[INITIAL_INDEX_SIZE];
+	}
+
+	/**
+	 * Returns the partition id recorded for the given key, or -1 if there is
+	 * no such key.
+	 */
+	int get(PrimaryKey key) {
+		int slot = findIndexSlot(key);
+		if (slot == -1)
+			return -1;
+		return buffer.getInt(indexOffsets[slot] - 1);
+	}
+
+	boolean containsKey(PrimaryKey key) {
+		return findIndexSlot(key) != -1;
+	}
+
+	/**
+	 * Records the partition id of the given key.
+	 *
+	 * @return the previous partition id, or -1 if the key was not here
+	 */
+	int put(PrimaryKey key, int partId) {
+		int slot = findIndexSlot(key);
+		if (slot != -1) {
+			int offset = indexOffsets[slot] - 1;
+			int oldPartId = buffer.getInt(offset);
+			buffer.putInt(offset, partId);
+			return oldPartId;
+		}
+
+		int offset = append(PrimaryKeyCodec.encode(key), partId);
+		addToIndex(key.hashCode(), offset);
+		size++;
+		return -1;
+	}
+
+	/**
+	 * Removes the given key.
+	 *
+	 * @return the partition id of the key, or -1 if the key was not here
+	 */
+	int remove(PrimaryKey key) {
+		int slot = findIndexSlot(key);
+		if (slot == -1)
+			return -1;
+
+		int offset = indexOffsets[slot] - 1;
+		int partId = buffer.getInt(offset);
+		buffer.putInt(offset, -1);
+		indexOffsets[slot] = REMOVED;
+		deadBytes += HEADER_SIZE + buffer.getInt(offset + 4);
+		size--;
+
+		if (deadBytes > INITIAL_BUFFER_SIZE && deadBytes > writePos / 2)
+			compact(buffer.capacity());
+		return partId;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Decodes all the keys along with their partition ids.
+	 */
+	Map<PrimaryKey, Integer> toMap() {
+		Map<PrimaryKey, Integer> entries = new HashMap<PrimaryKey, Integer>(size * 2);
+		int offset = 0;
+		while (offset < writePos) {
+			int partId = buffer.getInt(offset);
+			int length = buffer.getInt(offset + 4);
+			if (partId != -1)
+				entries.put(PrimaryKeyCodec.decode(readBytes(offset + HEADER_SIZE, length)), partId);
+			offset += HEADER_SIZE + length;
+		}
+		return entries;
+	}
+
+	/**
+	 * Copies the raw content of the buffer, including the removed entries.
+	 * The copy can be parsed by {@link #writeLiveEntries(byte[], DataOutputStream)}
+	 * without holding this object.
+	 */
+	byte[] copyEntries() {
+		return readBytes(0, writePos);
+	}
+
+	/**
+	 * Writes the live entries in a copy made by {@link #copyEntries()} as
+	 * [partId, key length, key bytes].
+	 *
+	 * @return the number of entries written
+	 */
+	static int writeLiveEntries(byte[] entries, DataOutputStream out) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(entries);
+		int count = 0;
+		int offset = 0;
+		while (offset < entries.length) {
+			int partId = buf.getInt(offset);
+			int length = buf.getInt(offset + 4);
+			if (partId != -1) {
+				out.writeInt(partId);
+				out.writeInt(length);
+				out.write(entries, offset + HEADER_SIZE, length);
+				count++;
+			}
+			offset += HEADER_SIZE + length;
+		}
+		return count;
+	}
+
+	void clear() {
+		writePos = 0;
+		deadBytes = 0;
+		size = 0;
+		indexHashes = new int[INITIAL_INDEX_SIZE];
+		indexOffsets = new int[INITIAL_INDEX_SIZE];
+		usedIndexSlots = 0;
+	}
+
+	private int findIndexSlot(PrimaryKey key) {
+		int hash = key.hashCode();
+		int mask = indexOffsets.length - 1;
+		int slot = spread(hash) & mask;
+		byte[] keyBytes = null;
+		while (indexOffsets[slot] != EMPTY) {
+			if (indexOffsets[slot] != REMOVED && indexHashes[slot] == hash) {
+				// Encode the key only when some entry has the same hash code
+				if (keyBytes == null)
+					keyBytes = PrimaryKeyCodec.encode(key);
+				if (matches(indexOffsets[slot] - 1, keyBytes))
+					return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private boolean matches(int offset, byte[] keyBytes) {
+		if (buffer.getInt(offset + 4) != keyBytes.length)
+			return false;
+		int start = offset + HEADER_SIZE;
+		for (int i = 0; i < keyBytes.length; i++)
+			if (buffer.get(start + i) != keyBytes[i])
+				return false;
+		return true;
+	}
+
+	private int append(byte[] keyBytes, int partId) {
+		int entrySize = HEADER_SIZE + keyBytes.length;
+		if ((long) writePos + entrySize > buffer.capacity()) {
+			// Reclaim the removed entries first if there are many of them
+			long liveBytes = (long) writePos - deadBytes + entrySize;
+			long newCapacity = buffer.capacity();
+			if (liveBytes > newCapacity / 2)
+				newCapacity *= 2;
+			newCapacity = Math.min(Math.max(newCapacity, entrySize * 2L), MAX_BUFFER_SIZE);
+			if (liveBytes > newCapacity)
+				throw new IllegalStateException("the overflow area is full");
+			compact((int) newCapacity);
+		}
+
+		int offset = writePos;
+		buffer.putInt(offset, partId);
+		buffer.putInt(offset + 4, keyBytes.length);
+		for (int i = 0; i < keyBytes.length; i++)
+			buffer.put(offset + HEADER_SIZE + i, keyBytes[i]);
+		writePos += entrySize;
+		return offset;
+	}
+
+	private void addToIndex(int hash, int offset) {
+		if ((usedIndexSlots + 1) * 2 > indexOffsets.length)
+			rebuildIndex(size * 4 > indexOffsets.length ? indexOffsets.length * 2 : indexOffsets.length);
+
+		int mask = indexOffsets.length - 1;
+		int slot = spread(hash) & mask;
+		while (indexOffsets[slot] != EMPTY)
+			slot = (slot + 1) & mask;
+		indexHashes[slot] = hash;
+		indexOffsets[slot] = offset + 1;
+		usedIndexSlots++;
+	}
+
+	private void rebuildIndex(int indexSize) {
+		int[] oldHashes = indexHashes;
+		int[] oldOffsets = indexOffsets;
+		indexHashes = new int[indexSize];
+		indexOffsets = new int[indexSize];
+		usedIndexSlots = 0;
+
+		int mask = indexSize - 1;
+		for (int i = 0; i < oldOffsets.length; i++) {
+			if (oldOffsets[i] != EMPTY && oldOffsets[i] != REMOVED) {
+				int slot = spread(oldHashes[i]) & mask;
+				while (indexOffsets[slot] != EMPTY)
+					slot = (slot + 1) & mask;
+				indexHashes[slot] = oldHashes[i];
+				indexOffsets[slot] = oldOffsets[i];
+				usedIndexSlots++;
+			}
+		}
+	}
+
+	/**
+	 * Moves the live entries to a new buffer with the given capacity and
+	 * rebuilds the index.
+	 */
+	private void compact(int capacity) {
+		ByteBuffer newBuffer = ByteBuffer.allocateDirect(capacity);
+		int indexSize = INITIAL_INDEX_SIZE;
+		while (indexSize < size * 4)
+			indexSize *= 2;
+		int[] newHashes = new int[indexSize];
+		int[] newOffsets = new int[indexSize];
+		int mask = indexSize - 1;
+
+		// Walk through the old index to keep the hash codes of the keys
+		int newPos = 0;
+		for (int i = 0; i < indexOffsets.length; i++) {
+			if (indexOffsets[i] == EMPTY || indexOffsets[i] == REMOVED)
+				continue;
+
+			int offset = indexOffsets[i] - 1;
+			int entrySize = HEADER_SIZE + buffer.getInt(offset + 4);
+			for (int b = 0; b < entrySize; b++)
+				newBuffer.put(newPos + b, buffer.get(offset + b));
+
+			int slot = spread(indexHashes[i]) & mask;
+			while (newOffsets[slot] != EMPTY)
+				slot = (slot + 1) & mask;
+			newHashes[slot] = indexHashes[i];
+			newOffsets[slot] = newPos + 1;
+			newPos += entrySize;
+		}
+
+		buffer = newBuffer;
+		writePos = newPos;
+		deadBytes = 0;
+		indexHashes = newHashes;
+		indexOffsets = newOffsets;
+		usedIndexSlots = size;
+	}
+
+	private byte[] readBytes(int offset, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+			bytes[i] = buffer.get(offset + i);
+		return bytes;
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+}
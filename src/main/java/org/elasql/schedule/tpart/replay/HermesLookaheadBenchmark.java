@@ -0,0 +1,127 @@
+package org.elasql.schedule.tpart.replay;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.elasql.procedure.tpart.TPartStoredProcedureTask;
+import org.elasql.schedule.tpart.hermes.FusionSinker;
+import org.elasql.schedule.tpart.hermes.FusionTGraph;
+import org.elasql.schedule.tpart.hermes.FusionTable;
+import org.elasql.schedule.tpart.hermes.HermesNodeInserter;
+import org.elasql.server.Elasql;
+import org.elasql.sql.PrimaryKey;
+import org.elasql.sql.PrimaryKeyBuilder;
+import org.elasql.storage.metadata.HashPartitionPlan;
+import org.elasql.storage.metadata.PartitionMetaMgr;
+import org.vanilladb.core.sql.IntegerConstant;
+
+/**
+ * Replays a synthetic workload through Hermes with and without looking ahead,
+ * and prints the remote edges, the imbalance and the CPU time of both.<br>
+ * <br>
+ * Each transaction reads and updates records of a randomly chosen group, and
+ * may also touch some hot records. Each hot record is used by one group at a
+ * time and handed over to the next group every few batches, which is where
+ * a single-batch pass tends to move hot records back and forth.<br>
+ * <br>
+ * The number of partitions comes from the number of servers in the
+ * communication settings, so it should be set to more than 1 for a
+ * meaningful result.<br>
+ * <br>
+ * Usage: HermesLookaheadBenchmark [# of batches] [batch size] [# of lookahead batches]
+ */
+public class HermesLookaheadBenchmark {
+	
+	private static final String TABLE_NAME = "item";
+	private static final String KEY_FIELD = "i_id";
+	private static final int RECORDS_PER_GROUP = 1000;
+	private static final int GROUPS_PER_PART = 4;
+	private static final int HOT_RECORDS = 100;
+	private static final double HOT_RATE = 0.3;
+	private static final int PHASE_LENGTH = 5; // in batches
+	private static final int READS_PER_TX = 4;
+	private static final int WRITES_PER_TX = 2;
+	private static final long SEED = 123456789L;
+	
+	public static void main(String[] args) {
+		int numOfBatches = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+		int batchSize = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+		int lookahead = (args.length > 2) ? Integer.parseInt(args[2]) : 2;
+		
+		final int numOfParts = PartitionMetaMgr.NUM_PARTITIONS;
+		Elasql.initPartitionMetaMgr(new HashPartitionPlan(numOfParts) {
+			@Override
+			public int getPartition(PrimaryKey key) {
+				int id = (Integer) key.getVal(0).asJavaVal();
+				return (id / RECORDS_PER_GROUP) % numOfParts;
+			}
+		});
+		
+		System.out.println(String.format("Replaying %d batches of %d txs on %d partitions",
+				numOfBatches, batchSize, numOfParts));
+		
+		ReplayRunner.Result baseline = run(numOfBatches, batchSize, 0);
+		System.out.println("Without lookahead: " + baseline);
+		ReplayRunner.Result result = run(numOfBatches, batchSize, lookahead);
+		System.out.println(String.format("With %d lookahead batches: %s", lookahead, result));
+	}
+	
+	private static ReplayRunner.Result run(int numOfBatches, int batchSize, int lookahead) {
+		// Use the same workload and a fresh state for each run
+		FusionTable table = new FusionTable();
+		ReplayRunner runner = new ReplayRunner(new FusionTGraph(table), new HermesNodeInserter(),
+				new FusionSinker(table), lookahead);
+		return runner.replay(generateWorkload(numOfBatches, batchSize));
+	}
+	
+	private static List<List<TPartStoredProcedureTask>> generateWorkload(int numOfBatches, int batchSize) {
+		Random random = new Random(SEED);
+		int numOfGroups = PartitionMetaMgr.NUM_PARTITIONS * GROUPS_PER_PART;
+		List<List<TPartStoredProcedureTask>> batches = new ArrayList<List<TPartStoredProcedureTask>>(numOfBatches);
+		long txNum = 1;
+		
+		for (int b = 0; b < numOfBatches; b++) {
+			List<TPartStoredProcedureTask> batch = new ArrayList<TPartStoredProcedureTask>(batchSize);
+			for (int t = 0; t < batchSize; t++) {
+				int group = random.nextInt(numOfGroups);
+				Set<PrimaryKey> readKeys = new HashSet<PrimaryKey>();
+				Set<PrimaryKey> writeKeys = new HashSet<PrimaryKey>();
+				
+				int phase = b / PHASE_LENGTH;
+				while (readKeys.size() < READS_PER_TX) {
+					int id;
+					if (random.nextDouble() < HOT_RATE)
+						id = pickHotRecord(random, group, phase, numOfGroups);
+					else
+						id = group * RECORDS_PER_GROUP + random.nextInt(RECORDS_PER_GROUP);
+					PrimaryKey key = newKey(id);
+					if (readKeys.add(key) && writeKeys.size() < WRITES_PER_TX)
+						writeKeys.add(key);
+				}
+				
+				ReplayProcedure sp = new ReplayProcedure(txNum, readKeys, writeKeys);
+				batch.add(new TPartStoredProcedureTask(-1, -1, txNum, sp));
+				txNum++;
+			}
+			batches.add(batch);
+		}
+		
+		return batches;
+	}
+	
+	// Hot record h is used by group (h + phase) % numOfGroups
+	private static int pickHotRecord(Random random, int group, int phase, int numOfGroups) {
+		int first = ((group - phase) % numOfGroups + numOfGroups) % numOfGroups;
+		int count = (HOT_RECORDS - 1 - first) / numOfGroups + 1;
+		return first + random.nextInt(count) * numOfGroups;
+	}
+	
+	private static PrimaryKey newKey(int id) {
+		PrimaryKeyBuilder builder = new PrimaryKeyBuilder(TABLE_NAME);
+		builder.addFldVal(KEY_FIELD, new IntegerConstant(id));
+		return builder.build();
+	}
+}
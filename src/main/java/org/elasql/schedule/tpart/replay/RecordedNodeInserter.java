@@ -0,0 +1,24 @@
+package org.elasql.schedule.tpart.replay;
+
+import java.util.List;
+
+import org.elasql.procedure.tpart.TPartStoredProcedureTask;
+import org.elasql.schedule.tpart.BatchNodeInserter;
+import org.elasql.schedule.tpart.graph.TGraph;
+
+/**
+ * Inserts the replayed transactions to the partitions they were routed to
+ * when they were recorded, which gives the baseline of a trace.
+ */
+public class RecordedNodeInserter implements BatchNodeInserter {
+
+	@Override
+	public void insertBatch(TGraph graph, List<TPartStoredProcedureTask> tasks) {
+		for (TPartStoredProcedureTask task : tasks) {
+			ReplayProcedure sp = (ReplayProcedure) task.getProcedure();
+			if (sp.getRecordedPartId() < 0)
+				throw new IllegalArgumentException("tx." + task.getTxNum() + " has no recorded partition");
+			graph.insertTxNode(task, sp.getRecordedPartId());
+		}
+	}
+}
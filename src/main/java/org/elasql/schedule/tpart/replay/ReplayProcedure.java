@@ -0,0 +1,84 @@
+package org.elasql.schedule.tpart.replay;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.elasql.cache.CachedRecord;
+import org.elasql.procedure.tpart.TPartStoredProcedure;
+import org.elasql.schedule.tpart.sink.SunkPlan;
+import org.elasql.sql.PrimaryKey;
+import org.vanilladb.core.sql.storedprocedure.StoredProcedureParamHelper;
+
+/**
+ * A stored procedure that only carries a read set and a write set. It lets
+ * the routing and sinking components be replayed offline with recorded or
+ * generated workloads. It never creates a transaction and can not be
+ * executed.
+ */
+public class ReplayProcedure extends TPartStoredProcedure<StoredProcedureParamHelper> {
+	
+	private boolean isReadOnly;
+	private int recordedPartId;
+	private SunkPlan plan;
+
+	public ReplayProcedure(long txNum, Set<PrimaryKey> readKeys, Set<PrimaryKey> writeKeys) {
+		this(txNum, readKeys, writeKeys, -1);
+	}
+
+	/**
+	 * Creates a procedure with the partition that it was routed to when it was
+	 * recorded.
+	 */
+	public ReplayProcedure(long txNum, Set<PrimaryKey> readKeys, Set<PrimaryKey> writeKeys,
+			int recordedPartId) {
+		super(txNum, StoredProcedureParamHelper.newDefaultParamHelper());
+		this.recordedPartId = recordedPartId;
+		
+		for (PrimaryKey key : readKeys)
+			addReadKey(key);
+		for (PrimaryKey key : writeKeys)
+			addWriteKey(key);
+		isReadOnly = writeKeys.isEmpty();
+	}
+
+	/**
+	 * Returns the partition that the transaction was routed to in the trace,
+	 * or -1 if it is unknown.
+	 */
+	public int getRecordedPartId() {
+		return recordedPartId;
+	}
+
+	@Override
+	public double getWeight() {
+		return 1;
+	}
+	
+	@Override
+	public boolean isReadOnly() {
+		return isReadOnly;
+	}
+
+	/**
+	 * Only records the plan. No transaction is created and no lock is booked.
+	 */
+	@Override
+	public void decideExceutionPlan(SunkPlan p) {
+		plan = p;
+	}
+	
+	@Override
+	public SunkPlan getSunkPlan() {
+		return plan;
+	}
+
+	@Override
+	protected void prepareKeys() {
+		// The keys are given by the constructor
+	}
+
+	@Override
+	protected void executeSql(Map<PrimaryKey, CachedRecord> readings) {
+		throw new UnsupportedOperationException("a replayed procedure can not be executed");
+	}
+}
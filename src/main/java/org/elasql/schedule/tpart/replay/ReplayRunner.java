@@ -0,0 +1,131 @@
+package org.elasql.schedule.tpart.replay;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+import org.elasql.procedure.tpart.TPartStoredProcedureTask;
+import org.elasql.schedule.tpart.BatchNodeInserter;
+import org.elasql.schedule.tpart.LookaheadNodeInserter;
+import org.elasql.schedule.tpart.graph.TGraph;
+import org.elasql.schedule.tpart.sink.Sinker;
+
+/**
+ * Feeds batches of transactions to a {@link BatchNodeInserter} and a
+ * {@link Sinker} in the same way as {@link org.elasql.schedule.tpart.TPartScheduler}
+ * does, and collects the quality of the resulting T-Graphs along with the CPU
+ * time spent on routing and sinking.<br>
+ * <br>
+ * The partition meta-manager ({@link org.elasql.server.Elasql#initPartitionMetaMgr})
+ * must be initialized before the graph, the inserter and the sinker are
+ * created.
+ */
+public class ReplayRunner {
+	
+	public static class Result {
+		private long numOfTxs;
+		private long numOfBatches;
+		private long remoteTxReads;
+		private long remoteSinkReads;
+		private long imbalancedDis;
+		private long cpuTimeNs;
+		
+		public long getNumberOfTxs() {
+			return numOfTxs;
+		}
+		
+		public long getNumberOfBatches() {
+			return numOfBatches;
+		}
+		
+		public long getRemoteTxReads() {
+			return remoteTxReads;
+		}
+		
+		public long getRemoteSinkReads() {
+			return remoteSinkReads;
+		}
+		
+		public long getRemoteEdges() {
+			return remoteTxReads + remoteSinkReads;
+		}
+		
+		/**
+		 * Returns the average imbalance distance of the batches.
+		 */
+		public double getAverageImbalance() {
+			return (numOfBatches == 0) ? 0.0 : ((double) imbalancedDis) / numOfBatches;
+		}
+		
+		/**
+		 * Returns the CPU time spent on routing and sinking per transaction
+		 * in microseconds.
+		 */
+		public double getCpuTimePerTx() {
+			return (numOfTxs == 0) ? 0.0 : cpuTimeNs / 1000.0 / numOfTxs;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("# of txs: %d, # of batches: %d, remote tx reads: %d, "
+					+ "remote sink reads: %d, avg. imbalance: %.2f, CPU time per tx: %.2f us",
+					numOfTxs, numOfBatches, remoteTxReads, remoteSinkReads,
+					getAverageImbalance(), getCpuTimePerTx());
+		}
+	}
+	
+	private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+	
+	private TGraph graph;
+	private BatchNodeInserter inserter;
+	private Sinker sinker;
+	private int lookaheadBatches;
+	
+	/**
+	 * Creates a runner.
+	 * 
+	 * @param graph the T-Graph
+	 * @param inserter the inserter to be evaluated
+	 * @param sinker the sinker that works with the graph
+	 * @param lookaheadBatches the number of upcoming batches given to the
+	 *            inserter if it is a {@link LookaheadNodeInserter}
+	 */
+	public ReplayRunner(TGraph graph, BatchNodeInserter inserter, Sinker sinker,
+			int lookaheadBatches) {
+		this.graph = graph;
+		this.inserter = inserter;
+		this.sinker = sinker;
+		this.lookaheadBatches = (inserter instanceof LookaheadNodeInserter) ? lookaheadBatches : 0;
+	}
+	
+	public Result replay(List<List<TPartStoredProcedureTask>> batches) {
+		Result result = new Result();
+		
+		for (int i = 0; i < batches.size(); i++) {
+			List<TPartStoredProcedureTask> batch = batches.get(i);
+			
+			long startTime = THREAD_BEAN.getCurrentThreadCpuTime();
+			if (lookaheadBatches > 0) {
+				int end = Math.min(batches.size(), i + 1 + lookaheadBatches);
+				((LookaheadNodeInserter) inserter).insertBatch(graph, batch,
+						batches.subList(i + 1, end));
+			} else
+				inserter.insertBatch(graph, batch);
+			long insertTime = THREAD_BEAN.getCurrentThreadCpuTime() - startTime;
+			
+			// The statistics must be collected before sinking
+			result.numOfTxs += batch.size();
+			result.numOfBatches++;
+			result.remoteTxReads += graph.getRemoteTxReads();
+			result.remoteSinkReads += graph.getRemoteSinkReads();
+			result.imbalancedDis += graph.getImbalancedDis();
+			
+			startTime = THREAD_BEAN.getCurrentThreadCpuTime();
+			if (graph.getTxNodes().size() != 0)
+				sinker.sink(graph);
+			result.cpuTimeNs += insertTime + THREAD_BEAN.getCurrentThreadCpuTime() - startTime;
+		}
+		
+		return result;
+	}
+}
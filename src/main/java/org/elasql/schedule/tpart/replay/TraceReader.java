@@ -0,0 +1,174 @@
+package org.elasql.schedule.tpart.replay;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.elasql.procedure.tpart.TPartStoredProcedureTask;
+import org.elasql.sql.PrimaryKey;
+import org.elasql.sql.PrimaryKeyCodec;
+
+/**
+ * Reads the trace files written by {@link TraceRecorder} into batches of
+ * {@link ReplayProcedure}s. The files are read in the order of their names,
+ * which is the order they were written. A batch cut off by a crash at the end
+ * of a file is ignored.<br>
+ * <br>
+ * The servers may share a trace directory, so only the files of one server
+ * are read from a directory.
+ */
+public class TraceReader {
+	private static Logger logger = Logger.getLogger(TraceReader.class.getName());
+	
+	private List<List<TPartStoredProcedureTask>> batches =
+			new ArrayList<List<TPartStoredProcedureTask>>();
+	private TracedPartitionPlan plan;
+	private int numOfParts = -1;
+	private String serviceType;
+	
+	/**
+	 * Reads a trace file, or all the trace files in a directory that only has
+	 * the traces of one server.
+	 * 
+	 * @param path a trace file or a directory of trace files
+	 * @throws IOException if a file is not a trace, the directory has the
+	 *             traces of more than one server, or the files are recorded
+	 *             with different numbers of partitions
+	 */
+	public TraceReader(File path) throws IOException {
+		this(path, -1);
+	}
+	
+	/**
+	 * Reads a trace file, or the trace files of the given server in a
+	 * directory.
+	 * 
+	 * @param path a trace file or a directory of trace files
+	 * @param serverId the id of the server whose traces are read from the
+	 *            directory, or -1 if the directory only has one server's
+	 * @throws IOException if a file is not a trace or the files are recorded
+	 *             with different numbers of partitions
+	 */
+	public TraceReader(File path, int serverId) throws IOException {
+		File[] files;
+		if (path.isDirectory())
+			files = listTraceFiles(path, serverId);
+		else
+			files = new File[] { path };
+		
+		for (File file : files)
+			readFile(file);
+		
+		if (plan == null)
+			throw new IOException("no trace file found in " + path);
+	}
+	
+	public List<List<TPartStoredProcedureTask>> getBatches() {
+		return batches;
+	}
+	
+	public TracedPartitionPlan getPartitionPlan() {
+		return plan;
+	}
+	
+	public int getNumberOfPartitions() {
+		return numOfParts;
+	}
+	
+	/**
+	 * Returns the name of the service type that the trace was recorded with.
+	 */
+	public String getServiceType() {
+		return serviceType;
+	}
+	
+	private static File[] listTraceFiles(File dir, int serverId) throws IOException {
+		List<File> files = new ArrayList<File>();
+		Set<Integer> serverIds = new TreeSet<Integer>();
+		for (File file : dir.listFiles()) {
+			int id = TraceRecorder.serverIdOf(file);
+			if (id == -1 || (serverId != -1 && id != serverId))
+				continue;
+			files.add(file);
+			serverIds.add(id);
+		}
+		
+		if (serverIds.size() > 1)
+			throw new IOException(dir + " has the traces of servers " + serverIds
+					+ ", please specify one of them");
+		
+		File[] sorted = files.toArray(new File[files.size()]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+	
+	private void readFile(File file) throws IOException {
+		List<PrimaryKey> keys = new ArrayList<PrimaryKey>();
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != TraceRecorder.MAGIC)
+				throw new IOException(file + " is not a T-Graph trace");
+			int version = in.readInt();
+			if (version != TraceRecorder.VERSION)
+				throw new IOException("unsupported trace version " + version + " of " + file);
+			int fileParts = in.readInt();
+			if (numOfParts == -1) {
+				numOfParts = fileParts;
+				plan = new TracedPartitionPlan(numOfParts);
+			} else if (numOfParts != fileParts)
+				throw new IOException(file + " is recorded with " + fileParts + " partitions");
+			serviceType = in.readUTF();
+			
+			while (true) {
+				int numOfTxs;
+				try {
+					numOfTxs = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				
+				List<TPartStoredProcedureTask> batch = new ArrayList<TPartStoredProcedureTask>(numOfTxs);
+				for (int i = 0; i < numOfTxs; i++) {
+					long txNum = in.readLong();
+					int partId = in.readInt();
+					Set<PrimaryKey> readSet = readKeys(in, keys);
+					Set<PrimaryKey> writeSet = readKeys(in, keys);
+					ReplayProcedure sp = new ReplayProcedure(txNum, readSet, writeSet, partId);
+					batch.add(new TPartStoredProcedureTask(-1, -1, txNum, sp));
+				}
+				batches.add(batch);
+			}
+		} catch (EOFException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("the last batch of " + file + " is incomplete");
+		}
+	}
+	
+	private Set<PrimaryKey> readKeys(DataInputStream in, List<PrimaryKey> keys) throws IOException {
+		int count = in.readInt();
+		Set<PrimaryKey> keySet = new HashSet<PrimaryKey>(count * 2);
+		for (int i = 0; i < count; i++) {
+			int id = in.readInt();
+			if (id == keys.size()) {
+				int partId = in.readInt();
+				boolean isReplicated = in.readBoolean();
+				PrimaryKey key = PrimaryKeyCodec.read(in);
+				plan.addKey(key, partId, isReplicated);
+				keys.add(key);
+			}
+			keySet.add(keys.get(id));
+		}
+		return keySet;
+	}
+}
@@ -0,0 +1,251 @@
+package org.elasql.schedule.tpart.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.elasql.schedule.tpart.graph.TxNode;
+import org.elasql.server.Elasql;
+import org.elasql.sql.PrimaryKey;
+import org.elasql.sql.PrimaryKeyCodec;
+import org.elasql.storage.metadata.PartitionMetaMgr;
+import org.elasql.util.ElasqlProperties;
+import org.vanilladb.core.server.task.Task;
+
+/**
+ * Records the transactions of every routed batch (tx numbers, read/write sets
+ * and the chosen partitions) to a set of rolling binary files, which can be
+ * replayed offline by {@link TraceReplayTool}.<br>
+ * <br>
+ * The scheduler thread only takes references to the read/write sets and puts
+ * them in a queue. Encoding and writing are done by a background task. If the
+ * writer falls behind, the batches that do not fit in the queue are dropped
+ * and counted.<br>
+ * <br>
+ * A trace file starts with a header of [magic, version, # of partitions,
+ * service type], followed by batches of [# of txs, (tx number, partition id,
+ * # of reads, read key refs, # of writes, write key refs) ...]. A key ref is
+ * the id of the key in the file. The first ref of a key is followed by its
+ * home partition, whether it is fully replicated and its encoded form (see
+ * {@link PrimaryKeyCodec}), so each file can be read on its own.
+ */
+public class TraceRecorder {
+	private static Logger logger = Logger.getLogger(TraceRecorder.class.getName());
+
+	public static final boolean ENABLED;
+	public static final String TRACE_DIR;
+	public static final long MAX_FILE_SIZE;
+	public static final int MAX_FILES;
+	private static final int QUEUE_SIZE;
+
+	static {
+		ENABLED = ElasqlProperties.getLoader()
+				.getPropertyAsBoolean(TraceRecorder.class.getName() + ".ENABLED", false);
+		TRACE_DIR = ElasqlProperties.getLoader()
+				.getPropertyAsString(TraceRecorder.class.getName() + ".TRACE_DIR", "tgraph_traces");
+		MAX_FILE_SIZE = ElasqlProperties.getLoader()
+				.getPropertyAsLong(TraceRecorder.class.getName() + ".MAX_FILE_SIZE", 64 * 1024 * 1024);
+		MAX_FILES = ElasqlProperties.getLoader()
+				.getPropertyAsInteger(TraceRecorder.class.getName() + ".MAX_FILES", 8);
+		QUEUE_SIZE = ElasqlProperties.getLoader()
+				.getPropertyAsInteger(TraceRecorder.class.getName() + ".QUEUE_SIZE", 1024);
+	}
+
+	static final int MAGIC = 0x54475452; // "TGTR"
+	static final int VERSION = 1;
+
+	private static class TracedTx {
+		final long txNum;
+		final int partId;
+		final Set<PrimaryKey> readSet;
+		final Set<PrimaryKey> writeSet;
+
+		TracedTx(TxNode node) {
+			this.txNum = node.getTxNum();
+			this.partId = node.getPartId();
+			this.readSet = node.getTask().getReadSet();
+			this.writeSet = node.getTask().getWriteSet();
+		}
+	}
+
+	static File traceFile(File dir, int serverId, long seq) {
+		return new File(dir, String.format("%s%06d.bin", filePrefix(serverId), seq));
+	}
+
+	static String filePrefix(int serverId) {
+		return String.format("tgraph_trace_%d_", serverId);
+	}
+
+	/**
+	 * Returns the id of the server that wrote the given trace file, or -1 if
+	 * it is not a trace file.
+	 */
+	static int serverIdOf(File file) {
+		String name = file.getName();
+		if (!file.isFile() || !name.startsWith("tgraph_trace_") || !name.endsWith(".bin"))
+			return -1;
+		String[] parts = name.substring(0, name.length() - 4).split("_");
+		if (parts.length != 4)
+			return -1;
+		try {
+			return Integer.parseInt(parts[2]);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Finds the sequence number of the latest trace file of the given server,
+	 * so that a restarted server does not overwrite its previous traces.
+	 */
+	static long lastFileSeq(File dir, int serverId) {
+		String prefix = filePrefix(serverId);
+		long lastSeq = 0;
+		File[] files = dir.listFiles();
+		if (files == null)
+			return lastSeq;
+
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(prefix) && name.endsWith(".bin")) {
+				try {
+					long seq = Long.parseLong(name.substring(prefix.length(), name.length() - 4));
+					lastSeq = Math.max(lastSeq, seq);
+				} catch (NumberFormatException e) {
+					// Not a trace file
+				}
+			}
+		}
+		return lastSeq;
+	}
+
+	private final File dir;
+	private final int serverId;
+	private final BlockingQueue<TracedTx[]> queue = new LinkedBlockingQueue<TracedTx[]>(QUEUE_SIZE);
+	private final AtomicLong droppedBatches = new AtomicLong();
+
+	// Only accessed by the writer task
+	private DataOutputStream out;
+	private long fileSeq;
+	private Map<PrimaryKey, Integer> keyIds = new HashMap<PrimaryKey, Integer>();
+
+	public TraceRecorder(int serverId) {
+		this.dir = new File(TRACE_DIR);
+		this.serverId = serverId;
+		dir.mkdirs();
+		this.fileSeq = lastFileSeq(dir, serverId);
+
+		Elasql.taskMgr().runTask(new Task() {
+			@Override
+			public void run() {
+				Thread.currentThread().setName("tgraph-trace-writer");
+				writeLoop();
+			}
+		});
+	}
+
+	/**
+	 * Records the tx nodes of a batch. This must be called after the nodes are
+	 * assigned to partitions and before the graph is sunk.
+	 *
+	 * @param nodes the tx nodes of the batch
+	 */
+	public void record(List<TxNode> nodes) {
+		TracedTx[] batch = new TracedTx[nodes.size()];
+		int i = 0;
+		for (TxNode node : nodes)
+			batch[i++] = new TracedTx(node);
+
+		if (!queue.offer(batch)) {
+			long dropped = droppedBatches.incrementAndGet();
+			if ((dropped & (dropped - 1)) == 0 && logger.isLoggable(Level.WARNING))
+				logger.warning("the trace writer falls behind, " + dropped + " batches are dropped");
+		}
+	}
+
+	public long getDroppedBatches() {
+		return droppedBatches.get();
+	}
+
+	private void writeLoop() {
+		try {
+			openNextFile();
+			while (true) {
+				TracedTx[] batch = queue.take();
+				writeBatch(batch);
+
+				// Flush when idle, so that a trace is readable without
+				// slowing down the recording on heavy loads.
+				if (queue.isEmpty())
+					out.flush();
+				if (out.size() >= MAX_FILE_SIZE) {
+					out.close();
+					openNextFile();
+				}
+			}
+		} catch (IOException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("stop recording the T-Graph trace: " + e.getMessage());
+		} catch (InterruptedException e) {
+			// Stop recording
+		}
+	}
+
+	private void openNextFile() throws IOException {
+		fileSeq++;
+		File oldFile = traceFile(dir, serverId, fileSeq - MAX_FILES);
+		if (oldFile.exists())
+			oldFile.delete();
+
+		out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(traceFile(dir, serverId, fileSeq))));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(PartitionMetaMgr.NUM_PARTITIONS);
+		out.writeUTF(Elasql.SERVICE_TYPE.name());
+
+		// Each file has its own key ids
+		keyIds.clear();
+	}
+
+	private void writeBatch(TracedTx[] batch) throws IOException {
+		out.writeInt(batch.length);
+		for (TracedTx tx : batch) {
+			out.writeLong(tx.txNum);
+			out.writeInt(tx.partId);
+			writeKeys(tx.readSet);
+			writeKeys(tx.writeSet);
+		}
+	}
+
+	private void writeKeys(Set<PrimaryKey> keys) throws IOException {
+		out.writeInt(keys.size());
+		for (PrimaryKey key : keys) {
+			Integer id = keyIds.get(key);
+			if (id != null) {
+				out.writeInt(id);
+				continue;
+			}
+
+			id = keyIds.size();
+			keyIds.put(key, id);
+			out.writeInt(id);
+
+			PartitionMetaMgr partMgr = Elasql.partitionMetaMgr();
+			out.writeInt(partMgr.getPartition(key));
+			out.writeBoolean(partMgr.isFullyReplicated(key));
+			PrimaryKeyCodec.write(key, out);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package org.elasql.schedule.tpart.replay;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.elasql.schedule.tpart.BatchNodeInserter;
+import org.elasql.schedule.tpart.CostAwareNodeInserter;
+import org.elasql.schedule.tpart.LocalFirstNodeInserter;
+import org.elasql.schedule.tpart.graph.TGraph;
+import org.elasql.schedule.tpart.hermes.FusionSinker;
+import org.elasql.schedule.tpart.hermes.FusionTGraph;
+import org.elasql.schedule.tpart.hermes.FusionTable;
+import org.elasql.schedule.tpart.hermes.HermesNodeInserter;
+import org.elasql.schedule.tpart.sink.Sinker;
+import org.elasql.server.Elasql;
+import org.elasql.storage.metadata.PartitionMetaMgr;
+
+/**
+ * Replays a trace recorded by {@link TraceRecorder} through a routing
+ * algorithm without a cluster, and prints the remote edges, the imbalance and
+ * the CPU time of the scheduler per transaction.<br>
+ * <br>
+ * Usage: TraceReplayTool [trace file or directory] [algorithm] [# of lookahead batches]
+ * [server id]<br>
+ * <br>
+ * The algorithm can be RECORDED (the routing in the trace), TPART, HERMES,
+ * G_STORE, LEAP, or the class name of a {@link BatchNodeInserter} with a
+ * public no-arg constructor, which runs with a plain T-Graph and sinker. The
+ * number of partitions in the communication settings must match the trace.
+ * The server id is needed when the directory has the traces of more than one
+ * server.
+ */
+public class TraceReplayTool {
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: TraceReplayTool [trace file or directory] [algorithm] "
+					+ "[# of lookahead batches] [server id]");
+			return;
+		}
+		int lookahead = (args.length > 2) ? Integer.parseInt(args[2]) : 0;
+		int serverId = (args.length > 3) ? Integer.parseInt(args[3]) : -1;
+		
+		TraceReader reader = new TraceReader(new File(args[0]), serverId);
+		if (reader.getNumberOfPartitions() != PartitionMetaMgr.NUM_PARTITIONS)
+			throw new IllegalArgumentException(String.format("the trace is recorded with %d partitions, "
+					+ "but there are %d partitions", reader.getNumberOfPartitions(),
+					PartitionMetaMgr.NUM_PARTITIONS));
+		Elasql.initPartitionMetaMgr(reader.getPartitionPlan());
+		
+		ReplayRunner runner = newRunner(args[1], reader.getServiceType(), lookahead);
+		System.out.println(String.format("Replaying %d batches (recorded with %s) using %s",
+				reader.getBatches().size(), reader.getServiceType(), args[1]));
+		System.out.println(runner.replay(reader.getBatches()));
+	}
+	
+	private static ReplayRunner newRunner(String algorithm, String recordedType, int lookahead) {
+		String name = algorithm.toUpperCase();
+		if (name.equals("RECORDED")) {
+			// Use the graph that the trace was recorded with
+			boolean isFusion = recordedType.equals(Elasql.ServiceType.HERMES.name())
+					|| recordedType.equals(Elasql.ServiceType.LEAP.name());
+			return newRunner(new RecordedNodeInserter(), isFusion, 0);
+		} else if (name.equals(Elasql.ServiceType.TPART.name())) {
+			return newRunner(new CostAwareNodeInserter(), false, lookahead);
+		} else if (name.equals(Elasql.ServiceType.HERMES.name())) {
+			return newRunner(new HermesNodeInserter(), true, lookahead);
+		} else if (name.equals(Elasql.ServiceType.G_STORE.name())) {
+			return newRunner(new LocalFirstNodeInserter(), false, lookahead);
+		} else if (name.equals(Elasql.ServiceType.LEAP.name())) {
+			return newRunner(new LocalFirstNodeInserter(), true, lookahead);
+		}
+		
+		try {
+			BatchNodeInserter inserter = (BatchNodeInserter) Class.forName(algorithm).getDeclaredConstructor().newInstance();
+			return newRunner(inserter, false, lookahead);
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			throw new IllegalArgumentException("unknown algorithm: " + algorithm, e);
+		}
+	}
+	
+	private static ReplayRunner newRunner(BatchNodeInserter inserter, boolean isFusion, int lookahead) {
+		if (isFusion) {
+			FusionTable table = new FusionTable();
+			return new ReplayRunner(new FusionTGraph(table), inserter, new FusionSinker(table), lookahead);
+		} else
+			return new ReplayRunner(new TGraph(), inserter, new Sinker(), lookahead);
+	}
+}
@@ -0,0 +1,71 @@
+package org.elasql.schedule.tpart.replay;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasql.sql.PartitioningKey;
+import org.elasql.sql.PrimaryKey;
+import org.elasql.storage.metadata.PartitionPlan;
+
+/**
+ * A partition plan that places the records where a trace says they were, so
+ * that a trace can be replayed without the partition plan of the application.
+ */
+public class TracedPartitionPlan extends PartitionPlan {
+	
+	private int numOfParts;
+	private Map<PrimaryKey, Integer> homePartitions = new HashMap<PrimaryKey, Integer>();
+	private Set<PrimaryKey> replicatedKeys = new HashSet<PrimaryKey>();
+	
+	TracedPartitionPlan(int numOfParts) {
+		this.numOfParts = numOfParts;
+	}
+	
+	void addKey(PrimaryKey key, int partId, boolean isReplicated) {
+		// Keep the first one if the key appears in multiple files
+		if (!homePartitions.containsKey(key))
+			homePartitions.put(key, partId);
+		if (isReplicated)
+			replicatedKeys.add(key);
+	}
+
+	@Override
+	public boolean isFullyReplicated(PrimaryKey key) {
+		return replicatedKeys.contains(key);
+	}
+
+	@Override
+	public int getPartition(PrimaryKey key) {
+		Integer partId = homePartitions.get(key);
+		if (partId == null)
+			throw new IllegalArgumentException(key + " is not in the trace");
+		return partId;
+	}
+	
+	@Override
+	public int numberOfPartitions() {
+		return numOfParts;
+	}
+
+	@Override
+	public PartitionPlan getBasePlan() {
+		return this;
+	}
+
+	@Override
+	public void setBasePlan(PartitionPlan plan) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public PartitioningKey getPartitioningKey(PrimaryKey key) {
+		return PartitioningKey.fromPrimaryKey(key);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("Traced Partition Plan (%d records)", homePartitions.size());
+	}
+}
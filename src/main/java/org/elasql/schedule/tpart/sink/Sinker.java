@@ -1,8 +1,15 @@
 package org.elasql.schedule.tpart.sink;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.elasql.cache.tpart.TPartCacheMgr;
 import org.elasql.procedure.tpart.TPartStoredProcedureTask;
@@ -12,15 +19,48 @@ import org.elasql.schedule.tpart.graph.TxNode;
 import org.elasql.server.Elasql;
 import org.elasql.sql.PrimaryKey;
 import org.elasql.storage.metadata.PartitionMetaMgr;
+import org.elasql.util.ElasqlProperties;
 
 public class Sinker {
 	
+	/**
+	 * The number of threads generating sunk plans. 1 means the plans are
+	 * generated by the scheduler thread.
+	 */
+	public static final int PLANNING_THREADS;
+	/**
+	 * The minimum number of tx nodes handled by a planning thread.
+	 */
+	public static final int MIN_NODES_PER_THREAD;
+
+	static {
+		PLANNING_THREADS = ElasqlProperties.getLoader()
+				.getPropertyAsInteger(Sinker.class.getName() + ".PLANNING_THREADS", 1);
+		MIN_NODES_PER_THREAD = ElasqlProperties.getLoader()
+				.getPropertyAsInteger(Sinker.class.getName() + ".MIN_NODES_PER_THREAD", 64);
+	}
+	
 	protected PartitionMetaMgr parMeta;
 	protected int myId = Elasql.serverId();
 	protected static int sinkProcessId = 0;
+	
+	private ExecutorService planners;
 
 	public Sinker() {
 		parMeta = Elasql.partitionMetaMgr();
+		
+		if (PLANNING_THREADS > 1) {
+			planners = Executors.newFixedThreadPool(PLANNING_THREADS, new ThreadFactory() {
+				private int count = 0;
+				
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Sink Planner-" + count++);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
 	}
 	
 	public Iterator<TPartStoredProcedureTask> sink(TGraph graph) {
@@ -40,27 +80,68 @@ public class Sinker {
 		return plans.iterator();
 	}
 	
+	/**
+	 * Returns true if this sinker needs to take a snapshot. The scheduler then
+	 * waits for all the dispatched transactions to finish and calls
+	 * {@link #takeSnapshot()}.
+	 * 
+	 * @return true if a snapshot should be taken now
+	 */
+	public boolean isSnapshotDue() {
+		return false;
+	}
+	
+	/**
+	 * Saves the states of this sinker. This is called by the scheduler when
+	 * none of the dispatched transactions is running.
+	 */
+	public void takeSnapshot() {
+		// Nothing to save by default
+	}
+	
+	/**
+	 * Generates the plan of a read-only transaction whose records can all be
+	 * read from the storage (sink) of the given partition, without putting it
+	 * into a T-Graph. The caller must make sure that no transaction waiting to
+	 * be sunk writes the records it reads.
+	 * 
+	 * @param task the read-only transaction
+	 * @param partId the partition that has all the records the task reads
+	 * @return the task if it should be executed here, or null otherwise
+	 */
+	public TPartStoredProcedureTask sinkReadOnlyTask(TPartStoredProcedureTask task, int partId) {
+		// Only the master reads, so the other nodes have nothing to do
+		if (partId != myId)
+			return null;
+		
+		SunkPlan plan = new SunkPlan(sinkProcessId, true);
+		long sinkTxNum = TPartCacheMgr.toSinkId(partId);
+		for (PrimaryKey key : task.getReadSet()) {
+			plan.addReadingInfo(key, sinkTxNum);
+			plan.addSinkReadingInfo(key);
+		}
+		
+		// Locks are booked here, before the transactions sunk later
+		task.decideExceutionPlan(plan);
+		return task;
+	}
+	
 	protected List<TPartStoredProcedureTask> createSunkPlan(TGraph graph) {
 		List<TPartStoredProcedureTask> localTasks = new LinkedList<TPartStoredProcedureTask>();
-
-		// Build a local execution plan for each transaction node
-		for (TxNode node : graph.getTxNodes()) {
-			// Debug
-//			System.out.println(String.format("Node %d: %s (writeback: %d)", node.getTxNum(),
-//					node.getTask().getProcedure().getClass().getSimpleName(), node.getWriteBackEdges().size()));
+		// Copy the nodes to an array list for random access
+		List<TxNode> nodes = new ArrayList<TxNode>(graph.getTxNodes());
+		
+		// Build a local execution plan for each transaction node.
+		// The plan of a node only depends on its edges, so the plans
+		// can be generated in parallel.
+		SunkPlan[] plans = generatePlans(nodes);
+		
+		// The following steps must follow the order of the transactions
+		for (int i = 0; i < plans.length; i++) {
+			TxNode node = nodes.get(i);
+			SunkPlan plan = plans[i];
 			
-			// Check if this node is the master node
-			boolean isHereMaster = (node.getPartId() == myId);
-			SunkPlan plan = new SunkPlan(sinkProcessId, isHereMaster);
-
-			// Generate reading plans
-			generateReadingPlans(plan, node);
-
-			// Generate writing plans
-			generateWritingPlans(plan, node);
-
-			// Generate write back (to sinks) plans
-			generateWritingBackPlans(plan, node);
+			updateLocations(plan, node);
 			
 			// Decide if the local node should execute this plan
 			if (plan.shouldExecuteHere()) {
@@ -75,6 +156,40 @@ public class Sinker {
 		return localTasks;
 	}
 	
+	protected SunkPlan generatePlan(TxNode node) {
+		// Debug
+//		System.out.println(String.format("Node %d: %s (writeback: %d)", node.getTxNum(),
+//				node.getTask().getProcedure().getClass().getSimpleName(), node.getWriteBackEdges().size()));
+		
+		// Check if this node is the master node
+		boolean isHereMaster = (node.getPartId() == myId);
+		SunkPlan plan = new SunkPlan(sinkProcessId, isHereMaster);
+
+		// Generate reading plans
+		generateReadingPlans(plan, node);
+
+		// Generate writing plans
+		generateWritingPlans(plan, node);
+
+		// Generate write back (to sinks) plans
+		generateWritingBackPlans(plan, node);
+		
+		return plan;
+	}
+	
+	/**
+	 * Updates the location information of the records written back by the
+	 * given node. Unlike the other parts of a plan, this method is called
+	 * sequentially in the order of the transactions, so it may access states
+	 * shared by all the nodes.
+	 * 
+	 * @param plan the plan of the node
+	 * @param node the transaction node
+	 */
+	protected void updateLocations(SunkPlan plan, TxNode node) {
+		// Records are always written back to their partitions
+	}
+	
 	protected void generateReadingPlans(SunkPlan plan, TxNode node) {
 		for (Edge e : node.getReadEdges()) {
 			long srcTxn = e.getTarget().getTxNum();
@@ -129,4 +244,44 @@ public class Sinker {
 			}
 		}
 	}
+	
+	private SunkPlan[] generatePlans(final List<TxNode> nodes) {
+		final SunkPlan[] plans = new SunkPlan[nodes.size()];
+		int numOfWorkers = Math.min(PLANNING_THREADS, plans.length / MIN_NODES_PER_THREAD);
+		
+		if (planners == null || numOfWorkers <= 1) {
+			int i = 0;
+			for (TxNode node : nodes)
+				plans[i++] = generatePlan(node);
+			return plans;
+		}
+		
+		// Split the nodes into contiguous ranges
+		List<Future<?>> futures = new ArrayList<Future<?>>(numOfWorkers);
+		int rangeSize = (plans.length + numOfWorkers - 1) / numOfWorkers;
+		for (int start = 0; start < plans.length; start += rangeSize) {
+			final int from = start;
+			final int to = Math.min(start + rangeSize, plans.length);
+			futures.add(planners.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i = from; i < to; i++)
+						plans[i] = generatePlan(nodes.get(i));
+					return null;
+				}
+			}));
+		}
+		
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while generating sunk plans", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("fails to generate sunk plans", e.getCause());
+		}
+		
+		return plans;
+	}
 }
@@ -27,6 +27,8 @@ import org.elasql.migration.MigrationMgr;
 import org.elasql.migration.MigrationSystemController;
 import org.elasql.procedure.DdStoredProcedureFactory;
 import org.elasql.procedure.calvin.CalvinStoredProcedureFactory;
+import org.elasql.procedure.calvin.CheckpointProcedure;
+import org.elasql.procedure.calvin.SystemStoredProcFactory;
 import org.elasql.procedure.naive.NaiveStoredProcedureFactory;
 import org.elasql.procedure.tpart.TPartStoredProcedureFactory;
 import org.elasql.remote.groupcomm.server.ConnectionMgr;
@@ -41,6 +43,7 @@ import org.elasql.schedule.tpart.graph.TGraph;
 import org.elasql.schedule.tpart.hermes.FusionSinker;
 import org.elasql.schedule.tpart.hermes.FusionTGraph;
 import org.elasql.schedule.tpart.hermes.FusionTable;
+import org.elasql.schedule.tpart.hermes.FusionTableSnapshot;
 import org.elasql.schedule.tpart.hermes.HermesNodeInserter;
 import org.elasql.schedule.tpart.sink.Sinker;
 import org.elasql.storage.log.DdLogMgr;
@@ -48,6 +51,7 @@ import org.elasql.storage.metadata.HashPartitionPlan;
 import org.elasql.storage.metadata.NotificationPartitionPlan;
 import org.elasql.storage.metadata.PartitionMetaMgr;
 import org.elasql.storage.metadata.PartitionPlan;
+import org.elasql.storage.tx.recovery.RequestLogReplayer;
 import org.elasql.util.ElasqlProperties;
 import org.vanilladb.core.server.VanillaDb;
 
@@ -156,22 +160,37 @@ public class Elasql extends VanillaDb {
 			initConnectionMgr(myNodeId);
 			initPartitionMetaMgr(partitionPlan);
 			initScheduler(factory, migraComsFactory);
+			// Number the requests after the ones the servers recover
+			connMgr.startScheduling(RequestLogReplayer.awaitRecoveredTxNum());
 			if (migraComsFactory != null)
 				migraSysControl = migraComsFactory.newSystemController();
 			return;
 		}
 
+		// Only Calvin has a procedure taking the checkpoints
+		if (RequestLogReplayer.LOGICAL_LOGGING_ONLY && SERVICE_TYPE != ServiceType.CALVIN)
+			throw new RuntimeException("the logical-only logging mode is not supported by " + SERVICE_TYPE);
+
 		// initialize core modules
+		RequestLogReplayer.restoreStorage(dirName);
 		VanillaDb.init(dirName);
 
 		// initialize DD modules
 		initCacheMgr();
 		initPartitionMetaMgr(partitionPlan);
 		initScheduler(factory, migraComsFactory);
+		initDdLogMgr(dirName);
+		// The replayed transactions may talk to the other servers, but the
+		// new requests are held until the logged ones have been scheduled
 		initConnectionMgr(myNodeId);
-		initDdLogMgr();
+		long lastRecoveredTxNum = RequestLogReplayer.recover(ddLogMgr, scheduler);
+		connMgr.startScheduling(lastRecoveredTxNum);
 		if (migraComsFactory != null)
 			migraMgr = migraComsFactory.newMigrationMgr();
+		
+		// Only one server needs to request the checkpoints
+		if (SERVICE_TYPE == ServiceType.CALVIN && myNodeId == 0)
+			CheckpointProcedure.startPeriodicCheckpoints();
 	}
 
 	// ================
@@ -211,6 +230,7 @@ public class Elasql extends VanillaDb {
 			CalvinStoredProcedureFactory calvinFactory = (CalvinStoredProcedureFactory) factory;
 			if (migraComsFactory != null)
 				calvinFactory = migraComsFactory.newMigrationSpFactory(calvinFactory);
+			calvinFactory = new SystemStoredProcFactory(calvinFactory);
 			scheduler = initCalvinScheduler(calvinFactory);
 			break;
 		case TPART:
@@ -253,7 +273,7 @@ public class Elasql extends VanillaDb {
 			isBatching = true;
 			break;
 		case HERMES:
-			table = new FusionTable();
+			table = FusionTableSnapshot.loadOrCreate(myNodeId);
 			graph = new FusionTGraph(table);
 			inserter = new HermesNodeInserter();
 			sinker = new FusionSinker(table);
@@ -266,7 +286,7 @@ public class Elasql extends VanillaDb {
 			isBatching = false;
 			break;
 		case LEAP:
-			table = new FusionTable();
+			table = FusionTableSnapshot.loadOrCreate(myNodeId);
 			graph = new FusionTGraph(table);
 			inserter = new LocalFirstNodeInserter();
 			sinker = new FusionSinker(table);
@@ -302,8 +322,8 @@ public class Elasql extends VanillaDb {
 		connMgr = new ConnectionMgr(id);
 	}
 
-	public static void initDdLogMgr() {
-		ddLogMgr = new DdLogMgr();
+	public static void initDdLogMgr(String dirName) {
+		ddLogMgr = new DdLogMgr(dirName);
 	}
 
 	// ================
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
@@ -17,81 +18,101 @@ import org.vanilladb.core.sql.predicate.Predicate;
 import org.vanilladb.core.sql.predicate.Term;
 import org.vanilladb.core.storage.index.SearchKey;
 
+/**
+ * A key of records. A key is stored as its interned {@link KeyLayout} and the
+ * encoded bytes of its values, with a precomputed 64-bit hash, so comparing
+ * two keys only compares the layout references and the bytes. The values are
+ * not kept after they are encoded. They are decoded the first time one of
+ * them is asked and kept from then on, so the keys that are only compared
+ * (e.g., the keys in a cache) cost only their bytes.<br>
+ * <br>
+ * Each value is encoded as [SQL type (1 byte), length (1 to 5 bytes), value
+ * bytes]. The argument of a type (e.g., the size of a VARCHAR) is not kept,
+ * so two keys are equal as long as they have the same values.
+ */
 public abstract class Key implements Serializable {
 
-	private static final long serialVersionUID = 20200819002L;
+	private static final long serialVersionUID = 20210301002L;
 	
-	private String tableName;
-	private String[] fields;
-	// We serialize this field manually
-	// because a Constant is non-serializable.
-	private transient Constant[] values;
-	private int hashCode;
+	// We serialize all the fields manually. The layout must be interned
+	// again after deserialization.
+	private transient KeyLayout layout;
+	private transient byte[] encodedVals;
+	private transient long hash;
+	// Decoded lazily. Decoding twice in a race is harmless.
+	private transient volatile Constant[] values;
 	
 	protected Key(String tableName, String fld, Constant val) {
-		this.tableName = tableName;
-		this.fields = new String[] { fld };
-		this.values = new Constant[] { val };
-		
-		genHashCode();
+		this(KeyLayout.of(tableName, fld), new Constant[] { val });
 	}
 	
 	protected Key(String tableName, String[] fields, Constant[] values) {
-		if (fields.length != values.length)
-			throw new IllegalArgumentException();
-		
-		this.tableName = tableName;
-		this.fields = fields;
-		this.values = values;
-		
-		genHashCode();
+		this(KeyLayout.of(tableName, fields), values);
 	}
 	
 	protected Key(Key otherKey) {
-		this.tableName = otherKey.tableName;
-		this.fields = Arrays.copyOf(otherKey.fields, otherKey.fields.length);
-		this.values = Arrays.copyOf(otherKey.values, otherKey.values.length);
+		// A key is immutable, so everything can be shared
+		this.layout = otherKey.layout;
+		this.encodedVals = otherKey.encodedVals;
+		this.hash = otherKey.hash;
+		this.values = otherKey.values;
+	}
+	
+	Key(KeyLayout layout, Constant[] values) {
+		if (layout.getNumOfFlds() != values.length)
+			throw new IllegalArgumentException();
 		
-		genHashCode();
+		this.layout = layout;
+		this.encodedVals = encode(values);
+		this.hash = genHash(layout, encodedVals);
 	}
 
 	public String getTableName() {
-		return tableName;
+		return layout.getTableName();
+	}
+	
+	public KeyLayout getLayout() {
+		return layout;
 	}
 	
 	public boolean containsField(String fld) {
-		for (int i = 0; i < fields.length; i++) {
-			if (fields[i].equals(fld))
-				return true;
-		}
-		return false;
+		return layout.indexOf(fld) != -1;
 	}
 	
 	public int getNumOfFlds() {
-		return fields.length;
+		return layout.getNumOfFlds();
 	}
 	
 	public String getField(int index) {
-		return fields[index];
+		return layout.getField(index);
 	}
 	
 	public Constant getVal(int index) {
-		return values[index];
+		if (index < 0 || index >= layout.getNumOfFlds())
+			throw new IndexOutOfBoundsException("no value at " + index);
+		return values()[index];
 	}
 
 	public Constant getVal(String fld) {
-		for (int i = 0; i < fields.length; i++) {
-			if (fields[i].equals(fld))
-				return values[i];
-		}
-		return null;
+		int index = layout.indexOf(fld);
+		return (index == -1) ? null : values()[index];
+	}
+	
+	/**
+	 * Returns the 64-bit hash of this key. The hash only depends on the names
+	 * and the values, so it is the same on every machine.
+	 * 
+	 * @return the 64-bit hash
+	 */
+	public long hash64() {
+		return hash;
 	}
 
 	public Predicate toPredicate() {
 		Predicate pred = new Predicate();
-		for (int i = 0; i < fields.length; i++) {
-			Expression k = new FieldNameExpression(fields[i]);
-			Expression v = new ConstantExpression(values[i]);
+		for (int i = 0; i < getNumOfFlds(); i++) {
+			Expression k = new FieldNameExpression(getField(i));
+			Expression v = new ConstantExpression(getVal(i));
 			pred.conjunctWith(new Term(k, Term.OP_EQ, v));
 		}
 		return pred;
@@ -132,12 +153,12 @@ public abstract class Key implements Serializable {
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("{");
-		sb.append(tableName);
+		sb.append(getTableName());
 		sb.append(": ");
-		for (int i = 0; i < fields.length; i++) {
-			sb.append(fields[i]);
+		for (int i = 0; i < getNumOfFlds(); i++) {
+			sb.append(getField(i));
 			sb.append(" -> ");
-			sb.append(values[i]);
+			sb.append(getVal(i));
 			sb.append(", ");
 		}
 		sb.delete(sb.length() - 2, sb.length());
@@ -151,55 +172,106 @@ public abstract class Key implements Serializable {
 			return true;
 		if (obj == null)
 			return false;
-		if (obj.getClass() != PrimaryKey.class)
+		if (obj.getClass() != getClass())
 			return false;
 		Key k = (Key) obj;
-		return k.tableName.equals(this.tableName) && Arrays.equals(k.fields, this.fields)
-				&& Arrays.equals(k.values, this.values);
+		// The layouts are interned
+		return k.layout == this.layout && k.hash == this.hash
+				&& Arrays.equals(k.encodedVals, this.encodedVals);
 	}
 
 	@Override
 	public int hashCode() {
-		return hashCode;
+		return (int) (hash ^ (hash >>> 32));
+	}
+	
+	private Constant[] values() {
+		Constant[] vals = values;
+		if (vals == null) {
+			vals = decode(layout.getNumOfFlds(), encodedVals);
+			values = vals;
+		}
+		return vals;
+	}
+	
+	private static byte[] encode(Constant[] values) {
+		int size = 0;
+		byte[][] valBytes = new byte[values.length][];
+		for (int i = 0; i < values.length; i++) {
+			valBytes[i] = values[i].asBytes();
+			size += 6 + valBytes[i].length;
+		}
+		
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		for (int i = 0; i < values.length; i++) {
+			int sqlType = values[i].getType().getSqlType();
+			if (sqlType != (byte) sqlType)
+				throw new IllegalArgumentException("unsupported type " + sqlType);
+			buf.put((byte) sqlType);
+			
+			// The length is written 7 bits at a time
+			int length = valBytes[i].length;
+			while ((length & ~0x7f) != 0) {
+				buf.put((byte) ((length & 0x7f) | 0x80));
+				length >>>= 7;
+			}
+			buf.put((byte) length);
+			buf.put(valBytes[i]);
+		}
+		return Arrays.copyOf(buf.array(), buf.position());
+	}
+	
+	private static Constant[] decode(int numOfVals, byte[] encodedVals) {
+		Constant[] values = new Constant[numOfVals];
+		ByteBuffer buf = ByteBuffer.wrap(encodedVals);
+		for (int i = 0; i < numOfVals; i++) {
+			int sqlType = buf.get();
+			int length = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buf.get();
+				length |= (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			
+			byte[] bytes = new byte[length];
+			buf.get(bytes);
+			// The argument is only used by variable-size types
+			values[i] = Constant.newInstance(Type.newInstance(sqlType, length), bytes);
+		}
+		return values;
 	}
 
-	private void genHashCode() {
-		hashCode = 17;
-		hashCode = 31 * hashCode + tableName.hashCode();
-		for (int i = 0; i < fields.length; i++) {
-			hashCode = 31 * hashCode + fields[i].hashCode();
-			hashCode = 31 * hashCode + values[i].hashCode();
+	// FNV-1a over the encoded values, seeded by the layout
+	private static long genHash(KeyLayout layout, byte[] encodedVals) {
+		long h = 0xcbf29ce484222325L ^ layout.hash();
+		for (byte b : encodedVals) {
+			h ^= (b & 0xff);
+			h *= 0x100000001b3L;
 		}
+		return h;
 	}
 	
 	private void writeObject(ObjectOutputStream out) throws IOException {
 		out.defaultWriteObject();
-		out.writeInt(values.length);
-
-		// Write out all elements in the proper order
-		for (int i = 0; i < values.length; i++) {
-			Constant val = values[i];
-			byte[] bytes = val.asBytes();
-			out.writeInt(val.getType().getSqlType());
-			out.writeInt(val.getType().getArgument());
-			out.writeInt(bytes.length);
-			out.write(bytes);
-		}
+		out.writeUTF(layout.getTableName());
+		out.writeInt(layout.getNumOfFlds());
+		for (int i = 0; i < layout.getNumOfFlds(); i++)
+			out.writeUTF(layout.getField(i));
+		out.writeInt(encodedVals.length);
+		out.write(encodedVals);
 	}
 
 	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
 		in.defaultReadObject();
-		int numberOfVals = in.readInt();
-		this.values = new Constant[numberOfVals];
-
-		// Read in all values
-		for (int i = 0; i < numberOfVals; i++) {
-			int sqlType = in.readInt();
-			int argument = in.readInt();
-			byte[] bytes = new byte[in.readInt()];
-			in.read(bytes);
-			Constant val = Constant.newInstance(Type.newInstance(sqlType, argument), bytes);
-			values[i] = val;
-		}
+		String tableName = in.readUTF();
+		String[] fields = new String[in.readInt()];
+		for (int i = 0; i < fields.length; i++)
+			fields[i] = in.readUTF();
+		this.layout = KeyLayout.of(tableName, fields);
+		this.encodedVals = new byte[in.readInt()];
+		in.readFully(encodedVals);
+		this.hash = genHash(layout, encodedVals);
 	}
 }
@@ -0,0 +1,134 @@
+package org.elasql.sql;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The table name and the field names of a kind of keys. A layout is interned,
+ * so all the keys on the same fields of the same table share one layout and
+ * two keys can compare their layouts by reference.<br>
+ * <br>
+ * The ids of the tables and the layouts are assigned in the order of their
+ * first use, so they are only meaningful in the local process.
+ */
+public final class KeyLayout {
+
+	private static final ConcurrentMap<String, TableLayouts> TABLES =
+			new ConcurrentHashMap<String, TableLayouts>();
+	private static final AtomicInteger NEXT_TABLE_ID = new AtomicInteger();
+	private static final AtomicInteger NEXT_LAYOUT_ID = new AtomicInteger();
+
+	private static class TableLayouts {
+		final int tableId;
+		// Replaced as a whole when a new layout is added, so that
+		// readers never need to lock.
+		volatile KeyLayout[] layouts = new KeyLayout[0];
+
+		TableLayouts(int tableId) {
+			this.tableId = tableId;
+		}
+
+		KeyLayout find(String[] fields) {
+			for (KeyLayout layout : layouts)
+				if (Arrays.equals(layout.fields, fields))
+					return layout;
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the layout of the keys with the given fields. The given array is
+	 * kept by the layout if there was no such layout, so it must not be
+	 * modified afterwards.
+	 *
+	 * @param tableName the name of the table
+	 * @param fields the names of the key fields
+	 * @return the interned layout
+	 */
+	public static KeyLayout of(String tableName, String... fields) {
+		TableLayouts table = TABLES.get(tableName);
+		if (table == null) {
+			table = new TableLayouts(NEXT_TABLE_ID.getAndIncrement());
+			TableLayouts existing = TABLES.putIfAbsent(tableName, table);
+			if (existing != null)
+				table = existing;
+		}
+
+		KeyLayout layout = table.find(fields);
+		if (layout != null)
+			return layout;
+
+		synchronized (table) {
+			layout = table.find(fields);
+			if (layout != null)
+				return layout;
+
+			layout = new KeyLayout(tableName, table.tableId, NEXT_LAYOUT_ID.getAndIncrement(), fields);
+			KeyLayout[] layouts = Arrays.copyOf(table.layouts, table.layouts.length + 1);
+			layouts[layouts.length - 1] = layout;
+			table.layouts = layouts;
+			return layout;
+		}
+	}
+
+	private final String tableName;
+	private final int tableId;
+	private final int layoutId;
+	private final String[] fields;
+	// Computed from the names only, so it is the same in every process
+	private final long hash;
+
+	private KeyLayout(String tableName, int tableId, int layoutId, String[] fields) {
+		this.tableName = tableName;
+		this.tableId = tableId;
+		this.layoutId = layoutId;
+		this.fields = fields;
+
+		long h = tableName.hashCode();
+		for (String fld : fields)
+			h = 31 * h + fld.hashCode();
+		this.hash = h;
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	public int getTableId() {
+		return tableId;
+	}
+
+	public int getLayoutId() {
+		return layoutId;
+	}
+
+	public int getNumOfFlds() {
+		return fields.length;
+	}
+
+	public String getField(int index) {
+		return fields[index];
+	}
+
+	/**
+	 * Returns the position of the given field, or -1 if there is no such
+	 * field.
+	 */
+	public int indexOf(String fld) {
+		for (int i = 0; i < fields.length; i++)
+			if (fields[i].equals(fld))
+				return i;
+		return -1;
+	}
+
+	long hash() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return tableName + Arrays.toString(fields);
+	}
+}
@@ -42,4 +42,8 @@ public class PrimaryKey extends Key {
 	PrimaryKey(String tableName, String[] fields, Constant[] values) {
 		super(tableName, fields, values);
 	}
+	
+	PrimaryKey(KeyLayout layout, Constant[] values) {
+		super(layout, values);
+	}
 }
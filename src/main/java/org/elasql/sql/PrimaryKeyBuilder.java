@@ -37,10 +37,9 @@ public class PrimaryKeyBuilder implements Serializable {
 	}
 	
 	public PrimaryKey build() {
-		return new PrimaryKey(tableName,
-			fields.toArray(new String[fields.size()]),
-			values.toArray(new Constant[fields.size()])
-		);
+		// The field names are shared with the other keys of the same layout
+		KeyLayout layout = KeyLayout.of(tableName, fields.toArray(new String[fields.size()]));
+		return new PrimaryKey(layout, values.toArray(new Constant[fields.size()]));
 	}
 	
 	private void writeObject(ObjectOutputStream out) throws IOException {
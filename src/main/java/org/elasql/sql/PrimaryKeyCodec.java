@@ -0,0 +1,75 @@
+package org.elasql.sql;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.Type;
+
+/**
+ * Encodes primary keys in a compact binary form that does not depend on Java
+ * serialization, for the files and the buffers that keep keys (e.g., the
+ * fusion table snapshots and the T-Graph traces).<br>
+ * <br>
+ * A key is laid out as [table name, # of fields, (field name, SQL type, type
+ * argument, # of value bytes, value bytes) ...].
+ */
+public class PrimaryKeyCodec {
+
+	private PrimaryKeyCodec() {
+		// Only static methods
+	}
+
+	public static void write(PrimaryKey key, DataOutput out) throws IOException {
+		out.writeUTF(key.getTableName());
+		out.writeInt(key.getNumOfFlds());
+		for (int i = 0; i < key.getNumOfFlds(); i++) {
+			Constant val = key.getVal(i);
+			byte[] bytes = val.asBytes();
+			out.writeUTF(key.getField(i));
+			out.writeInt(val.getType().getSqlType());
+			out.writeInt(val.getType().getArgument());
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	public static PrimaryKey read(DataInput in) throws IOException {
+		PrimaryKeyBuilder builder = new PrimaryKeyBuilder(in.readUTF());
+		int numOfFlds = in.readInt();
+		for (int i = 0; i < numOfFlds; i++) {
+			String fld = in.readUTF();
+			int sqlType = in.readInt();
+			int argument = in.readInt();
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			builder.addFldVal(fld, Constant.newInstance(Type.newInstance(sqlType, argument), bytes));
+		}
+		return builder.build();
+	}
+
+	public static byte[] encode(PrimaryKey key) {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bos);
+			write(key, out);
+			out.flush();
+			return bos.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException("fails to encode " + key, e);
+		}
+	}
+
+	public static PrimaryKey decode(byte[] keyBytes) {
+		try {
+			return read(new DataInputStream(new ByteArrayInputStream(keyBytes)));
+		} catch (IOException e) {
+			throw new RuntimeException("fails to decode a primary key", e);
+		}
+	}
+}
@@ -15,27 +15,166 @@
  *******************************************************************************/
 package org.elasql.storage.log;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import org.elasql.storage.tx.recovery.StorageSnapshot;
 import org.elasql.util.ElasqlProperties;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.Type;
+import org.vanilladb.core.storage.log.BasicLogRecord;
 import org.vanilladb.core.storage.log.LogMgr;
+import org.vanilladb.core.storage.log.LogSeqNum;
 
 /**
  * The low-level log manager. This log manager is responsible for writing log
  * records into a log file. A log record can be any sequence of integer and
  * string values. The log manager does not understand the meaning of these
  * values, which are written and read by the
- * {@link org.vanilladb.core.storage.tx.recovery.RecoveryMgr recovery manager}.
+ * {@link org.vanilladb.core.storage.tx.recovery.RecoveryMgr recovery manager}.<br>
+ * <br>
+ * If {@link #SEGMENTED} is set, the records are written to a
+ * {@link SegmentedLogFile} instead of the page-based log file of VanillaCore,
+ * which is then never created. The records are read forward by
+ * {@link #scanRecords()}, and {@link #removeAndCreateNewLog()} only deletes
+ * the full segments behind the new one.
  */
-public class DdLogMgr extends LogMgr {
+public class DdLogMgr {
 
 	public static final String DD_LOG_FILE;
+	
+	/**
+	 * Whether the log is stored in memory-mapped segment files.
+	 */
+	public static final boolean SEGMENTED;
+	public static final int SEGMENT_SIZE;
+	/**
+	 * The directory holding the segment directory of each database. If it is
+	 * empty, the segments are kept in the database directory.
+	 */
+	public static final String SEGMENT_DIR;
 
 	static {
 		DD_LOG_FILE = ElasqlProperties.getLoader().getPropertyAsString(
 				DdLogMgr.class.getName() + ".LOG_FILE", "vanilladddb.log");
+		SEGMENTED = ElasqlProperties.getLoader().getPropertyAsBoolean(
+				DdLogMgr.class.getName() + ".SEGMENTED", false);
+		SEGMENT_SIZE = ElasqlProperties.getLoader().getPropertyAsInteger(
+				DdLogMgr.class.getName() + ".SEGMENT_SIZE", 64 * 1024 * 1024);
+		SEGMENT_DIR = ElasqlProperties.getLoader().getPropertyAsString(
+				DdLogMgr.class.getName() + ".SEGMENT_DIR", "");
 	}
+	
+	// Only one of them is used
+	private LogMgr pageLog;
+	private SegmentedLogFile segments;
 
-	public DdLogMgr() {
-		super(DD_LOG_FILE);
+	/**
+	 * @param dbName the name of the database, whose directory keeps the log
+	 */
+	public DdLogMgr(String dbName) {
+		if (SEGMENTED) {
+			// Each database has its own segments, so that the servers
+			// sharing a machine do not share a log
+			File dir = SEGMENT_DIR.isEmpty() ? StorageSnapshot.dbDirectory(dbName)
+					: new File(SEGMENT_DIR, dbName);
+			segments = new SegmentedLogFile(dir, DD_LOG_FILE, SEGMENT_SIZE);
+		} else
+			pageLog = new LogMgr(DD_LOG_FILE);
+	}
+	
+	public boolean isSegmented() {
+		return segments != null;
+	}
+	
+	public LogSeqNum append(Constant[] rec) {
+		if (segments == null)
+			return pageLog.append(rec);
+		
+		long pos = segments.append(encode(rec));
+		return new LogSeqNum(pos / SEGMENT_SIZE, pos % SEGMENT_SIZE);
+	}
+	
+	public void flush(LogSeqNum lsn) {
+		if (segments == null)
+			pageLog.flush(lsn);
+		else
+			segments.force();
+	}
+	
+	public void flush() {
+		if (segments == null)
+			pageLog.flush();
+		else
+			segments.force();
 	}
 	
+	public void removeAndCreateNewLog() {
+		if (segments == null)
+			pageLog.removeAndCreateNewLog();
+		else
+			segments.truncate();
+	}
+	
+	public Iterator<BasicLogRecord> iterator() {
+		if (segments != null)
+			throw new UnsupportedOperationException("use scanRecords() for a segmented log");
+		return pageLog.iterator();
+	}
+	
+	/**
+	 * Returns the records of a segmented log from the oldest to the newest.
+	 * 
+	 * @return an iterator over the values of the records
+	 */
+	public Iterator<Constant[]> scanRecords() {
+		if (segments == null)
+			throw new UnsupportedOperationException("the log is not segmented");
+		
+		final Iterator<byte[]> iter = segments.scan();
+		return new Iterator<Constant[]>() {
+			@Override
+			public boolean hasNext() {
+				return iter.hasNext();
+			}
+
+			@Override
+			public Constant[] next() {
+				return decode(iter.next());
+			}
+		};
+	}
+	
+	// Each value is stored as [sql type, length, bytes]
+	private static byte[] encode(Constant[] rec) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(rec.length);
+			for (Constant val : rec) {
+				byte[] valBytes = val.asBytes();
+				out.writeInt(val.getType().getSqlType());
+				out.writeInt(valBytes.length);
+				out.write(valBytes);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return bytes.toByteArray();
+	}
+	
+	private static Constant[] decode(byte[] payload) {
+		ByteBuffer buf = ByteBuffer.wrap(payload);
+		Constant[] rec = new Constant[buf.getInt()];
+		for (int i = 0; i < rec.length; i++) {
+			int sqlType = buf.getInt();
+			byte[] valBytes = new byte[buf.getInt()];
+			buf.get(valBytes);
+			rec[i] = Constant.newInstance(Type.newInstance(sqlType, valBytes.length), valBytes);
+		}
+		return rec;
+	}
 }
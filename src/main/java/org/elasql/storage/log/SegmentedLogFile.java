@@ -0,0 +1,247 @@
+package org.elasql.storage.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log stored in fixed-size segment files, each of which is
+ * written through a memory-mapped buffer. A record is appended by copying it
+ * into the buffer of the last segment, and becomes durable when the buffer is
+ * forced. A new segment is started when the last one is full, and the old
+ * segments can be deleted as a whole (e.g., behind a checkpoint).<br>
+ * <br>
+ * A record is stored as [length, CRC32 of the payload, payload]. A new segment
+ * is filled with zeros, so a length of 0 marks the end of a segment. A record
+ * with a wrong checksum (i.e., one that was being written during a crash)
+ * also ends the log, and is overwritten by the next append. A segment is
+ * forced before the next one is started, so such a record can only be in the
+ * last segment; anywhere else it means the log is corrupted.
+ */
+public class SegmentedLogFile {
+
+	private static final int HEADER_SIZE = 8;
+
+	private final File dir;
+	private final String name;
+	private final int segmentSize;
+
+	private long segmentNo;
+	private MappedByteBuffer buffer;
+
+	/**
+	 * Opens the segments of the given log, or creates the first one if there
+	 * is none. The appends continue after the last valid record.
+	 *
+	 * @param dir
+	 *            the directory of the segments
+	 * @param name
+	 *            the name of the log, which prefixes the segment files
+	 * @param segmentSize
+	 *            the size of a segment in bytes
+	 */
+	public SegmentedLogFile(File dir, String name, int segmentSize) {
+		if (segmentSize <= HEADER_SIZE)
+			throw new IllegalArgumentException("the segment size is too small: " + segmentSize);
+		if (!dir.exists() && !dir.mkdirs())
+			throw new RuntimeException("cannot create " + dir);
+
+		this.dir = dir;
+		this.name = name;
+		this.segmentSize = segmentSize;
+
+		long[] segmentNos = listSegments();
+		segmentNo = (segmentNos.length == 0) ? 0 : segmentNos[segmentNos.length - 1];
+		buffer = map(segmentNo);
+		buffer.position(endOf(buffer));
+	}
+
+	/**
+	 * Appends a record to the log. The record is not durable until
+	 * {@link #force()} is called.
+	 *
+	 * @param payload
+	 *            the content of the record
+	 * @return the position of the record, which is the segment number times
+	 *         the segment size plus the offset in the segment
+	 */
+	public synchronized long append(byte[] payload) {
+		int recordSize = HEADER_SIZE + payload.length;
+		if (recordSize > segmentSize)
+			throw new IllegalArgumentException("a record of " + payload.length + " bytes does not fit in a segment");
+		if (buffer.remaining() < recordSize)
+			startNewSegment();
+
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		int offset = buffer.position();
+		buffer.putInt(payload.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(payload);
+		// Keep the next record recognizable as the end
+		if (buffer.remaining() >= 4)
+			buffer.putInt(buffer.position(), 0);
+
+		return segmentNo * segmentSize + offset;
+	}
+
+	/**
+	 * Forces the appended records to the storage device.
+	 */
+	public synchronized void force() {
+		buffer.force();
+	}
+
+	/**
+	 * Starts a new segment and deletes all the older ones. The new segment is
+	 * forced before the older ones are deleted.
+	 */
+	public synchronized void truncate() {
+		startNewSegment();
+		buffer.force();
+
+		for (long no : listSegments())
+			if (no < segmentNo && !segmentFile(no).delete())
+				throw new RuntimeException("cannot delete " + segmentFile(no));
+	}
+
+	/**
+	 * Returns the payloads of all the records from the oldest segment to the
+	 * newest one. The segments are mapped one at a time, so this should not
+	 * run together with appends. A broken record in a segment other than the
+	 * last one fails the scan with a {@link RuntimeException}, since the
+	 * records after it would be lost.
+	 *
+	 * @return an iterator over the payloads
+	 */
+	public Iterator<byte[]> scan() {
+		final long[] segmentNos = listSegments();
+
+		return new Iterator<byte[]>() {
+			private int nextSegment = 0;
+			private MappedByteBuffer current;
+			private byte[] next = advance();
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public byte[] next() {
+				if (next == null)
+					throw new NoSuchElementException();
+				byte[] payload = next;
+				next = advance();
+				return payload;
+			}
+
+			private byte[] advance() {
+				while (true) {
+					if (current != null) {
+						byte[] payload = readRecord(current);
+						if (payload != null)
+							return payload;
+						if (nextSegment < segmentNos.length && !isEnd(current))
+							throw new RuntimeException("the log segment "
+									+ segmentFile(segmentNos[nextSegment - 1])
+									+ " is corrupted at offset " + current.position());
+					}
+					if (nextSegment >= segmentNos.length)
+						return null;
+					current = map(segmentNos[nextSegment++]);
+				}
+			}
+		};
+	}
+
+	private void startNewSegment() {
+		// The records of the old segment must not be lost after the new
+		// segment has some on the disk
+		buffer.force();
+		segmentNo++;
+		buffer = map(segmentNo);
+	}
+
+	private MappedByteBuffer map(long no) {
+		try (RandomAccessFile file = new RandomAccessFile(segmentFile(no), "rw")) {
+			// The mapping stays valid after the channel is closed
+			return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		} catch (IOException e) {
+			throw new RuntimeException("cannot map " + segmentFile(no), e);
+		}
+	}
+
+	// Reads the record at the position of the buffer, or returns null at the end
+	private byte[] readRecord(MappedByteBuffer buf) {
+		if (buf.remaining() < HEADER_SIZE)
+			return null;
+
+		int start = buf.position();
+		int length = buf.getInt();
+		int checksum = buf.getInt();
+		if (length <= 0 || length > buf.remaining()) {
+			buf.position(start);
+			return null;
+		}
+
+		byte[] payload = new byte[length];
+		buf.get(payload);
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		if ((int) crc.getValue() != checksum) {
+			buf.position(start);
+			return null;
+		}
+		return payload;
+	}
+
+	// Tells if the position of the buffer is where the appends stopped
+	private boolean isEnd(MappedByteBuffer buf) {
+		return buf.remaining() < HEADER_SIZE || buf.getInt(buf.position()) == 0;
+	}
+
+	private int endOf(MappedByteBuffer buf) {
+		buf.position(0);
+		while (readRecord(buf) != null)
+			;
+		return buf.position();
+	}
+
+	private File segmentFile(long no) {
+		return new File(dir, String.format("%s.%010d", name, no));
+	}
+
+	private long[] listSegments() {
+		List<Long> nos = new ArrayList<Long>();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			String prefix = name + ".";
+			for (File file : files) {
+				String fileName = file.getName();
+				if (!fileName.startsWith(prefix))
+					continue;
+				try {
+					nos.add(Long.parseLong(fileName.substring(prefix.length())));
+				} catch (NumberFormatException e) {
+					// not a segment
+				}
+			}
+		}
+
+		long[] result = new long[nos.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = nos.get(i);
+		Arrays.sort(result);
+		return result;
+	}
+}
@@ -0,0 +1,245 @@
+package org.elasql.storage.metadata;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.elasql.sql.PartitioningKey;
+import org.elasql.sql.PrimaryKey;
+import org.elasql.util.ElasqlProperties;
+
+/**
+ * Partitions records by consistent hashing. Each partition places a number of
+ * virtual nodes on a 64-bit hash ring, and a key belongs to the partition of
+ * the first virtual node at or after the hash of the key (wrapping around the
+ * end of the ring).<br>
+ * <br>
+ * The positions of the virtual nodes only depend on the partition ids, so
+ * adding a partition only moves the keys that fall in front of the virtual
+ * nodes of the new partition, which is about 1/(N+1) of the keys. The moved
+ * hash ranges can be found by {@link #arcsMovedTo(ConsistentHashPartitionPlan)}.
+ */
+public class ConsistentHashPartitionPlan extends PartitionPlan {
+
+	public static final int VIRTUAL_NODES;
+
+	static {
+		VIRTUAL_NODES = ElasqlProperties.getLoader()
+				.getPropertyAsInteger(ConsistentHashPartitionPlan.class.getName() + ".VIRTUAL_NODES", 128);
+	}
+
+	/**
+	 * A range of hash values [start, end] on the ring that moves from a
+	 * partition to another.
+	 */
+	public static class Arc implements Serializable {
+
+		private static final long serialVersionUID = 20210305001L;
+
+		private final long start, end;
+		private final int sourcePartId, destPartId;
+
+		Arc(long start, long end, int sourcePartId, int destPartId) {
+			this.start = start;
+			this.end = end;
+			this.sourcePartId = sourcePartId;
+			this.destPartId = destPartId;
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		public long getEnd() {
+			return end;
+		}
+
+		public int getSourcePartId() {
+			return sourcePartId;
+		}
+
+		public int getDestPartId() {
+			return destPartId;
+		}
+
+		public boolean contains(PrimaryKey key) {
+			long hash = ringHash(key);
+			return start <= hash && hash <= end;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("[%016x, %016x]: part.%d -> part.%d", start, end,
+					sourcePartId, destPartId);
+		}
+	}
+
+	/**
+	 * Returns the position of the given key on the ring.
+	 */
+	public static long ringHash(PrimaryKey key) {
+		return mix64(key.hash64());
+	}
+
+	// The finalizer of SplitMix64
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	private final int numOfParts;
+	private final int virtualNodes;
+	// Sorted positions of the virtual nodes and their partitions
+	private final long[] tokens;
+	private final int[] owners;
+
+	public ConsistentHashPartitionPlan() {
+		this(PartitionMetaMgr.NUM_PARTITIONS, VIRTUAL_NODES);
+	}
+
+	public ConsistentHashPartitionPlan(int numberOfPartitions, int virtualNodes) {
+		if (numberOfPartitions < 1 || virtualNodes < 1)
+			throw new IllegalArgumentException();
+
+		this.numOfParts = numberOfPartitions;
+		this.virtualNodes = virtualNodes;
+
+		int count = numberOfPartitions * virtualNodes;
+		final long[] positions = new long[count];
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			int partId = i / virtualNodes;
+			int v = i % virtualNodes;
+			positions[i] = mix64(((long) partId << 32) | v);
+			order[i] = i;
+		}
+
+		// Sort the virtual nodes by their positions
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(positions[a], positions[b]);
+			}
+		});
+
+		this.tokens = new long[count];
+		this.owners = new int[count];
+		for (int i = 0; i < count; i++) {
+			tokens[i] = positions[order[i]];
+			owners[i] = order[i] / virtualNodes;
+		}
+	}
+
+	@Override
+	public boolean isFullyReplicated(PrimaryKey key) {
+		return false;
+	}
+
+	@Override
+	public int getPartition(PrimaryKey key) {
+		return ownerOf(ringHash(key));
+	}
+
+	@Override
+	public int numberOfPartitions() {
+		return numOfParts;
+	}
+
+	@Override
+	public PartitionPlan getBasePlan() {
+		return this;
+	}
+
+	@Override
+	public void setBasePlan(PartitionPlan plan) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public PartitioningKey getPartitioningKey(PrimaryKey key) {
+		return PartitioningKey.fromPrimaryKey(key);
+	}
+
+	public int getVirtualNodes() {
+		return virtualNodes;
+	}
+
+	/**
+	 * Returns a plan with one more partition and the same number of virtual
+	 * nodes per partition.
+	 */
+	public ConsistentHashPartitionPlan scaleOut() {
+		return new ConsistentHashPartitionPlan(numOfParts + 1, virtualNodes);
+	}
+
+	/**
+	 * Finds the hash ranges that belong to different partitions in this plan
+	 * and the given plan. Adjacent ranges with the same source and destination
+	 * are merged.
+	 *
+	 * @param newPlan the plan to move to
+	 * @return the moved ranges in the order of their positions
+	 */
+	public List<Arc> arcsMovedTo(ConsistentHashPartitionPlan newPlan) {
+		// All the points where the owner may change
+		long[] points = new long[tokens.length + newPlan.tokens.length];
+		System.arraycopy(tokens, 0, points, 0, tokens.length);
+		System.arraycopy(newPlan.tokens, 0, points, tokens.length, newPlan.tokens.length);
+		Arrays.sort(points);
+
+		List<Arc> arcs = new ArrayList<Arc>();
+		// The segments before the first point and after the last point
+		// wrap around the ring, so they belong to the owners of the first one
+		long first = points[0], last = points[points.length - 1];
+		addArc(arcs, Long.MIN_VALUE, first, ownerOf(first), newPlan.ownerOf(first));
+
+		// No virtual node lies inside (prev, cur], so the whole segment
+		// belongs to the owners of cur in both plans
+		for (int i = 1; i < points.length; i++) {
+			if (points[i] == points[i - 1])
+				continue;
+			long cur = points[i];
+			addArc(arcs, points[i - 1] + 1, cur, ownerOf(cur), newPlan.ownerOf(cur));
+		}
+
+		if (last != Long.MAX_VALUE)
+			addArc(arcs, last + 1, Long.MAX_VALUE, ownerOf(first), newPlan.ownerOf(first));
+		return arcs;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Consistent Hash Partition Plan (%d partitions, %d virtual nodes each)",
+				numOfParts, virtualNodes);
+	}
+
+	private int ownerOf(long hash) {
+		int low = 0, high = tokens.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (tokens[mid] < hash)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		// Wrap around the end of the ring
+		return owners[low == tokens.length ? 0 : low];
+	}
+
+	private static void addArc(List<Arc> arcs, long start, long end, int source, int dest) {
+		if (source == dest)
+			return;
+
+		if (!arcs.isEmpty()) {
+			Arc lastArc = arcs.get(arcs.size() - 1);
+			if (lastArc.sourcePartId == source && lastArc.destPartId == dest && lastArc.end + 1 == start) {
+				arcs.set(arcs.size() - 1, new Arc(lastArc.start, end, source, dest));
+				return;
+			}
+		}
+		arcs.add(new Arc(start, end, source, dest));
+	}
+}
@@ -22,7 +22,8 @@ public class HashPartitionPlan extends PartitionPlan {
 
 	@Override
 	public int getPartition(PrimaryKey key) {
-		return key.hashCode() % numOfParts;
+		// The hash code may be negative
+		return (int) Math.floorMod(key.hash64(), (long) numOfParts);
 	}
 	
 	@Override
@@ -1,6 +1,7 @@
 package org.elasql.storage.metadata;
 
 import org.elasql.cache.CachedRecord;
+import org.elasql.sql.KeyLayout;
 import org.elasql.sql.PartitioningKey;
 import org.elasql.sql.PrimaryKey;
 import org.elasql.sql.PrimaryKeyBuilder;
@@ -12,6 +13,9 @@ public class NotificationPartitionPlan extends PartitionPlan {
 	public static final String KEY_SENDER_NAME = "sender_node_id";
 	public static final String KEY_RECV_NAME = "recv_node_id";
 	
+	// Compared instead of the table name
+	private static final int TABLE_ID = KeyLayout.of(TABLE_NAME, KEY_SENDER_NAME, KEY_RECV_NAME).getTableId();
+	
 	public static PrimaryKey createRecordKey(int sender, int reciever) {
 		PrimaryKeyBuilder builder = new PrimaryKeyBuilder(TABLE_NAME);
 		builder.addFldVal(KEY_SENDER_NAME, new IntegerConstant(sender));
@@ -36,15 +40,23 @@ public class NotificationPartitionPlan extends PartitionPlan {
 	
 	@Override
 	public boolean isFullyReplicated(PrimaryKey key) {
-		if (key.getTableName().equals(TABLE_NAME))
+		if (key.getLayout().getTableId() == TABLE_ID)
 			return false;
 		
 		return basePlan.isFullyReplicated(key);
 	}
+	
+	@Override
+	public TablePlacement getTablePlacement(String tableName) {
+		if (tableName.equals(TABLE_NAME))
+			return TablePlacement.PARTITIONED;
+		
+		return basePlan.getTablePlacement(tableName);
+	}
 
 	@Override
 	public int getPartition(PrimaryKey key) {
-		if (key.getTableName().equals(TABLE_NAME))
+		if (key.getLayout().getTableId() == TABLE_ID)
 			return -1; // Not belongs to anyone, preventing for inserting to local
 		
 		return basePlan.getPartition(key);
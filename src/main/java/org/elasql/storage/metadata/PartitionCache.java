@@ -0,0 +1,107 @@
+package org.elasql.storage.metadata;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.elasql.sql.PrimaryKey;
+
+/**
+ * A lock-free cache of the lookup results of a partition plan. The results
+ * are kept in a primitive array next to an open-addressing array of keys. A
+ * slot is claimed by setting its key first and filled by setting its result
+ * later, so a reader that sees a claimed but unfilled slot just treats it as
+ * a miss.<br>
+ * <br>
+ * The cache never removes a key. When it is half full, all the entries are
+ * dropped at once.
+ */
+class PartitionCache {
+
+	// A result is encoded as ((partId + 2) << 1) | isReplicated,
+	// so 0 is never a valid result.
+	static final int MISSING = 0;
+	// The partition of a fully replicated key is not cached
+	static final int UNKNOWN_PART = -2;
+
+	static int encode(boolean isReplicated, int partId) {
+		return ((partId + 2) << 1) | (isReplicated ? 1 : 0);
+	}
+
+	static boolean isReplicated(int code) {
+		return (code & 1) != 0;
+	}
+
+	static int partId(int code) {
+		return (code >> 1) - 2;
+	}
+
+	private static class Table {
+		final AtomicReferenceArray<PrimaryKey> keys;
+		final AtomicIntegerArray results;
+		final AtomicInteger size = new AtomicInteger();
+		final int mask;
+
+		Table(int capacity) {
+			keys = new AtomicReferenceArray<PrimaryKey>(capacity);
+			results = new AtomicIntegerArray(capacity);
+			mask = capacity - 1;
+		}
+	}
+
+	private final int capacity;
+	private volatile Table table;
+
+	PartitionCache(int minCapacity) {
+		int cap = 16;
+		while (cap < minCapacity)
+			cap <<= 1;
+		this.capacity = cap;
+		this.table = new Table(cap);
+	}
+
+	int get(PrimaryKey key) {
+		Table t = table;
+		int slot = spread(key.hashCode()) & t.mask;
+		while (true) {
+			PrimaryKey k = t.keys.get(slot);
+			if (k == null)
+				return MISSING;
+			if (k == key || k.equals(key))
+				return t.results.get(slot);
+			slot = (slot + 1) & t.mask;
+		}
+	}
+
+	void put(PrimaryKey key, int code) {
+		Table t = table;
+		if (t.size.get() >= capacity / 2) {
+			// Start over rather than probing through a crowded table
+			table = new Table(capacity);
+			return;
+		}
+
+		int slot = spread(key.hashCode()) & t.mask;
+		while (true) {
+			PrimaryKey k = t.keys.get(slot);
+			if (k == null) {
+				if (t.keys.compareAndSet(slot, null, key)) {
+					t.size.incrementAndGet();
+					t.results.set(slot, code);
+					return;
+				}
+				// Someone else claimed the slot, check it again
+				continue;
+			}
+			if (k == key || k.equals(key)) {
+				t.results.set(slot, code);
+				return;
+			}
+			slot = (slot + 1) & t.mask;
+		}
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+}
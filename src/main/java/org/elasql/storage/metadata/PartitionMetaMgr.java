@@ -15,18 +15,45 @@
  *******************************************************************************/
 package org.elasql.storage.metadata;
 
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.elasql.server.Elasql;
+import org.elasql.sql.KeyLayout;
 import org.elasql.sql.PartitioningKey;
 import org.elasql.sql.PrimaryKey;
+import org.elasql.storage.metadata.PartitionPlan.TablePlacement;
+import org.elasql.util.ElasqlProperties;
 import org.vanilladb.comm.server.VanillaCommServer;
 
+/**
+ * Answers where the records are according to the current partition plan.<br>
+ * <br>
+ * The placement of each table given by
+ * {@link PartitionPlan#getTablePlacement(String)} is kept by the id of the
+ * table, so that the plan is not asked if a key is replicated when the whole
+ * table is replicated or partitioned. Optionally, the answers of the plan are
+ * also cached by the keys (see {@link #LOOKUP_CACHE_SIZE}), so that the plan,
+ * which may be wrapped by several other plans, is asked only once for each
+ * key. A plan must then give the same answer for a key until it is replaced
+ * by {@link #setNewPartitionPlan(PartitionPlan)}, or
+ * {@link #invalidateLookupCache()} must be called. The plan and its caches
+ * are replaced together, so no lookup can see a result of the old plan after
+ * the replacement.
+ */
 public class PartitionMetaMgr {
 	private static Logger logger = Logger.getLogger(PartitionMetaMgr.class.getName());
 
 	public static final int NUM_PARTITIONS;
+	
+	/**
+	 * The number of keys whose partitions are cached. 0 disables the cache,
+	 * which is the default. The cache keeps the keys alive and is allocated
+	 * again for every new plan, so it only pays off for stacks of plans that
+	 * are slow to evaluate.
+	 */
+	public static final int LOOKUP_CACHE_SIZE;
 
 	static {
 		if (Elasql.ENABLE_STAND_ALONE_SEQUENCER) {
@@ -34,15 +61,51 @@ public class PartitionMetaMgr {
 		} else {
 			NUM_PARTITIONS = VanillaCommServer.getServerCount();
 		}
+		LOOKUP_CACHE_SIZE = ElasqlProperties.getLoader().getPropertyAsInteger(
+				PartitionMetaMgr.class.getName() + ".LOOKUP_CACHE_SIZE", 0);
+	}
+	
+	private static class PlanState {
+		final PartitionPlan plan;
+		final PartitionCache cache;
+		// Indexed by the table ids, filled when a table is first looked up
+		private volatile TablePlacement[] placements = new TablePlacement[0];
+		
+		PlanState(PartitionPlan plan, int cacheSize) {
+			this.plan = plan;
+			// The cache is half full at most
+			this.cache = (cacheSize > 0) ? new PartitionCache(cacheSize * 2) : null;
+		}
+		
+		TablePlacement placementOf(KeyLayout layout) {
+			int tableId = layout.getTableId();
+			TablePlacement[] ps = placements;
+			if (tableId < ps.length && ps[tableId] != null)
+				return ps[tableId];
+			
+			TablePlacement placement = plan.getTablePlacement(layout.getTableName());
+			synchronized (this) {
+				ps = Arrays.copyOf(placements, Math.max(placements.length, tableId + 1));
+				ps[tableId] = placement;
+				placements = ps;
+			}
+			return placement;
+		}
 	}
 
-	private PartitionPlan partPlan;
+	private final int lookupCacheSize;
+	private volatile PlanState state;
 	
 	public PartitionMetaMgr(PartitionPlan plan) {
-		partPlan = plan;
+		this(plan, LOOKUP_CACHE_SIZE);
+	}
+	
+	PartitionMetaMgr(PartitionPlan plan, int lookupCacheSize) {
+		this.lookupCacheSize = lookupCacheSize;
+		state = new PlanState(plan, lookupCacheSize);
 		
 		if (logger.isLoggable(Level.INFO))
-			logger.info(String.format("Using '%s'", partPlan));
+			logger.info(String.format("Using '%s'", plan));
 	}
 
 	/**
@@ -53,28 +116,83 @@ public class PartitionMetaMgr {
 	 * @return if the record is fully replicated
 	 */
 	public boolean isFullyReplicated(PrimaryKey key) {
-		return partPlan.isFullyReplicated(key);
+		PlanState s = state;
+		switch (s.placementOf(key.getLayout())) {
+		case REPLICATED:
+			return true;
+		case PARTITIONED:
+			return false;
+		default:
+			if (s.cache == null)
+				return s.plan.isFullyReplicated(key);
+			return PartitionCache.isReplicated(lookUp(s, key));
+		}
 	}
 	
 	public int getPartition(PrimaryKey key) {
-		return partPlan.getPartition(key);
+		PlanState s = state;
+		if (s.cache == null || s.placementOf(key.getLayout()) == TablePlacement.REPLICATED)
+			return s.plan.getPartition(key);
+		
+		int partId = PartitionCache.partId(lookUp(s, key));
+		if (partId == PartitionCache.UNKNOWN_PART)
+			return s.plan.getPartition(key);
+		return partId;
 	}
 	
-	public void setNewPartitionPlan(PartitionPlan newPlan) {
-		// XXX: Bug: If there is a plan warping another plan,
-		// this may make the warping plan disappear.
-		partPlan = newPlan;
+	/**
+	 * Replaces the current partition plan. If the current plan is wrapped for
+	 * the notifications between servers, the new plan is wrapped in the same
+	 * way.
+	 * 
+	 * @param newPlan the new plan
+	 */
+	public synchronized void setNewPartitionPlan(PartitionPlan newPlan) {
+		if (state.plan instanceof NotificationPartitionPlan
+				&& !(newPlan instanceof NotificationPartitionPlan))
+			newPlan = new NotificationPartitionPlan(newPlan);
+		state = new PlanState(newPlan, lookupCacheSize);
+	}
+	
+	/**
+	 * Drops the cached lookups. This must be called if the current plan
+	 * changes its answers without being replaced.
+	 */
+	public synchronized void invalidateLookupCache() {
+		state = new PlanState(state.plan, lookupCacheSize);
 	}
 	
+	/**
+	 * Returns the current partition plan, without the wrapper for the
+	 * notifications between servers.
+	 * 
+	 * @return the current partition plan
+	 */
 	public PartitionPlan getPartitionPlan() {
-		return partPlan;
+		PartitionPlan plan = state.plan;
+		if (plan instanceof NotificationPartitionPlan)
+			return plan.getBasePlan();
+		return plan;
 	}
 	
 	public int getCurrentNumOfParts() {
-		return partPlan.numberOfPartitions();
+		return state.plan.numberOfPartitions();
 	}
 	
 	public PartitioningKey getPartitioningKey(PrimaryKey key) {
-		return partPlan.getPartitioningKey(key);
+		return state.plan.getPartitioningKey(key);
+	}
+	
+	private static int lookUp(PlanState s, PrimaryKey key) {
+		int code = s.cache.get(key);
+		if (code == PartitionCache.MISSING) {
+			TablePlacement placement = s.placementOf(key.getLayout());
+			boolean isReplicated = (placement == TablePlacement.PER_KEY) ?
+					s.plan.isFullyReplicated(key) : placement == TablePlacement.REPLICATED;
+			int partId = isReplicated ? PartitionCache.UNKNOWN_PART : s.plan.getPartition(key);
+			code = PartitionCache.encode(isReplicated, partId);
+			s.cache.put(key, code);
+		}
+		return code;
 	}
 }
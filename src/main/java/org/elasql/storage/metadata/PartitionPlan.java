@@ -5,6 +5,24 @@ import org.elasql.sql.PrimaryKey;
 
 public abstract class PartitionPlan {
 	
+	/**
+	 * How the records of a table are placed.
+	 */
+	public enum TablePlacement {
+		/**
+		 * All the records of the table are fully replicated.
+		 */
+		REPLICATED,
+		/**
+		 * None of the records of the table is fully replicated.
+		 */
+		PARTITIONED,
+		/**
+		 * It depends on the record.
+		 */
+		PER_KEY
+	}
+	
 	/**
 	 * Check if a record is fully replicated on each node.
 	 * 
@@ -23,6 +41,23 @@ public abstract class PartitionPlan {
 	 */
 	public abstract int getPartition(PrimaryKey key);
 	
+	/**
+	 * Tells if all the records of a table are placed in the same way, so that
+	 * {@link #isFullyReplicated(PrimaryKey)} need not be asked for each key.
+	 * The plans that can not tell return {@link TablePlacement#PER_KEY}.
+	 * Since the placement is used instead of
+	 * {@link #isFullyReplicated(PrimaryKey)}, a plan should only return
+	 * something else if it is final, or its subclasses could override
+	 * {@link #isFullyReplicated(PrimaryKey)} without effect.
+	 * 
+	 * @param tableName
+	 *            the name of the table
+	 * @return how the records of the table are placed
+	 */
+	public TablePlacement getTablePlacement(String tableName) {
+		return TablePlacement.PER_KEY;
+	}
+	
 	public abstract PartitionPlan getBasePlan();
 	
 	public abstract void setBasePlan(PartitionPlan plan);
@@ -0,0 +1,299 @@
+package org.elasql.storage.metadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.elasql.sql.PartitioningKey;
+import org.elasql.sql.PrimaryKey;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.IntegerConstant;
+
+/**
+ * Partitions records by the ranges of the value of a partitioning field. The
+ * ranges are defined by a sorted array of boundaries: range {@code i} covers
+ * [{@code boundaries[i - 1]}, {@code boundaries[i]}), where the first range
+ * has no lower bound and the last one has no upper bound. A lookup is a
+ * binary search over the boundaries.<br>
+ * <br>
+ * Different tables may name the partitioning field differently (e.g.,
+ * {@code w_id} and {@code d_w_id} in TPC-C), so a key is partitioned by the
+ * first of the partitioning fields it contains. The keys without any of them
+ * are handed to the base plan.<br>
+ * <br>
+ * A plan is immutable. {@link #split(Constant, int)}, {@link #merge(int)} and
+ * {@link #reassign(int, int)} return new plans, so that a migration planner
+ * can move a contiguous range by replacing the plan in
+ * {@link PartitionMetaMgr} instead of enumerating the keys in it.
+ */
+public class RangePartitionPlan extends PartitionPlan {
+
+	/**
+	 * A range of values and the partition it belongs to.
+	 */
+	public static class Range {
+		// null means unbounded
+		private final Constant lowerBound, upperBound;
+		private final int partId;
+
+		Range(Constant lowerBound, Constant upperBound, int partId) {
+			this.lowerBound = lowerBound;
+			this.upperBound = upperBound;
+			this.partId = partId;
+		}
+
+		/**
+		 * Returns the inclusive lower bound, or null if there is none.
+		 */
+		public Constant getLowerBound() {
+			return lowerBound;
+		}
+
+		/**
+		 * Returns the exclusive upper bound, or null if there is none.
+		 */
+		public Constant getUpperBound() {
+			return upperBound;
+		}
+
+		public int getPartId() {
+			return partId;
+		}
+
+		public boolean contains(Constant val) {
+			return (lowerBound == null || lowerBound.compareTo(val) <= 0)
+					&& (upperBound == null || val.compareTo(upperBound) < 0);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("[%s, %s) -> %d", lowerBound == null ? "-inf" : lowerBound,
+					upperBound == null ? "+inf" : upperBound, partId);
+		}
+	}
+
+	/**
+	 * Creates a plan that divides the integers in [minVal, maxVal] into the
+	 * given number of ranges of (almost) the same size, where range {@code i}
+	 * belongs to partition {@code i}.
+	 */
+	public static RangePartitionPlan evenlyDivided(String[] partitioningFields, int minVal,
+			int maxVal, int numOfParts, PartitionPlan basePlan) {
+		if (numOfParts < 1 || maxVal < minVal)
+			throw new IllegalArgumentException();
+
+		long span = (long) maxVal - minVal + 1;
+		Constant[] boundaries = new Constant[numOfParts - 1];
+		int[] partIds = new int[numOfParts];
+		for (int i = 0; i < numOfParts; i++) {
+			partIds[i] = i;
+			if (i > 0)
+				boundaries[i - 1] = new IntegerConstant((int) (minVal + span * i / numOfParts));
+		}
+		return new RangePartitionPlan(partitioningFields, boundaries, partIds, basePlan);
+	}
+
+	private final String[] partitioningFields;
+	private final Constant[] boundaries;
+	private final int[] partIds;
+	private final int numOfParts;
+	private PartitionPlan basePlan;
+
+	/**
+	 * Creates a range partition plan.
+	 *
+	 * @param partitioningFields
+	 *            the names of the partitioning field in different tables
+	 * @param boundaries
+	 *            the sorted boundaries between the ranges, without duplicates
+	 * @param partIds
+	 *            the partition of each range, which must have one more
+	 *            element than the boundaries
+	 * @param basePlan
+	 *            the plan for the keys without a partitioning field
+	 */
+	public RangePartitionPlan(String[] partitioningFields, Constant[] boundaries, int[] partIds,
+			PartitionPlan basePlan) {
+		if (partIds.length != boundaries.length + 1)
+			throw new IllegalArgumentException("there must be one more partition id than boundaries");
+		for (int i = 1; i < boundaries.length; i++)
+			if (boundaries[i - 1].compareTo(boundaries[i]) >= 0)
+				throw new IllegalArgumentException("the boundaries are not sorted: " + Arrays.toString(boundaries));
+
+		this.partitioningFields = partitioningFields;
+		this.boundaries = boundaries;
+		this.partIds = partIds;
+		this.basePlan = basePlan;
+
+		int maxPartId = basePlan.numberOfPartitions() - 1;
+		for (int partId : partIds)
+			maxPartId = Math.max(maxPartId, partId);
+		this.numOfParts = maxPartId + 1;
+	}
+
+	@Override
+	public boolean isFullyReplicated(PrimaryKey key) {
+		return basePlan.isFullyReplicated(key);
+	}
+
+	@Override
+	public TablePlacement getTablePlacement(String tableName) {
+		return basePlan.getTablePlacement(tableName);
+	}
+
+	@Override
+	public int getPartition(PrimaryKey key) {
+		Constant val = partitioningValue(key);
+		if (val == null)
+			return basePlan.getPartition(key);
+		return partIds[rangeIndexOf(val)];
+	}
+
+	@Override
+	public int numberOfPartitions() {
+		return numOfParts;
+	}
+
+	@Override
+	public PartitionPlan getBasePlan() {
+		return basePlan;
+	}
+
+	@Override
+	public void setBasePlan(PartitionPlan plan) {
+		basePlan = plan;
+	}
+
+	@Override
+	public PartitioningKey getPartitioningKey(PrimaryKey key) {
+		for (String fld : partitioningFields)
+			if (key.containsField(fld))
+				return PartitioningKey.fromPrimaryKey(key, fld);
+		return basePlan.getPartitioningKey(key);
+	}
+
+	/**
+	 * Returns the index of the range containing the given value.
+	 */
+	public int rangeIndexOf(Constant val) {
+		int low = 0, high = boundaries.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = boundaries[mid].compareTo(val);
+			if (cmp <= 0)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		// The number of boundaries that are <= val
+		return low;
+	}
+
+	public int numberOfRanges() {
+		return partIds.length;
+	}
+
+	public Range getRange(int rangeIndex) {
+		Constant lower = (rangeIndex == 0) ? null : boundaries[rangeIndex - 1];
+		Constant upper = (rangeIndex == boundaries.length) ? null : boundaries[rangeIndex];
+		return new Range(lower, upper, partIds[rangeIndex]);
+	}
+
+	public List<Range> getRanges() {
+		List<Range> ranges = new ArrayList<Range>(partIds.length);
+		for (int i = 0; i < partIds.length; i++)
+			ranges.add(getRange(i));
+		return Collections.unmodifiableList(ranges);
+	}
+
+	/**
+	 * Returns the ranges that belong to the given partition.
+	 */
+	public List<Range> getRangesOf(int partId) {
+		List<Range> ranges = new ArrayList<Range>();
+		for (int i = 0; i < partIds.length; i++)
+			if (partIds[i] == partId)
+				ranges.add(getRange(i));
+		return ranges;
+	}
+
+	/**
+	 * Splits the range containing the given value at the value. The values
+	 * smaller than it stay in the original partition, and the others are
+	 * moved to the given partition.
+	 *
+	 * @param splitPoint
+	 *            the lower bound of the new range
+	 * @param partId
+	 *            the partition of the new range
+	 * @return the new plan
+	 */
+	public RangePartitionPlan split(Constant splitPoint, int partId) {
+		int index = rangeIndexOf(splitPoint);
+		if (index > 0 && boundaries[index - 1].compareTo(splitPoint) == 0)
+			throw new IllegalArgumentException(splitPoint + " is already a boundary");
+
+		Constant[] newBoundaries = new Constant[boundaries.length + 1];
+		System.arraycopy(boundaries, 0, newBoundaries, 0, index);
+		newBoundaries[index] = splitPoint;
+		System.arraycopy(boundaries, index, newBoundaries, index + 1, boundaries.length - index);
+
+		int[] newPartIds = new int[partIds.length + 1];
+		System.arraycopy(partIds, 0, newPartIds, 0, index + 1);
+		newPartIds[index + 1] = partId;
+		System.arraycopy(partIds, index + 1, newPartIds, index + 2, partIds.length - index - 1);
+
+		return new RangePartitionPlan(partitioningFields, newBoundaries, newPartIds, basePlan);
+	}
+
+	/**
+	 * Merges the given range with the next one. The merged range belongs to
+	 * the partition of the given range.
+	 *
+	 * @param rangeIndex
+	 *            the index of the first range to merge
+	 * @return the new plan
+	 */
+	public RangePartitionPlan merge(int rangeIndex) {
+		if (rangeIndex < 0 || rangeIndex >= boundaries.length)
+			throw new IndexOutOfBoundsException("no range after range " + rangeIndex);
+
+		Constant[] newBoundaries = new Constant[boundaries.length - 1];
+		System.arraycopy(boundaries, 0, newBoundaries, 0, rangeIndex);
+		System.arraycopy(boundaries, rangeIndex + 1, newBoundaries, rangeIndex,
+				boundaries.length - rangeIndex - 1);
+
+		int[] newPartIds = new int[partIds.length - 1];
+		System.arraycopy(partIds, 0, newPartIds, 0, rangeIndex + 1);
+		System.arraycopy(partIds, rangeIndex + 2, newPartIds, rangeIndex + 1, partIds.length - rangeIndex - 2);
+
+		return new RangePartitionPlan(partitioningFields, newBoundaries, newPartIds, basePlan);
+	}
+
+	/**
+	 * Moves the given range to another partition.
+	 *
+	 * @return the new plan
+	 */
+	public RangePartitionPlan reassign(int rangeIndex, int partId) {
+		int[] newPartIds = Arrays.copyOf(partIds, partIds.length);
+		newPartIds[rangeIndex] = partId;
+		return new RangePartitionPlan(partitioningFields, boundaries, newPartIds, basePlan);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Range Partition Plan (fields: %s, %d ranges: %s, base plan: %s)",
+				Arrays.toString(partitioningFields), partIds.length, getRanges(), basePlan);
+	}
+
+	private Constant partitioningValue(PrimaryKey key) {
+		for (String fld : partitioningFields) {
+			Constant val = key.getVal(fld);
+			if (val != null)
+				return val;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,95 @@
+package org.elasql.storage.tx.recovery;
+
+import static org.vanilladb.core.sql.Type.BIGINT;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.vanilladb.core.sql.BigIntConstant;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.storage.log.BasicLogRecord;
+import org.vanilladb.core.storage.log.LogSeqNum;
+import org.vanilladb.core.storage.tx.Transaction;
+
+/**
+ * Marks that the storage of this server reflects exactly the transactions up
+ * to a transaction in the total order, so the requests up to it never need to
+ * be replayed.
+ */
+public class DdCheckpointRecord implements DdLogRecord {
+	private long txNum;
+	private LogSeqNum lsn;
+
+	public DdCheckpointRecord(long txNum) {
+		this.txNum = txNum;
+	}
+
+	/**
+	 * Creates a log record by reading one other value from the log.
+	 * 
+	 * @param rec
+	 *            the basic log record
+	 */
+	public DdCheckpointRecord(BasicLogRecord rec) {
+		this.txNum = (Long) rec.nextVal(BIGINT).asJavaVal();
+		lsn = rec.getLSN();
+	}
+
+	/**
+	 * Creates a log record from the values read from a segmented log.
+	 * 
+	 * @param vals
+	 *            the values of the record, starting with the op code
+	 */
+	public DdCheckpointRecord(Constant[] vals) {
+		this.txNum = (Long) vals[1].asJavaVal();
+	}
+
+	@Override
+	public LogSeqNum writeToLog() {
+		List<Constant> rec = buildRecord();
+		return ddLogMgr.append(rec.toArray(new Constant[rec.size()]));
+	}
+
+	@Override
+	public int op() {
+		return OP_CHECKPOINT;
+	}
+
+	/**
+	 * Returns the last transaction reflected by the checkpoint.
+	 */
+	@Override
+	public long txNumber() {
+		return txNum;
+	}
+
+	@Override
+	public void undo(Transaction tx) {
+		// do nothing
+	}
+
+	@Override
+	public void redo(Transaction tx) {
+		// do nothing
+	}
+
+	@Override
+	public String toString() {
+		return "<DD_CHECKPOINT " + txNum + " >";
+	}
+
+	@Override
+	public List<Constant> buildRecord() {
+		List<Constant> rec = new LinkedList<Constant>();
+		rec.add(new IntegerConstant(op()));
+		rec.add(new BigIntConstant(txNum));
+		return rec;
+	}
+
+	@Override
+	public LogSeqNum getLSN() {
+		return lsn;
+	}
+}
@@ -24,6 +24,7 @@ public interface DdLogRecord extends LogRecord {
 	 * @see LogRecord#op()
 	 */
 	static final int OP_SP_REQUEST = -99999;
+	static final int OP_CHECKPOINT = -99998;
 	static DdLogMgr ddLogMgr = Elasql.DdLogMgr();
 
 }
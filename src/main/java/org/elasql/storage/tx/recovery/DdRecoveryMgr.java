@@ -15,91 +15,268 @@
  *******************************************************************************/
 package org.elasql.storage.tx.recovery;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.elasql.remote.groupcomm.StoredProcedureCall;
+import org.elasql.server.Elasql;
 import org.elasql.util.ElasqlProperties;
 import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.server.task.Task;
+import org.vanilladb.core.storage.log.LogSeqNum;
 import org.vanilladb.core.storage.tx.Transaction;
 import org.vanilladb.core.storage.tx.recovery.RecoveryMgr;
 
+/**
+ * Logs the requests of the transactions and makes a transaction wait for its
+ * request to be durable before it commits.<br>
+ * <br>
+ * The requests are logged by a single logger thread with group commit. The
+ * thread drains all the queued requests at once, appends them to the log,
+ * flushes the log once for the whole group, and then advances the durable
+ * watermark to the last transaction of the group. Since the requests are
+ * queued in the total order, all the transactions up to the watermark have
+ * durable requests. If the log can not be written, the thread keeps retrying
+ * the group, since the transactions waiting for it can not commit anyway.<br>
+ * <br>
+ * A transaction only waits for its request if the request was logged, which
+ * the stored procedure tells when it creates this recovery manager, so that
+ * the schedulers and the transactions decide it in the same way.
+ */
 public class DdRecoveryMgr extends RecoveryMgr {
+	private static Logger logger = Logger.getLogger(DdRecoveryMgr.class.getName());
 
 	private static BlockingQueue<StoredProcedureCall> spcLogQueue = new LinkedBlockingQueue<StoredProcedureCall>();
 
 	public static final boolean DISABLE_STORAGE_LOGGING;
-	
-	private static final Object spcLoggerSyncObj = new Object();
+
+	/**
+	 * Whether a transaction waits for its request to be flushed before it
+	 * commits. Without waiting, the requests are still logged in groups, but
+	 * the last few committed transactions may be lost in a crash.
+	 */
+	public static final boolean WAIT_FOR_DURABLE_REQUEST;
+
+	/**
+	 * The maximum number of requests flushed in a group.
+	 */
+	public static final int MAX_GROUP_SIZE;
+
+	/**
+	 * Whether the request log is truncated at a checkpoint.
+	 */
+	public static final boolean TRUNCATE_LOG_ON_CHECKPOINT;
+
+	// The pause before logging a failed group again
+	private static final long RETRY_INTERVAL = 1000;
+
 	private static final Lock spcLoggerLock = new ReentrantLock();
 	private static final Condition spcLoggerCondition = spcLoggerLock.newCondition();
+	// Held while writing the log, so that a checkpoint never
+	// truncates the log in the middle of a group
+	private static final Object logWriteLock = new Object();
 
-	private static long lastLoggedTxn = -1;
+	// The transaction number of the last durable request
+	private static volatile long durableTxNum = -1;
+	// The transaction number of the last request replayed from the log
+	private static volatile long lastReplayedTxNum = -1;
 
 	static {
 		DISABLE_STORAGE_LOGGING = ElasqlProperties.getLoader().getPropertyAsBoolean(
 				DdRecoveryMgr.class.getName() + ".DISABLE_STORAGE_LOGGING", false);
-		
-		if (DISABLE_STORAGE_LOGGING)
+		WAIT_FOR_DURABLE_REQUEST = ElasqlProperties.getLoader().getPropertyAsBoolean(
+				DdRecoveryMgr.class.getName() + ".WAIT_FOR_DURABLE_REQUEST", true);
+		MAX_GROUP_SIZE = ElasqlProperties.getLoader().getPropertyAsInteger(
+				DdRecoveryMgr.class.getName() + ".MAX_GROUP_SIZE", 1024);
+		TRUNCATE_LOG_ON_CHECKPOINT = ElasqlProperties.getLoader().getPropertyAsBoolean(
+				DdRecoveryMgr.class.getName() + ".TRUNCATE_LOG_ON_CHECKPOINT", true);
+
+		// The logical-only mode relies on the request log and the snapshots
+		if (DISABLE_STORAGE_LOGGING || RequestLogReplayer.LOGICAL_LOGGING_ONLY)
 			RecoveryMgr.enableLogging(false);
-		
+
 		VanillaDb.taskMgr().runTask(new Task() {
 			@Override
 			public void run() {
+				List<StoredProcedureCall> group = new ArrayList<StoredProcedureCall>(MAX_GROUP_SIZE);
 				while (true) {
 					try {
-						StoredProcedureCall spc = spcLogQueue.take();
-						new StoredProcRequestRecord(spc.getTxNum(), spc.getClientId(), spc.getConnectionId(), spc.getPid(),
-								spc.getPars()).writeToLog();
-						// synchronized (spcLoggerSyncObj) {
-						try {
-							spcLoggerLock.lock();
-							lastLoggedTxn = spc.getTxNum();
-							// spcLoggerSyncObj.notifyAll();
-							spcLoggerCondition.signalAll();
-						} finally {
-							spcLoggerLock.unlock();
-						}
+						// Block for the first request, then take whatever
+						// has been queued in the meantime
+						group.add(spcLogQueue.take());
+						spcLogQueue.drainTo(group, MAX_GROUP_SIZE - 1);
+
+						logGroup(group);
+						publishDurableTxNum(group.get(group.size() - 1).getTxNum());
 					} catch (InterruptedException e) {
 						e.printStackTrace();
+					} finally {
+						group.clear();
 					}
 				}
 			}
 		});
 	}
 
+	/**
+	 * Appends the requests to the log and flushes them, retrying until it
+	 * succeeds. The requests written before a failure are not written again.
+	 */
+	private static void logGroup(List<StoredProcedureCall> group) throws InterruptedException {
+		int numOfWritten = 0;
+		LogSeqNum lastLsn = null;
+		while (true) {
+			try {
+				synchronized (logWriteLock) {
+					for (; numOfWritten < group.size(); numOfWritten++) {
+						StoredProcedureCall spc = group.get(numOfWritten);
+						lastLsn = new StoredProcRequestRecord(spc.getTxNum(), spc.getClientId(),
+								spc.getConnectionId(), spc.getPid(), spc.getPars()).writeToLog();
+					}
+					Elasql.DdLogMgr().flush(lastLsn);
+				}
+				return;
+			} catch (RuntimeException e) {
+				if (logger.isLoggable(Level.SEVERE))
+					logger.severe("fail to log " + (group.size() - numOfWritten) + " of " + group.size()
+							+ " requests, retrying: " + e.getMessage());
+				Thread.sleep(RETRY_INTERVAL);
+			}
+		}
+	}
+
+	/**
+	 * Appends the requests fetched from another server during the recovery
+	 * to the log and flushes them. Nothing else may be logging at the same
+	 * time.
+	 */
+	static void logFetchedRequests(List<StoredProcedureCall> calls) {
+		if (calls.isEmpty())
+			return;
+		try {
+			logGroup(calls);
+		} catch (InterruptedException e) {
+			throw new RuntimeException("interrupted while logging the fetched requests", e);
+		}
+	}
+
 	public static void logRequest(StoredProcedureCall spc) {
-		// TODO Commented for experiment
+		// A replayed request is in the log already
+		if (isReplayed(spc.getTxNum()))
+			return;
 		spcLogQueue.add(spc);
 	}
 
-	public DdRecoveryMgr(long txNum) {
+	/**
+	 * Checks if the given transaction is replayed from the request log.
+	 *
+	 * @param txNum the transaction number
+	 * @return if the transaction is replayed
+	 */
+	public static boolean isReplayed(long txNum) {
+		return txNum <= lastReplayedTxNum;
+	}
+
+	static void onRequestsReplayed(long lastTxNum) {
+		lastReplayedTxNum = lastTxNum;
+		publishDurableTxNum(lastTxNum);
+	}
+
+	/**
+	 * Returns the transaction number of the last request that has been
+	 * flushed to the log.
+	 */
+	public static long getDurableTxNum() {
+		return durableTxNum;
+	}
+
+	/**
+	 * Blocks until the request of the given transaction has been flushed to
+	 * the log.
+	 *
+	 * @param txNum the transaction number
+	 */
+	public static void waitForDurable(long txNum) {
+		if (durableTxNum >= txNum)
+			return;
+
+		boolean isInterrupted = false;
+		spcLoggerLock.lock();
+		try {
+			while (durableTxNum < txNum) {
+				try {
+					spcLoggerCondition.await();
+				} catch (InterruptedException e) {
+					// Keep waiting, the transaction must not commit
+					// before its request is durable
+					isInterrupted = true;
+				}
+			}
+		} finally {
+			spcLoggerLock.unlock();
+		}
+
+		if (isInterrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Writes a checkpoint record to the request log, after which the requests
+	 * up to the given transaction are no longer needed. If
+	 * {@link #TRUNCATE_LOG_ON_CHECKPOINT} is set, these requests are removed
+	 * from the log. The storage must have been flushed before this is called.
+	 * 
+	 * @param txNum the last transaction reflected by the checkpoint
+	 */
+	public static void logCheckpoint(long txNum) {
+		synchronized (logWriteLock) {
+			// The log only holds the requests of the transactions before
+			// the checkpoint and the ones still being logged, which are
+			// also before the checkpoint, since the transaction making the
+			// checkpoint is scheduled before the later transactions
+			if (TRUNCATE_LOG_ON_CHECKPOINT)
+				Elasql.DdLogMgr().removeAndCreateNewLog();
+			LogSeqNum lsn = new DdCheckpointRecord(txNum).writeToLog();
+			Elasql.DdLogMgr().flush(lsn);
+		}
+	}
+
+	private static void publishDurableTxNum(long txNum) {
+		spcLoggerLock.lock();
+		try {
+			if (txNum > durableTxNum)
+				durableTxNum = txNum;
+			spcLoggerCondition.signalAll();
+		} finally {
+			spcLoggerLock.unlock();
+		}
+	}
+
+	private final boolean isRequestLogged;
+
+	/**
+	 * @param txNum the transaction number
+	 * @param isRequestLogged if the scheduler logs the request of the
+	 *            transaction, which is the case when its stored procedure is
+	 *            not read-only
+	 */
+	public DdRecoveryMgr(long txNum, boolean isRequestLogged) {
 		super(txNum, true);
+		this.isRequestLogged = isRequestLogged;
 	}
 
 	@Override
 	public void onTxCommit(Transaction tx) {
-		// TODO Commented for experiment
-		// if (!tx.isReadOnly()) {
-		// // synchronized (spcLoggerSyncObj) {
-		// try {
-		// spcLoggerLock.lock();
-		// while (tx.getTransactionNumber() > lastLoggedTxn) {
-		// try {
-		// // spcLoggerSyncObj.wait();
-		// spcLoggerCondition.await();
-		// } catch (InterruptedException e) {
-		// e.printStackTrace();
-		// }
-		// }
-		// } finally {
-		// spcLoggerLock.unlock();
-		// }
-		// }
+		// A request that was never logged would never become durable
+		if (WAIT_FOR_DURABLE_REQUEST && isRequestLogged)
+			waitForDurable(tx.getTransactionNumber());
 	}
 	// log sunk tx's remote readings
 }
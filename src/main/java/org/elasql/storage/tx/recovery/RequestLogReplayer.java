@@ -0,0 +1,274 @@
+package org.elasql.storage.tx.recovery;
+
+import static org.vanilladb.core.sql.Type.INTEGER;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.elasql.remote.groupcomm.StoredProcedureCall;
+import org.elasql.schedule.Scheduler;
+import org.elasql.server.Elasql;
+import org.elasql.storage.log.DdLogMgr;
+import org.elasql.util.ElasqlProperties;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.storage.log.BasicLogRecord;
+import org.vanilladb.core.storage.tx.Transaction;
+
+/**
+ * Recovers a server by executing the logged requests again. The transactions
+ * are deterministic, so feeding the requests to the normal scheduler in the
+ * order of their transaction numbers rebuilds the same state. The scheduler
+ * runs them in parallel under conservative locking as usual, so the recovery
+ * speed grows with the number of cores instead of being bound by physical
+ * redo.<br>
+ * <br>
+ * The replayed requests are not logged again and their responses are not
+ * sent, since the clients got them (or gave up) before the crash. The new
+ * requests are numbered after the last recovered transaction (see
+ * {@link org.elasql.remote.groupcomm.server.ConnectionMgr#startScheduling(long)}).<br>
+ * <br>
+ * Replaying is only supported in the logical-only logging mode
+ * ({@link #LOGICAL_LOGGING_ONLY}), where the storage writes no physical log
+ * at all. Each checkpoint also copies the data files as a
+ * {@link StorageSnapshot}, and a server always restores the last snapshot and
+ * replays the requests after it when it starts. With the physical logs, the
+ * storage would already be recovered and the requests would be applied
+ * twice.<br>
+ * <br>
+ * The whole cluster must be restarted and replay together. A replayed
+ * transaction that spans several partitions exchanges records with the other
+ * servers as it did the first time, so all the servers must replay the same
+ * requests and number the new requests in the same way. Before replaying,
+ * the servers agree on the last request with {@link RequestLogSync}.
+ */
+public class RequestLogReplayer {
+	private static Logger logger = Logger.getLogger(RequestLogReplayer.class.getName());
+
+	/**
+	 * Whether a server replays its request log when it starts. This implies
+	 * {@link #LOGICAL_LOGGING_ONLY}.
+	 */
+	public static final boolean REPLAY_ON_STARTUP;
+
+	/**
+	 * Whether the transactions are only logged by their requests and the
+	 * checkpoints, without the physical logs of the storage. A server in this
+	 * mode always replays its request log when it starts.
+	 */
+	public static final boolean LOGICAL_LOGGING_ONLY;
+
+	static {
+		REPLAY_ON_STARTUP = ElasqlProperties.getLoader()
+				.getPropertyAsBoolean(RequestLogReplayer.class.getName() + ".REPLAY_ON_STARTUP", false);
+		// Replaying on top of the physical recovery would apply the
+		// requests twice
+		LOGICAL_LOGGING_ONLY = REPLAY_ON_STARTUP || ElasqlProperties.getLoader()
+				.getPropertyAsBoolean(RequestLogReplayer.class.getName() + ".LOGICAL_LOGGING_ONLY", false);
+	}
+
+	private static File dbDir;
+	// The last transaction reflected by the restored data files
+	private static long restoredTxNum = Elasql.START_TX_NUMBER - 1;
+	// Whether the request log is older than the data files
+	private static boolean isLogStale = false;
+
+	/**
+	 * Restores the data files from the last snapshot in the logical-only
+	 * logging mode. If there is no snapshot, the files after VanillaCore
+	 * starts become the first one (see
+	 * {@link #recover(DdLogMgr, Scheduler)}). This must be called before
+	 * VanillaCore starts.
+	 *
+	 * @param dbName
+	 *            the name of the database
+	 */
+	public static void restoreStorage(String dbName) {
+		if (!LOGICAL_LOGGING_ONLY)
+			return;
+
+		dbDir = StorageSnapshot.dbDirectory(dbName);
+		try {
+			File snapshotDir = StorageSnapshot.findLatest(dbDir);
+			if (snapshotDir != null) {
+				StorageSnapshot.restore(dbDir, snapshotDir);
+				restoredTxNum = StorageSnapshot.readTxNum(snapshotDir);
+			} else
+				isLogStale = true;
+		} catch (IOException e) {
+			throw new RuntimeException("fail to prepare the data files of " + dbDir, e);
+		}
+	}
+
+	/**
+	 * Replays the request log in the logical-only logging mode, after
+	 * bringing it to the latest tail among the servers. This must be called
+	 * before the server schedules any new request.
+	 *
+	 * @param logMgr
+	 *            the log manager of the requests
+	 * @param scheduler
+	 *            the scheduler of this server
+	 * @return the number of the last transaction recovered, after which the
+	 *         new requests must be numbered
+	 */
+	public static long recover(DdLogMgr logMgr, Scheduler scheduler) {
+		if (!LOGICAL_LOGGING_ONLY)
+			return Elasql.START_TX_NUMBER - 1;
+
+		List<StoredProcedureCall> calls;
+		if (isLogStale) {
+			// Start over from the current files, since the requests in the
+			// log (if any) do not start from them
+			Transaction tx = VanillaDb.txMgr().newTransaction(Connection.TRANSACTION_SERIALIZABLE, false);
+			VanillaDb.txMgr().createCheckpoint(tx);
+			tx.commit();
+			takeSnapshot(restoredTxNum);
+			DdRecoveryMgr.logCheckpoint(restoredTxNum);
+			calls = new ArrayList<StoredProcedureCall>();
+		} else
+			calls = readRequests(logMgr, restoredTxNum);
+
+		long lastTxNum = RequestLogSync.sync(restoredTxNum, calls);
+		replay(calls, scheduler);
+		if (logger.isLoggable(Level.INFO))
+			logger.info("recovered to tx." + lastTxNum);
+		return lastTxNum;
+	}
+
+	/**
+	 * Waits for the servers to agree on the last request in the logical-only
+	 * logging mode. This is for the stand-alone sequencer, which numbers the
+	 * new requests after it like the other servers.
+	 *
+	 * @return the number of the last transaction recovered by the servers
+	 */
+	public static long awaitRecoveredTxNum() {
+		if (!LOGICAL_LOGGING_ONLY)
+			return Elasql.START_TX_NUMBER - 1;
+		return RequestLogSync.awaitLatestTail();
+	}
+
+	/**
+	 * Copies the data files as the snapshot of the given transaction in the
+	 * logical-only logging mode. The storage must have been flushed and no
+	 * other transaction may be running.
+	 *
+	 * @param txNum
+	 *            the last transaction reflected by the data files
+	 */
+	public static void takeSnapshot(long txNum) {
+		if (!LOGICAL_LOGGING_ONLY)
+			return;
+
+		try {
+			long startTime = System.currentTimeMillis();
+			File snapshotDir = StorageSnapshot.take(dbDir, txNum);
+			if (logger.isLoggable(Level.INFO))
+				logger.info(String.format("saved the data files to %s in %d ms", snapshotDir,
+						System.currentTimeMillis() - startTime));
+		} catch (IOException e) {
+			throw new RuntimeException("fail to take a snapshot of " + dbDir, e);
+		}
+	}
+
+	/**
+	 * Reads the logged requests after the given transaction and the last
+	 * checkpoint.
+	 *
+	 * @param logMgr
+	 *            the log manager of the requests
+	 * @param fromTxNum
+	 *            the last transaction reflected in the storage, whose request
+	 *            and the earlier ones are skipped
+	 * @return the requests in the order of their transaction numbers
+	 */
+	public static List<StoredProcedureCall> readRequests(DdLogMgr logMgr, long fromTxNum) {
+		if (logMgr.isSegmented())
+			return readSegmentedRequests(logMgr.scanRecords(), fromTxNum);
+
+		List<StoredProcRequestRecord> requests = new ArrayList<StoredProcRequestRecord>();
+
+		// The log is read backward until the last checkpoint. The requests
+		// before a checkpoint may still be logged after it, so they are
+		// filtered by their transaction numbers.
+		Iterator<BasicLogRecord> iter = logMgr.iterator();
+		while (iter.hasNext()) {
+			BasicLogRecord rec = iter.next();
+			int op = (Integer) rec.nextVal(INTEGER).asJavaVal();
+			if (op == DdLogRecord.OP_CHECKPOINT) {
+				fromTxNum = Math.max(fromTxNum, new DdCheckpointRecord(rec).txNumber());
+				break;
+			} else if (op == DdLogRecord.OP_SP_REQUEST)
+				requests.add(new StoredProcRequestRecord(rec));
+		}
+
+		List<StoredProcedureCall> calls = new ArrayList<StoredProcedureCall>(requests.size());
+		for (int i = requests.size() - 1; i >= 0; i--)
+			if (requests.get(i).txNumber() > fromTxNum)
+				calls.add(requests.get(i).toStoredProcedureCall());
+		return calls;
+	}
+
+	/**
+	 * Picks the requests after the given transaction and the last checkpoint
+	 * from the records of a segmented log.
+	 *
+	 * @param iter
+	 *            the records from the oldest to the newest
+	 * @param fromTxNum
+	 *            the last transaction reflected in the storage
+	 * @return the requests in the order of their transaction numbers
+	 */
+	static List<StoredProcedureCall> readSegmentedRequests(Iterator<Constant[]> iter, long fromTxNum) {
+		List<StoredProcRequestRecord> requests = new ArrayList<StoredProcRequestRecord>();
+
+		// A segmented log is read forward, and the requests before a
+		// checkpoint are dropped when the checkpoint is reached
+		while (iter.hasNext()) {
+			Constant[] vals = iter.next();
+			int op = (Integer) vals[0].asJavaVal();
+			if (op == DdLogRecord.OP_CHECKPOINT) {
+				fromTxNum = Math.max(fromTxNum, new DdCheckpointRecord(vals).txNumber());
+				requests.clear();
+			} else if (op == DdLogRecord.OP_SP_REQUEST)
+				requests.add(new StoredProcRequestRecord(vals));
+		}
+
+		List<StoredProcedureCall> calls = new ArrayList<StoredProcedureCall>(requests.size());
+		for (StoredProcRequestRecord request : requests)
+			if (request.txNumber() > fromTxNum)
+				calls.add(request.toStoredProcedureCall());
+		return calls;
+	}
+
+	/**
+	 * Feeds the given logged requests to the scheduler. This must be called
+	 * before the server receives any new request.
+	 *
+	 * @param calls
+	 *            the requests in the order of their transaction numbers
+	 * @param scheduler
+	 *            the scheduler of this server
+	 */
+	static void replay(List<StoredProcedureCall> calls, Scheduler scheduler) {
+		if (calls.isEmpty())
+			return;
+
+		// The requests are durable already
+		DdRecoveryMgr.onRequestsReplayed(calls.get(calls.size() - 1).getTxNum());
+
+		for (StoredProcedureCall call : calls)
+			scheduler.schedule(call);
+
+		if (logger.isLoggable(Level.INFO))
+			logger.info(String.format("replaying %d requests (tx.%d to tx.%d)",
+					calls.size(), calls.get(0).getTxNum(), calls.get(calls.size() - 1).getTxNum()));
+	}
+}
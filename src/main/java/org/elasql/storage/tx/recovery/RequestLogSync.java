@@ -0,0 +1,226 @@
+package org.elasql.storage.tx.recovery;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.elasql.remote.groupcomm.StoredProcedureCall;
+import org.elasql.server.Elasql;
+import org.elasql.storage.metadata.PartitionMetaMgr;
+import org.vanilladb.comm.server.VanillaCommServer;
+
+/**
+ * Brings the request logs of the servers to the same last request before
+ * they replay. Each server flushes its log on its own, so after a crash the
+ * servers may have different durable tails. Replaying them as they are would
+ * number the new requests differently on each server, and a transaction that
+ * only some servers logged would wait forever for the others.<br>
+ * <br>
+ * Each server sends the transaction of its snapshot and of its last logged
+ * request to all the others, including the stand-alone sequencer. The servers
+ * then recover to the latest tail: a server behind it fetches the missing
+ * requests from a server at the tail, logs them, and replays them with its
+ * own. Every request that was durable on any server is kept, so a client
+ * acknowledged after the flush of one server never loses its transaction. If
+ * the missing requests have been truncated from the logs of all the servers
+ * at the tail, the recovery fails, since they are only reflected in the
+ * snapshots of those servers.
+ */
+public class RequestLogSync {
+	private static Logger logger = Logger.getLogger(RequestLogSync.class.getName());
+
+	/**
+	 * A message exchanged between the servers during the recovery.
+	 */
+	public static abstract class Message implements Serializable {
+		private static final long serialVersionUID = 20261019001L;
+	}
+
+	// The snapshot and the durable tail of a server
+	static class TailMessage extends Message {
+		private static final long serialVersionUID = 20261019002L;
+
+		final long snapshotTxNum;
+		final long tailTxNum;
+
+		TailMessage(long snapshotTxNum, long tailTxNum) {
+			this.snapshotTxNum = snapshotTxNum;
+			this.tailTxNum = tailTxNum;
+		}
+	}
+
+	// Asks for the requests after the given transaction
+	static class FetchMessage extends Message {
+		private static final long serialVersionUID = 20261019003L;
+
+		final long fromTxNum;
+
+		FetchMessage(long fromTxNum) {
+			this.fromTxNum = fromTxNum;
+		}
+	}
+
+	static class RequestsMessage extends Message {
+		private static final long serialVersionUID = 20261019004L;
+
+		final List<StoredProcedureCall> calls;
+
+		RequestsMessage(List<StoredProcedureCall> calls) {
+			this.calls = calls;
+		}
+	}
+
+	private static final Object lock = new Object();
+	private static Map<Integer, TailMessage> tails = new HashMap<Integer, TailMessage>();
+	// The requests in the log of this server, which the others may fetch
+	private static List<StoredProcedureCall> localCalls;
+	private static List<StoredProcedureCall> fetchedCalls;
+
+	/**
+	 * Exchanges the durable tails with the other servers, and fetches the
+	 * requests this server misses from a server at the latest tail. The
+	 * fetched requests are flushed to the log and appended to the given
+	 * list. This must be called before the server replays or schedules any
+	 * request.
+	 *
+	 * @param snapshotTxNum
+	 *            the last transaction reflected by the restored data files
+	 * @param calls
+	 *            the logged requests after the snapshot, in the order of
+	 *            their transaction numbers
+	 * @return the transaction number of the latest tail, after which the new
+	 *         requests are numbered
+	 */
+	public static long sync(long snapshotTxNum, List<StoredProcedureCall> calls) {
+		int myId = Elasql.serverId();
+		long myTailTxNum = calls.isEmpty() ? snapshotTxNum : calls.get(calls.size() - 1).getTxNum();
+		TailMessage myTail = new TailMessage(snapshotTxNum, myTailTxNum);
+
+		// Ready to serve the fetches before anyone knows the tail
+		synchronized (lock) {
+			localCalls = new ArrayList<StoredProcedureCall>(calls);
+			tails.put(myId, myTail);
+		}
+		Elasql.connectionMgr().waitForServersReady();
+		for (int id = 0; id < VanillaCommServer.getServerCount(); id++)
+			if (id != myId)
+				Elasql.connectionMgr().sendRecoveryMessage(id, myTail);
+
+		Map<Integer, TailMessage> allTails = awaitTails();
+		long lastTxNum = latestTail(allTails);
+		if (myTailTxNum >= lastTxNum)
+			return lastTxNum;
+
+		int supplierId = supplierOf(allTails, lastTxNum);
+		if (allTails.get(supplierId).snapshotTxNum > myTailTxNum)
+			throw new RuntimeException(String.format(
+					"server %d misses the requests from tx.%d to tx.%d, which are only in the snapshots of the others",
+					myId, myTailTxNum + 1, allTails.get(supplierId).snapshotTxNum));
+
+		if (logger.isLoggable(Level.INFO))
+			logger.info(String.format("fetching the requests from tx.%d to tx.%d from server %d",
+					myTailTxNum + 1, lastTxNum, supplierId));
+		Elasql.connectionMgr().sendRecoveryMessage(supplierId, new FetchMessage(myTailTxNum));
+		List<StoredProcedureCall> fetched = awaitFetchedCalls();
+
+		// They must survive another crash of this server
+		DdRecoveryMgr.logFetchedRequests(fetched);
+		calls.addAll(fetched);
+		return lastTxNum;
+	}
+
+	/**
+	 * Waits for the durable tails of all the servers holding data, and
+	 * returns the latest one. This is for the stand-alone sequencer, which
+	 * has no log but numbers the new requests like the others.
+	 *
+	 * @return the transaction number of the latest tail
+	 */
+	public static long awaitLatestTail() {
+		return latestTail(awaitTails());
+	}
+
+	/**
+	 * Handles a recovery message from another server.
+	 *
+	 * @param senderId
+	 *            the id of the sending server
+	 * @param message
+	 *            the message
+	 */
+	public static void onReceive(int senderId, Message message) {
+		if (message instanceof TailMessage) {
+			synchronized (lock) {
+				tails.put(senderId, (TailMessage) message);
+				lock.notifyAll();
+			}
+		} else if (message instanceof FetchMessage) {
+			long fromTxNum = ((FetchMessage) message).fromTxNum;
+			List<StoredProcedureCall> calls = new ArrayList<StoredProcedureCall>();
+			synchronized (lock) {
+				// The tail asked for is only sent after the log is read
+				if (localCalls == null)
+					throw new IllegalStateException("server " + senderId + " fetches the requests too early");
+				for (StoredProcedureCall call : localCalls)
+					if (call.getTxNum() > fromTxNum)
+						calls.add(call);
+			}
+			Elasql.connectionMgr().sendRecoveryMessage(senderId, new RequestsMessage(calls));
+		} else if (message instanceof RequestsMessage) {
+			synchronized (lock) {
+				fetchedCalls = ((RequestsMessage) message).calls;
+				lock.notifyAll();
+			}
+		} else
+			throw new IllegalArgumentException();
+	}
+
+	private static Map<Integer, TailMessage> awaitTails() {
+		synchronized (lock) {
+			try {
+				while (tails.size() < PartitionMetaMgr.NUM_PARTITIONS)
+					lock.wait();
+			} catch (InterruptedException e) {
+				throw new RuntimeException("interrupted while waiting for the tails of the logs", e);
+			}
+			return new HashMap<Integer, TailMessage>(tails);
+		}
+	}
+
+	private static List<StoredProcedureCall> awaitFetchedCalls() {
+		synchronized (lock) {
+			try {
+				while (fetchedCalls == null)
+					lock.wait();
+			} catch (InterruptedException e) {
+				throw new RuntimeException("interrupted while fetching the requests", e);
+			}
+			return fetchedCalls;
+		}
+	}
+
+	// Any server at the tail has the same requests, but only the ones after
+	// its snapshot are still in its log, so the one with the oldest snapshot
+	// is picked
+	static int supplierOf(Map<Integer, TailMessage> allTails, long lastTxNum) {
+		int supplierId = -1;
+		for (Map.Entry<Integer, TailMessage> entry : allTails.entrySet()) {
+			TailMessage tail = entry.getValue();
+			if (tail.tailTxNum == lastTxNum && (supplierId == -1
+					|| tail.snapshotTxNum < allTails.get(supplierId).snapshotTxNum))
+				supplierId = entry.getKey();
+		}
+		return supplierId;
+	}
+
+	static long latestTail(Map<Integer, TailMessage> allTails) {
+		long lastTxNum = Long.MIN_VALUE;
+		for (TailMessage tail : allTails.values())
+			lastTxNum = Math.max(lastTxNum, tail.tailTxNum);
+		return lastTxNum;
+	}
+}
@@ -0,0 +1,211 @@
+package org.elasql.storage.tx.recovery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.elasql.storage.log.DdLogMgr;
+import org.vanilladb.core.storage.file.FileMgr;
+import org.vanilladb.core.storage.log.LogMgr;
+import org.vanilladb.core.util.CoreProperties;
+
+/**
+ * Copies of the data files of a database taken at checkpoints, which are used
+ * in the logical-only logging mode (see
+ * {@link RequestLogReplayer#LOGICAL_LOGGING_ONLY}). Without physical logs, the
+ * buffers flushed after a checkpoint leave the data files in an unknown
+ * state, so a crashed server restores the files of the last snapshot and
+ * replays the requests after it.<br>
+ * <br>
+ * A snapshot is a directory named after the database and the transaction it
+ * reflects, next to the database directory. It is complete only if it has a
+ * marker file, which is written after all the data files are forced to the
+ * disk. The log files are never copied or restored.<br>
+ * <br>
+ * Each snapshot is a full copy of the data files, so the cost of a
+ * checkpoint grows with the size of the database rather than with the
+ * updates since the last one.
+ */
+public class StorageSnapshot {
+	private static Logger logger = Logger.getLogger(StorageSnapshot.class.getName());
+
+	private static final String MARKER_FILE = "_snapshot_tx";
+	private static final String DIR_INFIX = "_snapshot_";
+
+	/**
+	 * Returns the directory of the given database. This follows the setting
+	 * of VanillaCore, so that it can be found before VanillaCore starts.
+	 *
+	 * @param dbName the name of the database
+	 * @return the database directory
+	 */
+	public static File dbDirectory(String dbName) {
+		String homeDir = CoreProperties.getLoader().getPropertyAsString(
+				FileMgr.class.getName() + ".DB_FILES_DIR", System.getProperty("user.home"));
+		return new File(homeDir, dbName);
+	}
+
+	/**
+	 * Finds the latest complete snapshot of the given database.
+	 *
+	 * @param dbDir the database directory
+	 * @return the snapshot directory, or null if there is none
+	 */
+	public static File findLatest(File dbDir) {
+		File[] candidates = dbDir.getAbsoluteFile().getParentFile().listFiles();
+		if (candidates == null)
+			return null;
+
+		File latest = null;
+		long latestTxNum = Long.MIN_VALUE;
+		String prefix = dbDir.getName() + DIR_INFIX;
+		for (File dir : candidates) {
+			if (!dir.isDirectory() || !dir.getName().startsWith(prefix))
+				continue;
+			long txNum = readTxNum(dir);
+			if (txNum != Long.MIN_VALUE && txNum > latestTxNum) {
+				latest = dir;
+				latestTxNum = txNum;
+			}
+		}
+		return latest;
+	}
+
+	/**
+	 * Returns the transaction reflected by the given snapshot, or
+	 * {@code Long.MIN_VALUE} if the snapshot is incomplete.
+	 */
+	public static long readTxNum(File snapshotDir) {
+		File marker = new File(snapshotDir, MARKER_FILE);
+		if (!marker.exists())
+			return Long.MIN_VALUE;
+		try {
+			return Long.parseLong(new String(Files.readAllBytes(marker.toPath()), StandardCharsets.US_ASCII).trim());
+		} catch (IOException | NumberFormatException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Copies the data files of the database as a snapshot reflecting the
+	 * given transaction, and then removes the older snapshots. The snapshot
+	 * is durable when this returns, so the log before it can be truncated.
+	 * The buffers must have been flushed and no transaction may modify the
+	 * files during this call.
+	 *
+	 * @param dbDir the database directory
+	 * @param txNum the last transaction reflected by the files
+	 * @return the snapshot directory
+	 */
+	public static File take(File dbDir, long txNum) throws IOException {
+		File snapshotDir = new File(dbDir.getAbsoluteFile().getParentFile(),
+				dbDir.getName() + DIR_INFIX + txNum);
+		if (snapshotDir.exists())
+			clear(snapshotDir, true);
+		if (!snapshotDir.mkdirs())
+			throw new IOException("cannot create " + snapshotDir);
+
+		File[] files = dbDir.listFiles();
+		if (files != null)
+			for (File file : files)
+				if (isDataFile(file)) {
+					File copy = new File(snapshotDir, file.getName());
+					Files.copy(file.toPath(), copy.toPath());
+					force(copy);
+				}
+
+		// The marker makes the snapshot complete, so it must not reach the
+		// disk before the copies
+		File marker = new File(snapshotDir, MARKER_FILE);
+		Files.write(marker.toPath(), Long.toString(txNum).getBytes(StandardCharsets.US_ASCII));
+		force(marker);
+		forceDirectory(snapshotDir);
+		forceDirectory(snapshotDir.getParentFile());
+
+		// The older snapshots are only removed after this one is durable
+		File[] siblings = snapshotDir.getParentFile().listFiles();
+		String prefix = dbDir.getName() + DIR_INFIX;
+		if (siblings != null)
+			for (File dir : siblings)
+				if (dir.isDirectory() && dir.getName().startsWith(prefix) && !dir.equals(snapshotDir))
+					clear(dir, true);
+
+		return snapshotDir;
+	}
+
+	/**
+	 * Replaces the data files of the database with the ones in the given
+	 * snapshot. The data files that are not in the snapshot are removed. This
+	 * must be called before VanillaCore opens the files.
+	 *
+	 * @param dbDir the database directory
+	 * @param snapshotDir the snapshot to restore
+	 */
+	public static void restore(File dbDir, File snapshotDir) throws IOException {
+		if (!dbDir.exists() && !dbDir.mkdirs())
+			throw new IOException("cannot create " + dbDir);
+		clear(dbDir, false);
+
+		File[] files = snapshotDir.listFiles();
+		if (files != null)
+			for (File file : files)
+				if (isDataFile(file))
+					Files.copy(file.toPath(), new File(dbDir, file.getName()).toPath(),
+							StandardCopyOption.REPLACE_EXISTING);
+
+		if (logger.isLoggable(Level.INFO))
+			logger.info("restored the data files of " + dbDir + " from " + snapshotDir);
+	}
+
+	private static void force(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+	}
+
+	// Makes the entries of the directory durable
+	private static void forceDirectory(File dir) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			// Some platforms (e.g., Windows) can not open a directory
+			if (logger.isLoggable(Level.FINE))
+				logger.fine("cannot force the directory " + dir + ": " + e);
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static boolean isDataFile(File file) {
+		String name = file.getName();
+		if (!file.isFile() || name.equals(MARKER_FILE) || name.startsWith("_temp"))
+			return false;
+		String coreLogFile = CoreProperties.getLoader().getPropertyAsString(
+				LogMgr.class.getName() + ".LOG_FILE", "vanilladb.log");
+		// The segments of the request log are named after its file
+		return !name.equals(coreLogFile) && !name.equals(DdLogMgr.DD_LOG_FILE)
+				&& !name.startsWith(DdLogMgr.DD_LOG_FILE + ".");
+	}
+
+	// Removes the data files (or all the files) in the directory
+	private static void clear(File dir, boolean removeDir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File file : files)
+				if (removeDir || isDataFile(file))
+					Files.delete(file.toPath());
+		if (removeDir)
+			Files.delete(dir.toPath());
+	}
+}
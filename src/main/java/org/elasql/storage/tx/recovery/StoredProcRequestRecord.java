@@ -17,11 +17,19 @@ package org.elasql.storage.tx.recovery;
 
 import static org.vanilladb.core.sql.Type.BIGINT;
 import static org.vanilladb.core.sql.Type.INTEGER;
+import static org.vanilladb.core.sql.Type.VARCHAR;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.elasql.remote.groupcomm.StoredProcedureCall;
 import org.vanilladb.core.sql.BigIntConstant;
 import org.vanilladb.core.sql.Constant;
 import org.vanilladb.core.sql.IntegerConstant;
@@ -31,6 +39,15 @@ import org.vanilladb.core.storage.log.LogSeqNum;
 import org.vanilladb.core.storage.tx.Transaction;
 import org.vanilladb.core.storage.tx.recovery.LogRecord;
 
+/**
+ * The request of a transaction. Since the transactions are deterministic, the
+ * requests are enough to rebuild the state by executing them again in the
+ * order of their transaction numbers (see {@link RequestLogReplayer}).<br>
+ * <br>
+ * The parameters are written as a Base64 string of their Java serialization,
+ * so they must be {@link java.io.Serializable}, which they already are for
+ * being sent in a {@link StoredProcedureCall}.
+ */
 public class StoredProcRequestRecord implements DdLogRecord {
 	private long txNum;
 	private int clientId, connectionId, procedureId;
@@ -58,13 +75,32 @@ public class StoredProcRequestRecord implements DdLogRecord {
 		this.connectionId = (Integer) rec.nextVal(INTEGER).asJavaVal();
 		this.procedureId = (Integer) rec.nextVal(INTEGER).asJavaVal();
 
-		// FIXME
-		// See writeToLog()
-		this.pars = new Object[(Integer) rec.nextVal(INTEGER).asJavaVal()];
+		int numOfPars = (Integer) rec.nextVal(INTEGER).asJavaVal();
+		this.pars = decodePars((String) rec.nextVal(VARCHAR).asJavaVal());
+		if (pars.length != numOfPars)
+			throw new RuntimeException("expect " + numOfPars + " parameters for tx." + txNum
+					+ ", but got " + pars.length);
 		
 		lsn = rec.getLSN();
 	}
 	
+	/**
+	 * Creates a log record from the values read from a segmented log.
+	 * 
+	 * @param vals
+	 *            the values of the record, starting with the op code
+	 */
+	public StoredProcRequestRecord(Constant[] vals) {
+		this.txNum = (Long) vals[1].asJavaVal();
+		this.clientId = (Integer) vals[2].asJavaVal();
+		this.connectionId = (Integer) vals[3].asJavaVal();
+		this.procedureId = (Integer) vals[4].asJavaVal();
+		this.pars = decodePars((String) vals[6].asJavaVal());
+		if (pars.length != (Integer) vals[5].asJavaVal())
+			throw new RuntimeException("expect " + vals[5] + " parameters for tx." + txNum
+					+ ", but got " + pars.length);
+	}
+	
 	@Override
 	public LogSeqNum writeToLog() {
 		List<Constant> rec = buildRecord();
@@ -88,7 +124,19 @@ public class StoredProcRequestRecord implements DdLogRecord {
 
 	@Override
 	public void redo(Transaction tx) {
-		// TODO replay the stored procedure
+		// do nothing, the requests are replayed through the scheduler
+		// by RequestLogReplayer
+	}
+	
+	/**
+	 * Rebuilds the stored procedure call of this request.
+	 * 
+	 * @return the stored procedure call
+	 */
+	public StoredProcedureCall toStoredProcedureCall() {
+		StoredProcedureCall spc = new StoredProcedureCall(clientId, connectionId, procedureId, pars);
+		spc.setTxNum(txNum);
+		return spc;
 	}
 
 	@Override
@@ -105,10 +153,8 @@ public class StoredProcRequestRecord implements DdLogRecord {
 		rec.add(new IntegerConstant(clientId));
 		rec.add(new IntegerConstant(connectionId));
 		rec.add(new IntegerConstant(procedureId));
-		// XXX: we only record the size of the parameters for now
 		rec.add(new IntegerConstant(pars.length));
-		// Real code
-//		rec.add(new VarcharConstant(Arrays.toString(pars)));
+		rec.add(new VarcharConstant(encodePars(pars)));
 		return rec;
 	}
 
@@ -116,4 +162,23 @@ public class StoredProcRequestRecord implements DdLogRecord {
 	public LogSeqNum getLSN() {
 		return lsn;
 	}
+	
+	private static String encodePars(Object[] pars) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(pars);
+		} catch (IOException e) {
+			throw new RuntimeException("fail to serialize the parameters " + Arrays.toString(pars), e);
+		}
+		return Base64.getEncoder().encodeToString(bytes.toByteArray());
+	}
+	
+	private static Object[] decodePars(String encoded) {
+		byte[] bytes = Base64.getDecoder().decode(encoded);
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return (Object[]) in.readObject();
+		} catch (IOException | ClassNotFoundException e) {
+			throw new RuntimeException("fail to deserialize the parameters", e);
+		}
+	}
 }
@@ -1,12 +1,14 @@
 package org.elasql.cache;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.Arrays;
 
 import org.elasql.sql.PrimaryKey;
 import org.elasql.sql.PrimaryKeyBuilder;
@@ -50,4 +52,53 @@ public class CachedRecordTest {
 		
 		assertEquals("fails to deserialize the object of CachedRecord", rec, result);
 	}
+	
+	@Test
+	public void testMarkAllFieldsDirty() {
+		PrimaryKey key = new PrimaryKey("test_table", "test_key", new IntegerConstant(1));
+		CachedRecord rec = new CachedRecord(key);
+		rec.addFldVal("test_field_1", new IntegerConstant(2));
+		rec.addFldVal("test_field_2", new IntegerConstant(3));
+		
+		rec.markAllNonKeyFieldsDirty();
+		
+		// The batched writes skip the records that are not dirty
+		assertTrue(rec.isDirty());
+		assertEquals(2, rec.getDirtyFldNames().size());
+	}
+	
+	@Test
+	public void testCopyOnWrite() {
+		PrimaryKey key = new PrimaryKey("test_table", "test_key", new IntegerConstant(1));
+		CachedRecord rec = new CachedRecord(key);
+		rec.addFldVal("test_field", new IntegerConstant(2));
+		
+		// Modifying the clone must not affect the original record
+		CachedRecord clone = new CachedRecord(rec);
+		clone.setVal("test_field", new IntegerConstant(3));
+		assertEquals(new IntegerConstant(2), rec.getVal("test_field"));
+		assertEquals(new IntegerConstant(3), clone.getVal("test_field"));
+		assertTrue("the original record becomes dirty", rec.getDirtyFldNames().isEmpty());
+		
+		// And vice versa
+		CachedRecord clone2 = new CachedRecord(rec);
+		rec.setVal("test_field", new IntegerConstant(4));
+		assertEquals(new IntegerConstant(2), clone2.getVal("test_field"));
+		assertTrue("the clone becomes dirty", clone2.getDirtyFldNames().isEmpty());
+	}
+	
+	@Test
+	public void testSlotAccess() {
+		PrimaryKey key = new PrimaryKey("test_table", "test_key", new IntegerConstant(1));
+		CachedRecord rec = new CachedRecord(key);
+		rec.addFldVal("test_field_int", new IntegerConstant(2));
+		rec.addFldVal("test_field_str", new VarcharConstant("test_val"));
+		
+		int slot = rec.getLayout().slotOf("test_field_str");
+		assertEquals(new VarcharConstant("test_val"), rec.getVal(slot));
+		
+		rec.setVal(slot, new VarcharConstant("test_val2"));
+		assertEquals(new VarcharConstant("test_val2"), rec.getVal("test_field_str"));
+		assertEquals(Arrays.asList("test_field_str"), rec.getDirtyFldNames());
+	}
 }
@@ -0,0 +1,105 @@
+package org.elasql.cache.tpart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasql.cache.CachedRecord;
+import org.elasql.sql.PrimaryKey;
+import org.junit.Test;
+import org.vanilladb.core.sql.IntegerConstant;
+
+public class TPartRecordCacheTest {
+	
+	private static PrimaryKey newKey(int id) {
+		return new PrimaryKey("test_table", "test_key", new IntegerConstant(id));
+	}
+	
+	private static CachedRecord newRecord(PrimaryKey key, int val) {
+		CachedRecord rec = new CachedRecord(key);
+		rec.addFldVal("test_field", new IntegerConstant(val));
+		return rec;
+	}
+	
+	@Test
+	public void testEviction() {
+		final Map<PrimaryKey, CachedRecord> evicted = new HashMap<PrimaryKey, CachedRecord>();
+		TPartRecordCache cache = new TPartRecordCache(10, new TPartRecordCache.EvictionListener() {
+			@Override
+			public boolean onEvict(PrimaryKey key, CachedRecord rec) {
+				evicted.put(key, rec);
+				return true;
+			}
+		});
+		
+		for (int i = 0; i < 25; i++) {
+			PrimaryKey key = newKey(i);
+			cache.put(key, newRecord(key, i));
+		}
+		
+		assertEquals("the cache exceeds its capacity", 10, cache.size());
+		assertEquals("the evicted records are not reported", 15, evicted.size());
+		assertEquals(15, cache.getEvictionCount());
+		
+		// Every record must be either in the cache or evicted
+		for (int i = 0; i < 25; i++) {
+			PrimaryKey key = newKey(i);
+			if (cache.containsKey(key))
+				assertNull("a cached record is reported as evicted", evicted.get(key));
+			else
+				assertNotNull("a record is lost", evicted.get(key));
+		}
+	}
+	
+	@Test
+	public void testRefusedEviction() {
+		final PrimaryKey key1 = newKey(1);
+		final Map<PrimaryKey, CachedRecord> evicted = new HashMap<PrimaryKey, CachedRecord>();
+		TPartRecordCache cache = new TPartRecordCache(2, new TPartRecordCache.EvictionListener() {
+			@Override
+			public boolean onEvict(PrimaryKey key, CachedRecord rec) {
+				if (key.equals(key1))
+					return false;
+				evicted.put(key, rec);
+				return true;
+			}
+		});
+		
+		PrimaryKey key2 = newKey(2);
+		PrimaryKey key3 = newKey(3);
+		cache.put(key1, newRecord(key1, 1));
+		cache.put(key2, newRecord(key2, 2));
+		cache.put(key3, newRecord(key3, 3));
+		
+		assertEquals(2, cache.size());
+		assertTrue("a refused record is evicted", cache.containsKey(key1));
+		assertNotNull("another record should be evicted instead", evicted.get(key2));
+	}
+	
+	@Test
+	public void testRemoveReleasesSlot() {
+		TPartRecordCache cache = new TPartRecordCache(2, new TPartRecordCache.EvictionListener() {
+			@Override
+			public boolean onEvict(PrimaryKey key, CachedRecord rec) {
+				throw new AssertionError("no record should be evicted");
+			}
+		});
+		
+		PrimaryKey key1 = newKey(1);
+		PrimaryKey key2 = newKey(2);
+		PrimaryKey key3 = newKey(3);
+		cache.put(key1, newRecord(key1, 1));
+		cache.put(key2, newRecord(key2, 2));
+		cache.remove(key1);
+		cache.put(key3, newRecord(key3, 3));
+		
+		assertEquals(2, cache.size());
+		assertNull(cache.get(key1));
+		assertNotNull(cache.get(key3));
+		assertEquals(0.5, cache.getHitRate(), 0.0001);
+	}
+}
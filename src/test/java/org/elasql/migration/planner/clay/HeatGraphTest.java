@@ -0,0 +1,168 @@
+package org.elasql.migration.planner.clay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.elasql.sql.PartitioningKey;
+import org.junit.Test;
+import org.vanilladb.core.sql.IntegerConstant;
+
+public class HeatGraphTest {
+
+	private static PartitioningKey key(int val) {
+		return new PartitioningKey("item", "i_id", new IntegerConstant(val));
+	}
+
+	private static int edgeWeight(Vertex from, Vertex to) {
+		for (OutEdge e : from.getOutEdges())
+			if (e.getOpposite() == to)
+				return e.getWeight();
+		return 0;
+	}
+
+	private static HeatGraph newGraph() {
+		HeatGraph graph = new HeatGraph();
+		for (int i = 0; i < 3; i++)
+			graph.updateWeightOnVertex(key(i), i % 2);
+		graph.updateWeightOnVertex(key(0), 0);
+		graph.updateWeightOnEdges(Arrays.asList(key(0), key(1), key(2)));
+		graph.updateWeightOnEdges(Arrays.asList(key(0), key(1)));
+		return graph;
+	}
+
+	@Test
+	public void testWeights() {
+		HeatGraph graph = newGraph();
+
+		Vertex v0 = graph.getVertex(key(0));
+		Vertex v1 = graph.getVertex(key(1));
+		Vertex v2 = graph.getVertex(key(2));
+		assertEquals(2, v0.getVertexWeight());
+		assertEquals(1, v1.getVertexWeight());
+		assertEquals(2, edgeWeight(v0, v1));
+		assertEquals(2, edgeWeight(v1, v0));
+		assertEquals(1, edgeWeight(v1, v2));
+		assertEquals(3, v0.getEdgeWeight());
+		assertNull(graph.getVertex(key(3)));
+	}
+
+	@Test
+	public void testSampledPairs() {
+		HeatGraph graph = new HeatGraph();
+		List<PartitioningKey> accessed = new ArrayList<PartitioningKey>();
+		for (int i = 0; i < 40; i++) {
+			graph.updateWeightOnVertex(key(i), 0);
+			accessed.add(key(i));
+		}
+		
+		// 780 pairs per transaction, more than the default limit
+		int txCount = 200;
+		for (int tx = 0; tx < txCount; tx++)
+			graph.updateWeightOnEdges(accessed);
+		
+		// The sampled weights add up to about the same total
+		long total = 0;
+		for (Vertex v : graph.getVertice().values())
+			total += v.getEdgeWeight();
+		total /= 2;
+		long expected = 780L * txCount;
+		assertTrue("total edge weight: " + total, Math.abs(total - expected) < expected / 20);
+	}
+
+	@Test
+	public void testBoundedEdges() {
+		HeatGraph graph = new HeatGraph(3);
+		for (int i = 0; i < 6; i++)
+			graph.updateWeightOnVertex(key(i), 0);
+		for (int n = 0; n < 3; n++)
+			graph.updateWeightOnEdges(Arrays.asList(key(0), key(1)));
+		for (int n = 0; n < 2; n++)
+			graph.updateWeightOnEdges(Arrays.asList(key(0), key(2)));
+		graph.updateWeightOnEdges(Arrays.asList(key(1), key(2)));
+		
+		// The new edge replaces the lightest one and inherits its weight
+		graph.updateWeightOnEdges(Arrays.asList(key(2), key(3)));
+		assertEquals(3, countEdges(graph));
+		assertEquals(0, edgeWeight(graph.getVertex(key(1)), graph.getVertex(key(2))));
+		assertEquals(2, edgeWeight(graph.getVertex(key(2)), graph.getVertex(key(3))));
+		
+		// A stream of new light edges never pushes out the heavy one
+		for (int i = 3; i < 6; i++)
+			for (int j = i + 1; j < 6; j++)
+				graph.updateWeightOnEdges(Arrays.asList(key(i), key(j)));
+		assertEquals(3, countEdges(graph));
+		assertEquals(3, edgeWeight(graph.getVertex(key(0)), graph.getVertex(key(1))));
+	}
+	
+	@Test
+	public void testManyBoundedEdges() {
+		// Enough edges to move the others around in the table
+		HeatGraph graph = new HeatGraph(100);
+		for (int i = 0; i < 60; i++)
+			graph.updateWeightOnVertex(key(i), 0);
+		// Heavier than (total weight / max edges), so it is always kept
+		for (int n = 0; n < 100; n++)
+			graph.updateWeightOnEdges(Arrays.asList(key(0), key(1)));
+		for (int i = 0; i < 60; i++)
+			for (int j = i + 1; j < 60; j++)
+				graph.updateWeightOnEdges(Arrays.asList(key(i), key(j)));
+		
+		assertEquals(100, countEdges(graph));
+		assertEquals(101, edgeWeight(graph.getVertex(key(0)), graph.getVertex(key(1))));
+		long total = 0;
+		for (Vertex v : graph.getVertice().values())
+			total += v.getEdgeWeight();
+		// Space-Saving keeps the total weight of the stream
+		assertEquals(100 + 60 * 59 / 2, total / 2);
+	}
+	
+	private static int countEdges(HeatGraph graph) {
+		int count = 0;
+		for (Vertex v : graph.getVertice().values())
+			count += v.getOutEdges().size();
+		return count / 2;
+	}
+
+	@Test
+	public void testSplitToPartitions() {
+		HeatGraph graph = newGraph();
+
+		List<Partition> partitions = graph.splitToPartitions(2, 1.0);
+		assertEquals(2, partitions.size());
+
+		// The partitions moved by the planner are kept after an update
+		graph.getVertex(key(1)).setPartId(0);
+		graph.updateWeightOnVertex(key(3), 1);
+		assertEquals(0, graph.getVertex(key(1)).getPartId());
+		assertEquals(1, graph.getVertex(key(3)).getPartId());
+	}
+
+	@Test
+	public void testSerialization() throws IOException, ClassNotFoundException {
+		HeatGraph graph = newGraph();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(graph);
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		HeatGraph copy = (HeatGraph) in.readObject();
+
+		Vertex v0 = copy.getVertex(key(0));
+		Vertex v1 = copy.getVertex(key(1));
+		assertEquals(2, v0.getVertexWeight());
+		assertEquals(1, v1.getPartId());
+		assertEquals(2, edgeWeight(v0, v1));
+		assertEquals(3, v0.getEdgeWeight());
+	}
+}
@@ -0,0 +1,84 @@
+package org.elasql.schedule.tpart;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.elasql.procedure.tpart.TPartStoredProcedureTask;
+import org.elasql.schedule.tpart.graph.TGraph;
+import org.elasql.schedule.tpart.replay.ReplayProcedure;
+import org.elasql.server.Elasql;
+import org.elasql.sql.PrimaryKey;
+import org.elasql.storage.metadata.HashPartitionPlan;
+import org.elasql.storage.metadata.PartitionMetaMgr;
+import org.junit.Before;
+import org.junit.Test;
+import org.vanilladb.core.sql.IntegerConstant;
+
+public class ReadOnlyFastPathTest {
+	
+	private ReadOnlyFastPath fastPath;
+	private TGraph graph;
+	private long nextTxNum = 1;
+	
+	private static PrimaryKey newKey(int id) {
+		return new PrimaryKey("item", "i_id", new IntegerConstant(id));
+	}
+	
+	private TPartStoredProcedureTask newTask(Set<PrimaryKey> readKeys, Set<PrimaryKey> writeKeys) {
+		long txNum = nextTxNum++;
+		return new TPartStoredProcedureTask(-1, -1, txNum,
+				new ReplayProcedure(txNum, readKeys, writeKeys));
+	}
+	
+	private static Set<PrimaryKey> keys(PrimaryKey... keys) {
+		return new HashSet<PrimaryKey>(Arrays.asList(keys));
+	}
+	
+	@Before
+	public void setUp() {
+		Elasql.initPartitionMetaMgr(new HashPartitionPlan(PartitionMetaMgr.NUM_PARTITIONS));
+		fastPath = new ReadOnlyFastPath(Elasql.partitionMetaMgr());
+		graph = new TGraph();
+	}
+	
+	@Test
+	public void testTakenWithoutPendingWrites() {
+		PrimaryKey key = newKey(1);
+		TPartStoredProcedureTask reader = newTask(keys(key), keys());
+		
+		assertEquals(Elasql.partitionMetaMgr().getPartition(key),
+				fastPath.choosePartition(reader, graph));
+	}
+	
+	@Test
+	public void testBypassedWhilePendingWrites() {
+		PrimaryKey key = newKey(1);
+		TPartStoredProcedureTask writer1 = newTask(keys(key), keys(key));
+		TPartStoredProcedureTask writer2 = newTask(keys(key), keys(key));
+		fastPath.addPendingWrites(writer1);
+		fastPath.addPendingWrites(writer2);
+		
+		TPartStoredProcedureTask reader = newTask(keys(key), keys());
+		assertEquals(-1, fastPath.choosePartition(reader, graph));
+		
+		// Still bypassed until every writer of the record is sunk
+		fastPath.removePendingWrites(Collections.singletonList(writer1));
+		assertEquals(-1, fastPath.choosePartition(reader, graph));
+		
+		fastPath.removePendingWrites(Collections.singletonList(writer2));
+		assertEquals(Elasql.partitionMetaMgr().getPartition(key),
+				fastPath.choosePartition(reader, graph));
+	}
+	
+	@Test
+	public void testReadWriteTxNotTaken() {
+		PrimaryKey key = newKey(1);
+		TPartStoredProcedureTask writer = newTask(keys(key), keys(key));
+		
+		assertEquals(-1, fastPath.choosePartition(writer, graph));
+	}
+}
@@ -0,0 +1,75 @@
+package org.elasql.schedule.tpart.hermes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.elasql.sql.PrimaryKey;
+import org.junit.Test;
+import org.vanilladb.core.sql.IntegerConstant;
+
+public class FusionTableTest {
+	
+	private static PrimaryKey newKey(int id) {
+		return new PrimaryKey("test_table", "test_key", new IntegerConstant(id));
+	}
+	
+	@Test
+	public void testOverflow() {
+		FusionTable table = new FusionTable(100);
+		
+		for (int i = 0; i < 1000; i++)
+			table.setLocation(newKey(i), 0);
+		
+		assertEquals(1000, table.size());
+		assertEquals("the overflowed keys are not reported", 900, table.getOverflowKeys().size());
+		for (int i = 0; i < 1000; i++)
+			assertEquals("the location of key " + i + " is lost", 0, table.getLocation(newKey(i)));
+		assertEquals(-1, table.getLocation(newKey(1000)));
+	}
+	
+	@Test
+	public void testRemove() {
+		FusionTable table = new FusionTable(100);
+		
+		for (int i = 0; i < 300; i++)
+			table.setLocation(newKey(i), 0);
+		for (int i = 0; i < 300; i += 2)
+			assertEquals(0, table.remove(newKey(i)));
+		
+		assertEquals(150, table.size());
+		for (int i = 0; i < 300; i++) {
+			if (i % 2 == 0) {
+				assertFalse(table.containsKey(newKey(i)));
+				assertEquals(-1, table.getLocation(newKey(i)));
+			} else {
+				assertTrue(table.containsKey(newKey(i)));
+				assertEquals(0, table.getLocation(newKey(i)));
+			}
+		}
+	}
+	
+	@Test
+	public void testSnapshot() throws IOException {
+		FusionTable table = new FusionTable(100);
+		for (int i = 0; i < 300; i++)
+			table.setLocation(newKey(i), 0);
+		table.remove(newKey(0));
+		table.remove(newKey(299));
+		
+		File file = File.createTempFile("fusion_table", ".snapshot");
+		file.deleteOnExit();
+		assertEquals(298, FusionTableSnapshot.save(table.copyContent(), 300, file));
+		
+		FusionTable loaded = new FusionTable(100);
+		assertEquals(298, FusionTableSnapshot.load(loaded, file));
+		assertEquals(298, loaded.size());
+		assertFalse(loaded.containsKey(newKey(0)));
+		assertFalse(loaded.containsKey(newKey(299)));
+		for (int i = 1; i < 299; i++)
+			assertEquals(0, loaded.getLocation(newKey(i)));
+	}
+}
@@ -1,6 +1,8 @@
 package org.elasql.sql;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -65,5 +67,35 @@ public class RecordKeyTest {
 		}
 		
 		assertEquals("fails to deserialize the object of RecordKey", key, result);
+		assertEquals(1, result.getVal("test_field_int").asJavaVal());
+		assertEquals("test_val", result.getVal(1).asJavaVal());
+	}
+	
+	@Test
+	public void testCodec() {
+		PrimaryKeyBuilder builder = new PrimaryKeyBuilder("test_table");
+		builder.addFldVal("test_field_int", new IntegerConstant(1));
+		builder.addFldVal("test_field_str", new VarcharConstant("test_val"));
+		PrimaryKey key = builder.build();
+		
+		PrimaryKey result = PrimaryKeyCodec.decode(PrimaryKeyCodec.encode(key));
+		
+		assertEquals(key, result);
+		assertEquals("test_val", result.getVal("test_field_str").asJavaVal());
+	}
+	
+	@Test
+	public void testEquality() {
+		PrimaryKeyBuilder builder = new PrimaryKeyBuilder("test_table");
+		builder.addFldVal("test_field", new VarcharConstant("test_val"));
+		PrimaryKey built = builder.build();
+		PrimaryKey constructed = new PrimaryKey("test_table", "test_field", new VarcharConstant("test_val"));
+		PrimaryKey other = new PrimaryKey("test_table", "test_field", new VarcharConstant("other_val"));
+		
+		assertEquals(constructed, built);
+		assertEquals(constructed.hashCode(), built.hashCode());
+		assertSame(constructed.getLayout(), built.getLayout());
+		assertNotEquals(constructed, other);
+		assertEquals("test_val", built.getVal("test_field").asJavaVal());
 	}
 }
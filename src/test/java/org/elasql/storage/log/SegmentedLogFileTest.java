@@ -0,0 +1,125 @@
+package org.elasql.storage.log;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SegmentedLogFileTest {
+	
+	private static byte[] record(int id) {
+		byte[] payload = new byte[10 + id % 7];
+		for (int i = 0; i < payload.length; i++)
+			payload[i] = (byte) (id + i);
+		return payload;
+	}
+	
+	private static List<byte[]> scanAll(SegmentedLogFile log) {
+		List<byte[]> records = new ArrayList<byte[]>();
+		Iterator<byte[]> iter = log.scan();
+		while (iter.hasNext())
+			records.add(iter.next());
+		return records;
+	}
+	
+	private static File newDir() throws IOException {
+		File dir = Files.createTempDirectory("segmented_log").toFile();
+		dir.deleteOnExit();
+		return dir;
+	}
+	
+	@Test
+	public void testReopen() throws IOException {
+		File dir = newDir();
+		
+		// Small segments, so the records span several of them
+		SegmentedLogFile log = new SegmentedLogFile(dir, "test.log", 128);
+		for (int i = 0; i < 50; i++)
+			log.append(record(i));
+		log.force();
+		
+		SegmentedLogFile reopened = new SegmentedLogFile(dir, "test.log", 128);
+		for (int i = 50; i < 60; i++)
+			reopened.append(record(i));
+		reopened.force();
+		
+		List<byte[]> records = scanAll(reopened);
+		assertEquals(60, records.size());
+		for (int i = 0; i < 60; i++)
+			assertArrayEquals("record " + i + " is corrupted", record(i), records.get(i));
+	}
+	
+	@Test
+	public void testTruncate() throws IOException {
+		File dir = newDir();
+		
+		SegmentedLogFile log = new SegmentedLogFile(dir, "test.log", 128);
+		for (int i = 0; i < 50; i++)
+			log.append(record(i));
+		log.truncate();
+		log.append(record(100));
+		log.force();
+		
+		List<byte[]> records = scanAll(log);
+		assertEquals(1, records.size());
+		assertArrayEquals(record(100), records.get(0));
+		assertEquals("the old segments are not deleted", 1, dir.listFiles().length);
+	}
+	
+	@Test
+	public void testTornRecord() throws IOException {
+		File dir = newDir();
+		
+		SegmentedLogFile log = new SegmentedLogFile(dir, "test.log", 1024);
+		log.append(record(1));
+		long pos = log.append(record(2));
+		log.force();
+		
+		// Break the payload of the second record
+		File segment = dir.listFiles()[0];
+		byte[] bytes = Files.readAllBytes(segment.toPath());
+		bytes[(int) pos + 8] ^= 0xFF;
+		Files.write(segment.toPath(), bytes);
+		
+		SegmentedLogFile reopened = new SegmentedLogFile(dir, "test.log", 1024);
+		List<byte[]> records = scanAll(reopened);
+		assertEquals(1, records.size());
+		
+		// The broken record is overwritten
+		reopened.append(record(3));
+		records = scanAll(reopened);
+		assertEquals(2, records.size());
+		assertArrayEquals(record(3), records.get(1));
+	}
+	
+	@Test
+	public void testCorruptedOldSegment() throws IOException {
+		File dir = newDir();
+		
+		SegmentedLogFile log = new SegmentedLogFile(dir, "test.log", 128);
+		for (int i = 0; i < 20; i++)
+			log.append(record(i));
+		log.force();
+		
+		// Break the second record of the first segment
+		File segment = new File(dir, String.format("test.log.%010d", 0));
+		byte[] bytes = Files.readAllBytes(segment.toPath());
+		bytes[8 + record(0).length + 8] ^= 0xFF;
+		Files.write(segment.toPath(), bytes);
+		
+		try {
+			scanAll(new SegmentedLogFile(dir, "test.log", 128));
+			fail("the records after the broken one are silently dropped");
+		} catch (RuntimeException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.elasql.storage.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.elasql.sql.PrimaryKey;
+import org.elasql.storage.metadata.ConsistentHashPartitionPlan.Arc;
+import org.junit.Test;
+import org.vanilladb.core.sql.IntegerConstant;
+
+public class ConsistentHashPartitionPlanTest {
+	
+	private static final int NUM_KEYS = 20000;
+
+	@Test
+	public void testScaleOut() {
+		ConsistentHashPartitionPlan oldPlan = new ConsistentHashPartitionPlan(4, 128);
+		ConsistentHashPartitionPlan newPlan = oldPlan.scaleOut();
+		List<Arc> arcs = oldPlan.arcsMovedTo(newPlan);
+		
+		int moved = 0;
+		for (int i = 0; i < NUM_KEYS; i++) {
+			PrimaryKey key = new PrimaryKey("ycsb", "ycsb_id", new IntegerConstant(i));
+			int oldPart = oldPlan.getPartition(key);
+			int newPart = newPlan.getPartition(key);
+			
+			Arc found = null;
+			for (Arc arc : arcs)
+				if (arc.contains(key))
+					found = arc;
+			
+			if (oldPart != newPart) {
+				moved++;
+				// Only the new partition takes keys
+				assertEquals(4, newPart);
+				assertEquals(oldPart, found.getSourcePartId());
+				assertEquals(newPart, found.getDestPartId());
+			} else {
+				assertEquals(null, found);
+			}
+		}
+		
+		// About 1/5 of the keys should move
+		double ratio = ((double) moved) / NUM_KEYS;
+		assertTrue("moved " + ratio + " of the keys", ratio > 0.15 && ratio < 0.25);
+	}
+}
@@ -0,0 +1,116 @@
+package org.elasql.storage.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.elasql.sql.PartitioningKey;
+import org.elasql.sql.PrimaryKey;
+import org.junit.Test;
+import org.vanilladb.core.sql.IntegerConstant;
+
+public class PartitionMetaMgrTest {
+	
+	private static final String REPLICATED_TABLE = "item";
+	
+	// Puts every key of a table to the same partition and counts the calls
+	private static class CountingPlan extends PartitionPlan {
+		int partId;
+		int replicationCalls, partitionCalls;
+		
+		CountingPlan(int partId) {
+			this.partId = partId;
+		}
+
+		@Override
+		public boolean isFullyReplicated(PrimaryKey key) {
+			replicationCalls++;
+			return key.getTableName().equals(REPLICATED_TABLE);
+		}
+
+		@Override
+		public int getPartition(PrimaryKey key) {
+			partitionCalls++;
+			return partId;
+		}
+		
+		@Override
+		public TablePlacement getTablePlacement(String tableName) {
+			if (tableName.equals(REPLICATED_TABLE))
+				return TablePlacement.REPLICATED;
+			return TablePlacement.PER_KEY;
+		}
+
+		@Override
+		public PartitionPlan getBasePlan() {
+			return this;
+		}
+
+		@Override
+		public void setBasePlan(PartitionPlan plan) {
+		}
+
+		@Override
+		public PartitioningKey getPartitioningKey(PrimaryKey key) {
+			return PartitioningKey.fromPrimaryKey(key);
+		}
+	}
+	
+	private static PrimaryKey key(String table, int val) {
+		return new PrimaryKey(table, "id", new IntegerConstant(val));
+	}
+
+	@Test
+	public void testCacheHit() {
+		CountingPlan plan = new CountingPlan(1);
+		PartitionMetaMgr mgr = new PartitionMetaMgr(plan, 16);
+		
+		assertEquals(1, mgr.getPartition(key("warehouse", 1)));
+		assertFalse(mgr.isFullyReplicated(key("warehouse", 1)));
+		assertEquals(1, mgr.getPartition(key("warehouse", 1)));
+		assertEquals(1, plan.replicationCalls);
+		assertEquals(1, plan.partitionCalls);
+	}
+	
+	@Test
+	public void testReplicatedTable() {
+		CountingPlan plan = new CountingPlan(0);
+		PartitionMetaMgr mgr = new PartitionMetaMgr(plan, 16);
+		
+		assertTrue(mgr.isFullyReplicated(key(REPLICATED_TABLE, 1)));
+		assertTrue(mgr.isFullyReplicated(key(REPLICATED_TABLE, 2)));
+		// Answered by the placement of the table
+		assertEquals(0, plan.replicationCalls);
+	}
+	
+	@Test
+	public void testInvalidateOnSwap() {
+		CountingPlan plan = new CountingPlan(0);
+		PartitionMetaMgr mgr = new PartitionMetaMgr(plan, 16);
+		assertEquals(0, mgr.getPartition(key("warehouse", 1)));
+		
+		mgr.setNewPartitionPlan(new CountingPlan(2));
+		assertEquals(2, mgr.getPartition(key("warehouse", 1)));
+		
+		// A plan changed in place needs an explicit invalidation
+		CountingPlan current = (CountingPlan) mgr.getPartitionPlan();
+		current.partId = 3;
+		assertEquals(2, mgr.getPartition(key("warehouse", 1)));
+		mgr.invalidateLookupCache();
+		assertEquals(3, mgr.getPartition(key("warehouse", 1)));
+	}
+	
+	@Test
+	public void testDropWhenHalfFull() {
+		PartitionCache cache = new PartitionCache(16);
+		for (int i = 0; i < 8; i++)
+			cache.put(key("warehouse", i), PartitionCache.encode(false, i));
+		for (int i = 0; i < 8; i++)
+			assertEquals(i, PartitionCache.partId(cache.get(key("warehouse", i))));
+		
+		// The next insertion finds the cache half full and drops everything
+		cache.put(key("warehouse", 8), PartitionCache.encode(false, 8));
+		assertEquals(PartitionCache.MISSING, cache.get(key("warehouse", 0)));
+		assertEquals(PartitionCache.MISSING, cache.get(key("warehouse", 8)));
+	}
+}
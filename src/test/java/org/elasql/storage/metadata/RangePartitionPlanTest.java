@@ -0,0 +1,56 @@
+package org.elasql.storage.metadata;
+
+import static org.junit.Assert.assertEquals;
+
+import org.elasql.sql.PrimaryKey;
+import org.junit.Test;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.IntegerConstant;
+
+public class RangePartitionPlanTest {
+	
+	private static final String[] FIELDS = new String[] { "w_id", "d_w_id" };
+	
+	private static PrimaryKey key(String table, String fld, int val) {
+		return new PrimaryKey(table, fld, new IntegerConstant(val));
+	}
+
+	@Test
+	public void testLookup() {
+		RangePartitionPlan plan = RangePartitionPlan.evenlyDivided(FIELDS, 1, 100, 4,
+				new HashPartitionPlan(4));
+		
+		assertEquals(4, plan.numberOfRanges());
+		assertEquals(0, plan.getPartition(key("warehouse", "w_id", 1)));
+		assertEquals(0, plan.getPartition(key("warehouse", "w_id", 25)));
+		assertEquals(1, plan.getPartition(key("district", "d_w_id", 26)));
+		assertEquals(3, plan.getPartition(key("warehouse", "w_id", 100)));
+		// Out of the initial span
+		assertEquals(0, plan.getPartition(key("warehouse", "w_id", -5)));
+		assertEquals(3, plan.getPartition(key("warehouse", "w_id", 500)));
+	}
+	
+	@Test
+	public void testSplitAndMerge() {
+		RangePartitionPlan plan = new RangePartitionPlan(FIELDS,
+				new Constant[] { new IntegerConstant(10) }, new int[] { 0, 1 },
+				new HashPartitionPlan(2));
+		
+		RangePartitionPlan splitPlan = plan.split(new IntegerConstant(20), 2);
+		assertEquals(3, splitPlan.numberOfRanges());
+		assertEquals(3, splitPlan.numberOfPartitions());
+		assertEquals(0, splitPlan.getPartition(key("warehouse", "w_id", 9)));
+		assertEquals(1, splitPlan.getPartition(key("warehouse", "w_id", 19)));
+		assertEquals(2, splitPlan.getPartition(key("warehouse", "w_id", 20)));
+		// The original plan is not changed
+		assertEquals(1, plan.getPartition(key("warehouse", "w_id", 20)));
+		
+		RangePartitionPlan mergedPlan = splitPlan.merge(0);
+		assertEquals(2, mergedPlan.numberOfRanges());
+		assertEquals(0, mergedPlan.getPartition(key("warehouse", "w_id", 19)));
+		assertEquals(2, mergedPlan.getPartition(key("warehouse", "w_id", 20)));
+		
+		RangePartitionPlan movedPlan = mergedPlan.reassign(1, 1);
+		assertEquals(1, movedPlan.getPartition(key("warehouse", "w_id", 20)));
+	}
+}
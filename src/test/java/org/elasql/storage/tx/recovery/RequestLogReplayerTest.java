@@ -0,0 +1,71 @@
+package org.elasql.storage.tx.recovery;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasql.remote.groupcomm.StoredProcedureCall;
+import org.junit.Test;
+import org.vanilladb.core.sql.Constant;
+
+public class RequestLogReplayerTest {
+	
+	private static Constant[] request(long txNum) {
+		List<Constant> vals = new StoredProcRequestRecord(txNum, 0, 0, 1, txNum).buildRecord();
+		return vals.toArray(new Constant[vals.size()]);
+	}
+	
+	private static Constant[] checkpoint(long txNum) {
+		List<Constant> vals = new DdCheckpointRecord(txNum).buildRecord();
+		return vals.toArray(new Constant[vals.size()]);
+	}
+	
+	private static List<Long> txNums(List<StoredProcedureCall> calls) {
+		List<Long> txNums = new ArrayList<Long>();
+		for (StoredProcedureCall call : calls)
+			txNums.add(call.getTxNum());
+		return txNums;
+	}
+	
+	@Test
+	public void testSkipRequestsBeforeCheckpoint() {
+		List<Constant[]> log = new ArrayList<Constant[]>();
+		log.add(request(1));
+		log.add(request(2));
+		log.add(checkpoint(3));
+		// Requests up to the checkpoint may still be logged after it
+		log.add(request(3));
+		log.add(request(4));
+		log.add(request(5));
+		
+		List<StoredProcedureCall> calls = RequestLogReplayer.readSegmentedRequests(log.iterator(), 0);
+		assertEquals("[4, 5]", txNums(calls).toString());
+		assertEquals(4L, calls.get(0).getPars()[0]);
+	}
+	
+	@Test
+	public void testSkipRequestsInStorage() {
+		List<Constant[]> log = new ArrayList<Constant[]>();
+		log.add(checkpoint(1));
+		log.add(request(2));
+		log.add(request(3));
+		log.add(request(4));
+		
+		// The storage already reflects tx.3
+		List<StoredProcedureCall> calls = RequestLogReplayer.readSegmentedRequests(log.iterator(), 3);
+		assertEquals("[4]", txNums(calls).toString());
+	}
+	
+	@Test
+	public void testLastCheckpointWins() {
+		List<Constant[]> log = new ArrayList<Constant[]>();
+		log.add(checkpoint(1));
+		log.add(request(2));
+		log.add(checkpoint(2));
+		log.add(request(3));
+		
+		List<StoredProcedureCall> calls = RequestLogReplayer.readSegmentedRequests(log.iterator(), 0);
+		assertEquals("[3]", txNums(calls).toString());
+	}
+}
@@ -0,0 +1,26 @@
+package org.elasql.storage.tx.recovery;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasql.storage.tx.recovery.RequestLogSync.TailMessage;
+import org.junit.Test;
+
+public class RequestLogSyncTest {
+
+	@Test
+	public void testSupplierWithOldestSnapshot() {
+		Map<Integer, TailMessage> tails = new HashMap<Integer, TailMessage>();
+		tails.put(0, new TailMessage(100, 180));
+		// At the tail, but its log starts after the others
+		tails.put(1, new TailMessage(150, 200));
+		tails.put(2, new TailMessage(100, 200));
+		tails.put(3, new TailMessage(50, 120));
+
+		long lastTxNum = RequestLogSync.latestTail(tails);
+		assertEquals(200, lastTxNum);
+		assertEquals(2, RequestLogSync.supplierOf(tails, lastTxNum));
+	}
+}
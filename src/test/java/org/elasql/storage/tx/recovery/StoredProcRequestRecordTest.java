@@ -0,0 +1,45 @@
+package org.elasql.storage.tx.recovery;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.elasql.remote.groupcomm.StoredProcedureCall;
+import org.junit.Test;
+import org.vanilladb.core.sql.Constant;
+
+public class StoredProcRequestRecordTest {
+	
+	@Test
+	public void testParsRoundTrip() {
+		Object[] pars = new Object[] { 7, 12345678901L, "warehouse", 3.5, null, new int[] { 1, 2, 3 } };
+		StoredProcRequestRecord rec = new StoredProcRequestRecord(42, 3, 5, 11, pars);
+		
+		List<Constant> vals = rec.buildRecord();
+		StoredProcRequestRecord read = new StoredProcRequestRecord(vals.toArray(new Constant[vals.size()]));
+		
+		assertEquals(42, read.txNumber());
+		StoredProcedureCall call = read.toStoredProcedureCall();
+		assertEquals(42, call.getTxNum());
+		assertEquals(3, call.getClientId());
+		assertEquals(5, call.getConnectionId());
+		assertEquals(11, call.getPid());
+		
+		Object[] readPars = call.getPars();
+		assertEquals(pars.length, readPars.length);
+		for (int i = 0; i < pars.length - 1; i++)
+			assertEquals(pars[i], readPars[i]);
+		assertArrayEquals((int[]) pars[5], (int[]) readPars[5]);
+	}
+	
+	@Test
+	public void testNoPars() {
+		StoredProcRequestRecord rec = new StoredProcRequestRecord(1, 0, 0, 2);
+		
+		List<Constant> vals = rec.buildRecord();
+		StoredProcRequestRecord read = new StoredProcRequestRecord(vals.toArray(new Constant[vals.size()]));
+		
+		assertEquals(0, read.toStoredProcedureCall().getPars().length);
+	}
+}